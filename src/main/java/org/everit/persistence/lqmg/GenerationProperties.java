@@ -20,11 +20,45 @@ package org.everit.persistence.lqmg;
  */
 public class GenerationProperties {
 
+  /**
+   * The value of {@link #container} that selects the Eclipse Equinox framework.
+   */
+  public static final String CONTAINER_EQUINOX = "equinox";
+
+  /**
+   * The value of {@link #container} that selects the Apache Felix framework. The framework must be
+   * available on the classpath of LQMG.
+   */
+  public static final String CONTAINER_FELIX = "felix";
+
+  /**
+   * The default value of {@link #cacheMaxSize}: 512MB.
+   */
+  public static final long DEFAULT_CACHE_MAX_SIZE = 512L * 1024 * 1024;
+
   /**
    * The paths to the bundles (directory path of jar file path).
    */
   public final String[] bundleLocations;
 
+  /**
+   * Optional folder where the storage areas of the embedded OSGi container are cached between the
+   * runs. The storage areas are identified by the fingerprint of the bundles, so the bundles do not
+   * have to be installed, resolved and hacked again if they did not change. The hacked bundles are
+   * also cached by their content and the available capabilities, so they can be reused when a new
+   * storage area is created. The database schemas that the changelogs create are cached, too, so
+   * the changelogs are not applied again if the bundles that provide them did not change. Null
+   * means that a temporary storage area is used that is deleted after the generation.
+   */
+  public String cacheFolder;
+
+  /**
+   * The maximum size of the cached storage areas, of the cached hacked bundles and of the cached
+   * schemas in bytes. The limit applies to each of them separately. The least recently used
+   * entries are deleted if the cache grows bigger.
+   */
+  public long cacheMaxSize = DEFAULT_CACHE_MAX_SIZE;
+
   /**
    * A schema name with optional filter expression that points to a bundle schema capability. E.g.:
    * userMgmt;filter:="(version=2)"
@@ -37,16 +71,41 @@ public class GenerationProperties {
    */
   public String configurationPath;
 
+  /**
+   * The OSGi framework that is embedded to resolve the bundles. Either {@link #CONTAINER_EQUINOX}
+   * or {@link #CONTAINER_FELIX}. In case of a batch of jobs, the container of the first job is
+   * used.
+   */
+  public String container = CONTAINER_EQUINOX;
+
   /**
    * Comma separated list of contexts Liquibase is running under.
    */
   public String contexts;
 
+  /**
+   * Optional folder where file based databases are kept between the runs, one for each
+   * combination of capability, contexts and default schema. Only the changesets that were added
+   * since the previous run are applied on the database. If a changeset that was applied before
+   * changed or disappeared from the changelogs, the database is rebuilt from scratch. Null means
+   * that all changesets are applied on a new in-memory database.
+   */
+  public String databaseFolder;
+
   /**
    * Default schema on SQL Connection to be used during generating tables.
    */
   public String defaultSchema;
 
+  /**
+   * If true and {@link #hackWires} is also true, LQMG tries to find the capability and read the
+   * changelogs directly from the jars and directories of the bundles, without starting the embedded
+   * OSGi container. The container is used only if the capability, one of the included changelogs
+   * or a resource of a fragment cannot be resolved this way. Other failures are reported as they
+   * are. Default: false, so the changelogs are always read within the container.
+   */
+  public boolean frameworkFreeResolution = false;
+
   /**
    * If true, LQMG will update the unresolved bundles in the way that all of their unsatisfied
    * requirements will be modified to be optional.
@@ -65,6 +124,40 @@ public class GenerationProperties {
    */
   public String[] packages = new String[0];
 
+  /**
+   * Optional path of a file where the {@link GenerationReport} of the generation is written in JSON
+   * format. In case of a batch of jobs, the report file of the first job is used.
+   */
+  public String reportFile;
+
+  /**
+   * If true, the structural changes of the changelogs (createTable, addColumn,
+   * addForeignKeyConstraint, renameColumn, dropTable, etc.) are interpreted into an in-memory
+   * schema model and the meta data is exported from the model without running the changelogs on a
+   * database. If the changelogs contain a change that cannot be interpreted, like raw SQL, a view
+   * or a precondition, they are run on the in-memory database as usual. The model is not used
+   * together with {@link #databaseFolder}.
+   */
+  public boolean schemaModel = false;
+
+  /**
+   * If true, the changes that manipulate only data (insert, update, delete, loadData and
+   * loadUpdateData) are not executed when the changelogs run on the database, as the data does not
+   * affect the generated classes. Their changesets are still marked as executed. Raw SQL changes
+   * are always executed, so they must not depend on the skipped data.
+   */
+  public boolean schemaOnly = false;
+
+  /**
+   * If true and {@link #hackWires} is also true, the requirements that none of the bundles can
+   * satisfy are provided by manifest-only synthetic bundles before the bundles are resolved, so all
+   * bundles are resolved in one pass without rewriting their jars. The synthetic capabilities are
+   * used only if there is no other candidate. If the capability is still not available after the
+   * resolution (e.g. because a requirement has a filter that cannot be provided synthetically),
+   * the unresolved bundles are hacked as usual.
+   */
+  public boolean syntheticProviders = false;
+
   /**
    * The folder where source will be generated to.
    */
@@ -86,6 +179,14 @@ public class GenerationProperties {
     this.capability = capability;
   }
 
+  public void setCacheFolder(final String cacheFolder) {
+    this.cacheFolder = cacheFolder;
+  }
+
+  public void setCacheMaxSize(final long cacheMaxSize) {
+    this.cacheMaxSize = cacheMaxSize;
+  }
+
   public void setCapability(final String schema) {
     capability = schema;
   }
@@ -94,14 +195,26 @@ public class GenerationProperties {
     this.configurationPath = configurationPath;
   }
 
+  public void setContainer(final String container) {
+    this.container = container;
+  }
+
   public void setContexts(final String contexts) {
     this.contexts = contexts;
   }
 
+  public void setDatabaseFolder(final String databaseFolder) {
+    this.databaseFolder = databaseFolder;
+  }
+
   public void setDefaultSchema(final String defaultSchema) {
     this.defaultSchema = defaultSchema;
   }
 
+  public void setFrameworkFreeResolution(final boolean frameworkFreeResolution) {
+    this.frameworkFreeResolution = frameworkFreeResolution;
+  }
+
   public void setHackWires(final boolean strict) {
     hackWires = strict;
   }
@@ -115,6 +228,22 @@ public class GenerationProperties {
     this.packages = packages;
   }
 
+  public void setReportFile(final String reportFile) {
+    this.reportFile = reportFile;
+  }
+
+  public void setSchemaModel(final boolean schemaModel) {
+    this.schemaModel = schemaModel;
+  }
+
+  public void setSchemaOnly(final boolean schemaOnly) {
+    this.schemaOnly = schemaOnly;
+  }
+
+  public void setSyntheticProviders(final boolean syntheticProviders) {
+    this.syntheticProviders = syntheticProviders;
+  }
+
   public void setTargetFolder(final String targetFolder) {
     this.targetFolder = targetFolder;
   }
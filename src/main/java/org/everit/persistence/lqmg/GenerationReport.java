@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counts of a generation run. The durations of the phases that are executed by the
+ * jobs (e.g. the Liquibase update) are summed up, so if the jobs run in parallel, the sum of the
+ * phase durations can be more than the total duration of the run. The report is thread-safe.
+ */
+public class GenerationReport {
+
+  /**
+   * The phases of a generation run.
+   */
+  public enum Phase {
+
+    /**
+     * Installing and uninstalling the bundles in the embedded OSGi container.
+     */
+    BUNDLE_INSTALL,
+
+    /**
+     * Finding the bundles that provide the requested capabilities in the embedded OSGi container.
+     */
+    CAPABILITY_LOOKUP,
+
+    /**
+     * Stopping the embedded OSGi container and deleting or releasing its storage area.
+     */
+    CLEANUP,
+
+    /**
+     * Creating and starting the embedded OSGi container.
+     */
+    FRAMEWORK_START,
+
+    /**
+     * Running the changelogs on the in-memory database, interpreting them into a schema model or
+     * restoring the schema from a cached snapshot, including the creation of the database.
+     */
+    LIQUIBASE_UPDATE,
+
+    /**
+     * Reading the manifests of the bundles and calculating the dependency closure.
+     */
+    MANIFEST_SCAN,
+
+    /**
+     * Exporting the meta data of the database. QueryDSL writes the source files during the export,
+     * so this phase contains the file writing, too.
+     */
+    METADATA_EXPORT,
+
+    /**
+     * Resolving and refreshing the bundles of the embedded OSGi container.
+     */
+    RESOLVE,
+
+    /**
+     * Creating a temporary storage area or locking a cached one.
+     */
+    STORAGE_AREA,
+
+    /**
+     * Updating the unresolved bundles with optional requirements.
+     */
+    WIRE_HACKING
+  }
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private static void appendCount(final StringBuilder sb, final String name,
+      final AtomicInteger count) {
+    sb.append("    \"").append(name).append("\": ").append(count.get());
+  }
+
+  private static String formatMillis(final long nanos) {
+    return String.format(Locale.ENGLISH, "%.3f", (double) nanos / NANOS_PER_MILLI);
+  }
+
+  private final AtomicInteger bundleCount = new AtomicInteger();
+
+  private final AtomicInteger changeSetCount = new AtomicInteger();
+
+  private final Map<Phase, AtomicLong> durations = new EnumMap<Phase, AtomicLong>(Phase.class);
+
+  private final AtomicInteger failedJobCount = new AtomicInteger();
+
+  private final AtomicInteger frameworkFreeJobCount = new AtomicInteger();
+
+  private final AtomicInteger hackedBundleCount = new AtomicInteger();
+
+  private final AtomicLong hackSavedDuration = new AtomicLong();
+
+  private final AtomicInteger hackThreadCount = new AtomicInteger();
+
+  private final AtomicInteger installedBundleCount = new AtomicInteger();
+
+  private final AtomicInteger interpretedSchemaCount = new AtomicInteger();
+
+  private final AtomicInteger jobCount = new AtomicInteger();
+
+  private final AtomicInteger restoredSchemaCount = new AtomicInteger();
+
+  private final AtomicInteger skippedDataChangeCount = new AtomicInteger();
+
+  private final long startTime = System.nanoTime();
+
+  private final AtomicInteger tableCount = new AtomicInteger();
+
+  private final AtomicLong totalDuration = new AtomicLong();
+
+  private final AtomicInteger writtenFileCount = new AtomicInteger();
+
+  /**
+   * Constructor.
+   */
+  public GenerationReport() {
+    for (Phase phase : Phase.values()) {
+      durations.put(phase, new AtomicLong());
+    }
+  }
+
+  void addBundles(final int count) {
+    bundleCount.addAndGet(count);
+  }
+
+  void addChangeSets(final int count) {
+    changeSetCount.addAndGet(count);
+  }
+
+  void addDuration(final Phase phase, final long nanos) {
+    durations.get(phase).addAndGet(nanos);
+  }
+
+  void addFailedJobs(final int count) {
+    failedJobCount.addAndGet(count);
+  }
+
+  void addFrameworkFreeJobs(final int count) {
+    frameworkFreeJobCount.addAndGet(count);
+  }
+
+  void addHackedBundles(final int count, final int threadCount, final long savedNanos) {
+    hackedBundleCount.addAndGet(count);
+    hackSavedDuration.addAndGet(savedNanos);
+    int previousThreadCount = hackThreadCount.get();
+    while ((threadCount > previousThreadCount)
+        && !hackThreadCount.compareAndSet(previousThreadCount, threadCount)) {
+      previousThreadCount = hackThreadCount.get();
+    }
+  }
+
+  void addInstalledBundles(final int count) {
+    installedBundleCount.addAndGet(count);
+  }
+
+  void addInterpretedSchemas(final int count) {
+    interpretedSchemaCount.addAndGet(count);
+  }
+
+  void addJobs(final int count) {
+    jobCount.addAndGet(count);
+  }
+
+  void addRestoredSchemas(final int count) {
+    restoredSchemaCount.addAndGet(count);
+  }
+
+  void addSkippedDataChanges(final int count) {
+    skippedDataChangeCount.addAndGet(count);
+  }
+
+  void addTables(final int count) {
+    tableCount.addAndGet(count);
+  }
+
+  void addWrittenFiles(final int count) {
+    writtenFileCount.addAndGet(count);
+  }
+
+  /**
+   * Records the total duration of the run, measured from the creation of the report.
+   */
+  void finish() {
+    totalDuration.set(System.nanoTime() - startTime);
+  }
+
+  /**
+   * The number of bundle locations that were passed to the run.
+   */
+  public int getBundleCount() {
+    return bundleCount.get();
+  }
+
+  /**
+   * The number of changesets that were executed by all jobs.
+   */
+  public int getChangeSetCount() {
+    return changeSetCount.get();
+  }
+
+  /**
+   * The duration of a phase in nanoseconds.
+   */
+  public long getDuration(final Phase phase) {
+    return durations.get(phase).get();
+  }
+
+  public int getFailedJobCount() {
+    return failedJobCount.get();
+  }
+
+  /**
+   * The number of jobs that were processed without the embedded OSGi container.
+   */
+  public int getFrameworkFreeJobCount() {
+    return frameworkFreeJobCount.get();
+  }
+
+  /**
+   * The number of bundles whose wires were hacked.
+   */
+  public int getHackedBundleCount() {
+    return hackedBundleCount.get();
+  }
+
+  /**
+   * The time in nanoseconds that was saved by preparing the hacked bundles on multiple threads
+   * instead of one.
+   */
+  public long getHackSavedDuration() {
+    return hackSavedDuration.get();
+  }
+
+  /**
+   * The maximum number of threads that were used to prepare the hacked bundles.
+   */
+  public int getHackThreadCount() {
+    return hackThreadCount.get();
+  }
+
+  /**
+   * The number of bundles that were installed into the embedded OSGi container during the run.
+   * Bundles that were installed by a previous run of the session or that come from a cached
+   * storage area are not counted.
+   */
+  public int getInstalledBundleCount() {
+    return installedBundleCount.get();
+  }
+
+  /**
+   * The number of jobs whose schema was built by interpreting the changelogs into a schema model
+   * instead of running them on the database.
+   */
+  public int getInterpretedSchemaCount() {
+    return interpretedSchemaCount.get();
+  }
+
+  public int getJobCount() {
+    return jobCount.get();
+  }
+
+  /**
+   * The number of jobs whose schema was restored from a cached snapshot instead of running the
+   * changelogs.
+   */
+  public int getRestoredSchemaCount() {
+    return restoredSchemaCount.get();
+  }
+
+  /**
+   * The number of changes that manipulate only data (insert, update, delete, loadData) and were
+   * not executed, either because of {@link GenerationProperties#schemaOnly} or because the
+   * changelogs were interpreted into a schema model.
+   */
+  public int getSkippedDataChangeCount() {
+    return skippedDataChangeCount.get();
+  }
+
+  /**
+   * The number of tables and views that were created by the changesets of all jobs.
+   */
+  public int getTableCount() {
+    return tableCount.get();
+  }
+
+  /**
+   * The total duration of the run in nanoseconds.
+   */
+  public long getTotalDuration() {
+    return totalDuration.get();
+  }
+
+  /**
+   * The number of source files that were created or modified. Files whose content did not change
+   * are not written by QueryDSL.
+   */
+  public int getWrittenFileCount() {
+    return writtenFileCount.get();
+  }
+
+  /**
+   * Creates the JSON form of the report. The durations are in milliseconds.
+   *
+   * @return The report as a JSON object.
+   */
+  public String toJSON() {
+    StringBuilder sb = new StringBuilder("{\n");
+    sb.append("  \"totalMillis\": ")
+        .append(GenerationReport.formatMillis(totalDuration.get())).append(",\n");
+    sb.append("  \"phaseMillis\": {\n");
+    Phase[] phases = Phase.values();
+    for (int i = 0; i < phases.length; i++) {
+      sb.append("    \"").append(phases[i].name()).append("\": ")
+          .append(GenerationReport.formatMillis(durations.get(phases[i]).get()));
+      sb.append((i < phases.length - 1) ? ",\n" : "\n");
+    }
+    sb.append("  },\n");
+    sb.append("  \"hackSavedMillis\": ")
+        .append(GenerationReport.formatMillis(hackSavedDuration.get())).append(",\n");
+    sb.append("  \"counts\": {\n");
+    GenerationReport.appendCount(sb, "jobs", jobCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "failedJobs", failedJobCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "frameworkFreeJobs", frameworkFreeJobCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "bundles", bundleCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "installedBundles", installedBundleCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "hackedBundles", hackedBundleCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "hackThreads", hackThreadCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "changeSets", changeSetCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "restoredSchemas", restoredSchemaCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "interpretedSchemas", interpretedSchemaCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "skippedDataChanges", skippedDataChangeCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "tables", tableCount);
+    sb.append(",\n");
+    GenerationReport.appendCount(sb, "writtenFiles", writtenFileCount);
+    sb.append("\n  }\n}\n");
+    return sb.toString();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("GenerationReport [total=")
+        .append(GenerationReport.formatMillis(totalDuration.get())).append("ms");
+    for (Phase phase : Phase.values()) {
+      long duration = durations.get(phase).get();
+      if (duration > 0) {
+        sb.append(", ").append(phase.name()).append('=')
+            .append(GenerationReport.formatMillis(duration)).append("ms");
+      }
+    }
+    sb.append(", jobs=").append(jobCount.get()).append(", failedJobs=")
+        .append(failedJobCount.get()).append(", bundles=").append(bundleCount.get())
+        .append(", installedBundles=").append(installedBundleCount.get())
+        .append(", hackedBundles=").append(hackedBundleCount.get()).append(", hackThreads=")
+        .append(hackThreadCount.get()).append(", hackSaved=")
+        .append(GenerationReport.formatMillis(hackSavedDuration.get())).append("ms")
+        .append(", changeSets=").append(changeSetCount.get()).append(", restoredSchemas=")
+        .append(restoredSchemaCount.get()).append(", interpretedSchemas=")
+        .append(interpretedSchemaCount.get()).append(", skippedDataChanges=")
+        .append(skippedDataChangeCount.get()).append(", tables=")
+        .append(tableCount.get()).append(", writtenFiles=").append(writtenFileCount.get())
+        .append("]");
+    return sb.toString();
+  }
+
+  /**
+   * Writes the JSON form of the report into a file. The parent folders are created if necessary.
+   *
+   * @param file
+   *          The file to write.
+   * @throws IOException
+   *           if the file cannot be written.
+   */
+  public void writeJSON(final File file) throws IOException {
+    File parent = file.getAbsoluteFile().getParentFile();
+    if ((parent != null) && !parent.exists() && !parent.mkdirs()) {
+      throw new IOException("Could not create folder: " + parent.getAbsolutePath());
+    }
+    try (Writer writer =
+        new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+      writer.write(toJSON());
+    }
+  }
+
+}
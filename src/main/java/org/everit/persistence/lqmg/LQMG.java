@@ -16,47 +16,45 @@
 package org.everit.persistence.lqmg;
 
 import java.io.File;
-import java.io.IOException;
-import java.lang.reflect.Field;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
+import java.sql.Statement;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 import java.util.Properties;
-import java.util.ServiceLoader;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
-import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
-import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
-import org.everit.persistence.liquibase.ext.osgi.util.BundleResource;
-import org.everit.persistence.liquibase.ext.osgi.util.LiquibaseOSGiUtil;
+import org.everit.persistence.lqmg.GenerationReport.Phase;
 import org.everit.persistence.lqmg.internal.ConfigPath;
 import org.everit.persistence.lqmg.internal.ConfigurationContainer;
-import org.everit.persistence.lqmg.internal.EquinoxHackUtilImpl;
-import org.everit.persistence.lqmg.internal.HackUtil;
+import org.everit.persistence.lqmg.internal.IncrementalDatabase;
 import org.everit.persistence.lqmg.internal.LQMGNamingStrategy;
+import org.everit.persistence.lqmg.internal.SchemaSnapshotCache;
 import org.everit.persistence.lqmg.internal.liquibase.LQMGChangeExecListener;
+import org.everit.persistence.lqmg.internal.liquibase.LQMGH2Database;
+import org.everit.persistence.lqmg.internal.liquibase.SchemaModelInterpreter;
+import org.everit.persistence.lqmg.internal.schemamodel.SchemaModel;
+import org.everit.persistence.lqmg.internal.schemamodel.SchemaModelMetaData;
 import org.h2.Driver;
-import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.BundleException;
-import org.osgi.framework.launch.Framework;
-import org.osgi.framework.launch.FrameworkFactory;
-import org.osgi.framework.wiring.FrameworkWiring;
 
 import com.querydsl.sql.codegen.MetaDataExporter;
 import com.querydsl.sql.codegen.NamingStrategy;
 
+import liquibase.Contexts;
 import liquibase.Liquibase;
-import liquibase.changelog.visitor.ChangeExecListener;
-import liquibase.database.AbstractJdbcDatabase;
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
 import liquibase.database.ObjectQuotingStrategy;
-import liquibase.database.core.H2Database;
 import liquibase.database.jvm.JdbcConnection;
 import liquibase.exception.LiquibaseException;
+import liquibase.exception.ValidationFailedException;
+import liquibase.parser.ChangeLogParserFactory;
 import liquibase.resource.ResourceAccessor;
 
 /**
@@ -66,76 +64,109 @@ public final class LQMG {
 
   public static final String CAPABILITY_LQMG_CONFIG_RESOURCE = "lqmg.config.resource";
 
-  private static HackUtil frameworkUtil = new EquinoxHackUtilImpl();
+  private static final String INFORMATION_SCHEMA = "INFORMATION_SCHEMA";
+
+  /**
+   * The prefix of the tables that Liquibase creates for itself. Only the databases that are kept
+   * between runs have such tables, the others keep the history of the changesets in memory.
+   */
+  private static final String LIQUIBASE_TABLE_PREFIX = "DATABASECHANGELOG";
 
   /**
    * The {@link Logger} instance for logging.
    */
   private static final Logger LOGGER = Logger.getLogger(LQMG.class.getName());
 
-  private static void checkMatchingBundleResourceSize(final GenerationProperties parameters,
-      final List<BundleResource> bundleResources) {
-    if (bundleResources.size() > 1) {
-      LOGGER.log(Level.WARNING,
-          "Found multiple bundles containing matching capabilities for schema"
-              + " expression: '" + parameters.capability
-              + "'. Using the first one from list: "
-              + bundleResources.toString());
+  private static final long MILLIS_PER_SECOND = 1000L;
+
+  /**
+   * Connects to the file based database of a job.
+   *
+   * @return The connection or <code>null</code> if the database is used by another job or
+   *         process.
+   */
+  private static Connection connectIncrementalDatabase(final Driver h2Driver,
+      final IncrementalDatabase incrementalDatabase, final String defaultSchema) {
+    if (incrementalDatabase == null) {
+      LOGGER.log(Level.INFO, "Database is used by another job, using an in-memory database.");
+      return null;
+    }
+    try {
+      return h2Driver.connect(
+          LQMG.createDataBaseURL(incrementalDatabase.getDatabaseName(), defaultSchema),
+          new Properties());
+    } catch (SQLException e) {
+      LOGGER.log(Level.INFO, "Could not open database " + incrementalDatabase.getDatabaseName()
+          + ", using an in-memory database.", e);
+      return null;
     }
   }
 
-  private static String createDataBaseURL(final String defaultSchema) {
-    StringBuilder sb = new StringBuilder("jdbc:h2:mem:;DATABASE_TO_UPPER=false");
-    if (defaultSchema != null) {
-      sb.append(";INIT=CREATE SCHEMA IF NOT EXISTS \"").append(defaultSchema)
-          .append("\"\\;SET SCHEMA \"")
-          .append(defaultSchema).append("\"");
+  private static int countTables(final DatabaseMetaData metaData) throws SQLException {
+    int result = 0;
+    try (ResultSet resultSet =
+        metaData.getTables(null, null, null, new String[] { "TABLE", "VIEW" })) {
+      while (resultSet.next()) {
+        String schemaName = resultSet.getString("TABLE_SCHEM");
+        String tableName = resultSet.getString("TABLE_NAME");
+        if (!INFORMATION_SCHEMA.equalsIgnoreCase(schemaName)
+            && !tableName.toUpperCase(Locale.ENGLISH).startsWith(LIQUIBASE_TABLE_PREFIX)) {
+          result++;
+        }
+      }
     }
-    return sb.toString();
+    return result;
   }
 
-  private static File createTempDirectory() throws IOException {
-    final File temp = File.createTempFile("lqmg-",
-        Long.toString(System.nanoTime()));
-
-    if (!(temp.delete())) {
-      throw new IOException("Could not delete temp file: "
-          + temp.getAbsolutePath());
+  /**
+   * Counts the files in the folder that were modified since the specified time.
+   */
+  private static int countWrittenFiles(final File folder, final long since) {
+    File[] files = folder.listFiles();
+    if (files == null) {
+      return 0;
     }
-
-    if (!(temp.mkdir())) {
-      throw new IOException("Could not create temp directory: "
-          + temp.getAbsolutePath());
+    int result = 0;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        result += LQMG.countWrittenFiles(file, since);
+      } else if (file.lastModified() >= since) {
+        result++;
+      }
     }
-
-    return temp;
+    return result;
   }
 
-  private static void deleteFolder(final File folder) {
-
-    if (folder == null) {
-      return;
+  private static String createDataBaseURL(final String databaseName,
+      final String defaultSchema) {
+    StringBuilder sb = new StringBuilder("jdbc:h2:").append(databaseName)
+        .append(";DATABASE_TO_UPPER=false");
+    if (defaultSchema != null) {
+      sb.append(";INIT=CREATE SCHEMA IF NOT EXISTS \"").append(defaultSchema)
+          .append("\"\\;SET SCHEMA \"")
+          .append(defaultSchema).append("\"");
     }
+    return sb.toString();
+  }
 
-    File[] files = folder.listFiles();
-    if (files != null) { // some JVMs return null for empty dirs
-      for (File f : files) {
-        if (f.isDirectory()) {
-          LQMG.deleteFolder(f);
-        } else {
-          if (!f.delete()) {
-            LOGGER.warning("Failed to delete file [" + f.getAbsolutePath() + "]");
-          }
-        }
-      }
-    }
-    if (!folder.delete()) {
-      LOGGER.warning("Failed to delete folder [" + folder.getAbsolutePath() + "]");
+  private static Liquibase createLiquibase(final Connection connection,
+      final ResourceAccessor resourceAccessor, final String schemaResource,
+      final String defaultSchema, final boolean schemaOnly, final boolean inMemoryHistory)
+      throws LiquibaseException {
+    LOGGER.log(Level.INFO, "Get database.");
+    LQMGH2Database database = new LQMGH2Database(schemaOnly, inMemoryHistory);
+    database.setCaseSensitive(true);
+    database.setObjectQuotingStrategy(ObjectQuotingStrategy.QUOTE_ALL_OBJECTS);
+    database.setLiquibaseSchemaName("PUBLIC");
+    if (defaultSchema != null) {
+      database.setDefaultSchemaName(defaultSchema);
     }
+    database.setConnection(new JdbcConnection(connection));
+    return new Liquibase(schemaResource, resourceAccessor, database);
   }
 
   private static void exportMetaData(final GenerationProperties parameters,
-      final Connection connection, final ConfigurationContainer configurationContainer)
+      final DatabaseMetaData metaData, final ConfigurationContainer configurationContainer)
       throws SQLException {
 
     LOGGER.log(Level.INFO, "Start meta data export.");
@@ -151,201 +182,195 @@ public final class LQMG {
     metaDataExporter.setSchemaToPackage(true);
     metaDataExporter.setTargetFolder(new File(parameters.targetFolder));
     metaDataExporter.setInnerClassesForKeys(parameters.innerClassesForKeys);
-    metaDataExporter.export(connection.getMetaData());
+    metaDataExporter.export(metaData);
 
     LOGGER.log(Level.INFO, "Finish meta data export.");
   }
 
   /**
-   * Generate the JAVA classes to QueryDSL from LiquiBase XML.
+   * Generate the JAVA classes to QueryDSL from LiquiBase XML using the bundles of an OSGi
+   * framework that is already running, without starting an embedded OSGi container.
    *
+   * @param hostBundleContext
+   *          a bundle context of the host framework.
    * @param parameters
-   *          the parameters for the generation. See more {@link GenerationProperties}.
+   *          the parameters for the generation. The bundle locations are ignored.
+   * @return The timings and counts of the generation.
    */
-  public static void generate(final GenerationProperties parameters) {
-    Framework osgiContainer = null;
-    File tempDirectory = null;
-    try {
-      tempDirectory = LQMG.createTempDirectory();
-      osgiContainer =
-          LQMG.startOSGiContainer(parameters.bundleLocations, tempDirectory.getAbsolutePath());
-      List<BundleResource> bundleResources = LiquibaseOSGiUtil
-          .findBundlesBySchemaExpression(parameters.capability,
-              osgiContainer.getBundleContext(), Bundle.RESOLVED);
-
-      if (bundleResources.size() == 0) {
-        if (parameters.hackWires) {
-          LOGGER.info(
-              "No matching bundle found. Trying to find unresolved bundles and hack their wires.");
-          frameworkUtil.hackBundles(osgiContainer, tempDirectory);
-          FrameworkWiring frameworkWiring = osgiContainer.adapt(FrameworkWiring.class);
-          frameworkWiring.resolveBundles(null);
-
-          bundleResources = LiquibaseOSGiUtil
-              .findBundlesBySchemaExpression(parameters.capability,
-                  osgiContainer.getBundleContext(), Bundle.RESOLVED);
-        } else {
-          LOGGER.severe("No matching bundle found. Probably setting hackWires to true would help");
-        }
-        if (bundleResources.size() == 0) {
-          LQMG.throwCapabilityNotFound(parameters, osgiContainer);
-        }
-      }
-
-      LQMG.checkMatchingBundleResourceSize(parameters, bundleResources);
-
-      BundleResource bundleResource = bundleResources.get(0);
-      LQMG.tryCodeGeneration(parameters, bundleResource.bundle, bundleResource.attributes);
-
-    } catch (IOException e) {
-
-      LOGGER.log(Level.SEVERE, "Could not create temp directory", e);
-      return;
-
-    } catch (BundleException e) {
-
-      LOGGER.log(Level.SEVERE, "Could not start embedded OSGi framework", e);
-
-    } finally {
-
-      LQMG.stopFramework(osgiContainer);
-      LQMG.deleteFolder(tempDirectory);
-    }
-
+  public static GenerationReport generate(final BundleContext hostBundleContext,
+      final GenerationProperties parameters) {
+    return LQMG.generate(hostBundleContext, Collections.singletonList(parameters), 1);
   }
 
-  private static void logUnresolvedBundles(final Framework osgiContainer) {
-    BundleContext systemBundleContext = osgiContainer.getBundleContext();
-    Bundle[] bundles = systemBundleContext.getBundles();
-
-    for (Bundle bundle : bundles) {
-      if (bundle.getState() == Bundle.INSTALLED) {
-        try {
-          bundle.start();
-        } catch (BundleException e) {
-          LOGGER.log(Level.WARNING, "The bundle " + bundle.toString() + " could not be resolved",
-              e);
-        }
-      }
+  /**
+   * Generate the JAVA classes to QueryDSL from LiquiBase XML for multiple capabilities using the
+   * bundles of an OSGi framework that is already running.
+   *
+   * @param hostBundleContext
+   *          a bundle context of the host framework.
+   * @param jobs
+   *          the generation jobs. See more {@link LQMGSession#generate(BundleContext, List, int)}.
+   * @param parallelism
+   *          the maximum number of jobs that are processed at the same time.
+   * @return The timings and counts of the generation.
+   */
+  public static GenerationReport generate(final BundleContext hostBundleContext,
+      final List<GenerationProperties> jobs, final int parallelism) {
+    try (LQMGSession session = new LQMGSession()) {
+      return session.generate(hostBundleContext, jobs, parallelism);
     }
   }
 
   /**
-   * HACK to make Equinox using the classloader of the system even if LQMG is called multiple times.
+   * Generate the JAVA classes to QueryDSL from LiquiBase XML.
+   *
+   * @param parameters
+   *          the parameters for the generation. See more {@link GenerationProperties}.
+   * @return The timings and counts of the generation.
+   * @throws LQMGException
+   *           if the generation fails. Earlier versions only logged the error and returned if the
+   *           temp directory could not be created or the embedded OSGi container could not be
+   *           started; these failures are thrown as well now.
    */
-  private static void resetFrameworkProperties() {
-    // FIXME avoid having to do this hack!!! equinox internal classes should be available via the
-    // jvm classloader
-    Class<FrameworkProperties> clazz = FrameworkProperties.class;
-    try {
-      Field propertiesField = clazz.getDeclaredField("properties");
-      propertiesField.setAccessible(true);
-      propertiesField.set(null, null);
-    } catch (NoSuchFieldException e) {
-      throw new RuntimeException(e);
-    } catch (SecurityException e) {
-      throw new RuntimeException(e);
-    } catch (IllegalArgumentException e) {
-      throw new RuntimeException(e);
-    } catch (IllegalAccessException e) {
-      throw new RuntimeException(e);
-    }
+  public static GenerationReport generate(final GenerationProperties parameters) {
+    return LQMG.generate(Collections.singletonList(parameters));
   }
 
-  private static Framework startOSGiContainer(final String[] bundleLocations,
-      final String tempDirPath) throws BundleException {
-
-    FrameworkFactory frameworkFactory = ServiceLoader
-        .load(FrameworkFactory.class).iterator().next();
-
-    Map<String, String> config = new HashMap<String, String>();
-    config.put("osgi.configuration.area", tempDirPath);
-    config.put("osgi.baseConfiguration.area", tempDirPath);
-    config.put("osgi.sharedConfiguration.area", tempDirPath);
-    config.put("osgi.instance.area", tempDirPath);
-    config.put("osgi.user.area", tempDirPath);
-    config.put("osgi.hook.configurators.exclude",
-        "org.eclipse.core.runtime.internal.adaptor.EclipseLogHook");
-
-    LQMG.resetFrameworkProperties();
-    Framework framework = frameworkFactory.newFramework(config);
-    framework.start();
+  /**
+   * Generate the JAVA classes to QueryDSL from LiquiBase XML for multiple capabilities. The
+   * embedded OSGi container is started only once and all jobs are processed with the same
+   * bundles.
+   *
+   * @param jobs
+   *          the generation jobs. All of them must have the same bundle locations. See more
+   *          {@link LQMGSession#generate(List)}.
+   * @return The timings and counts of the generation.
+   * @throws LQMGException
+   *           if a job fails or the embedded OSGi container could not be started.
+   */
+  public static GenerationReport generate(final List<GenerationProperties> jobs) {
+    return LQMG.generate(jobs, 1);
+  }
 
-    BundleContext systemBundleContext = framework.getBundleContext();
-    for (String bundleLocation : bundleLocations) {
-      try {
-        systemBundleContext.installBundle(bundleLocation);
-      } catch (BundleException e) {
-        LOGGER.log(Level.WARNING, "Could not start bundle " + bundleLocation, e);
-      }
+  /**
+   * Generate the JAVA classes to QueryDSL from LiquiBase XML for multiple capabilities in
+   * parallel. Every job uses its own in-memory database.
+   *
+   * @param jobs
+   *          the generation jobs. All of them must have the same bundle locations. See more
+   *          {@link LQMGSession#generate(List, int)}.
+   * @param parallelism
+   *          the maximum number of jobs that are processed at the same time.
+   * @return The timings and counts of the generation, including the cleanup of the embedded OSGi
+   *         container.   * @throws LQMGException
+   *           if a job fails or the embedded OSGi container could not be started.
+   */
+  public static GenerationReport generate(final List<GenerationProperties> jobs,
+      final int parallelism) {
+    try (LQMGSession session = new LQMGSession()) {
+      return session.generate(jobs, parallelism);
     }
-    FrameworkWiring frameworkWiring = framework
-        .adapt(FrameworkWiring.class);
-    frameworkWiring.resolveBundles(null);
-
-    return framework;
   }
 
-  private static void stopFramework(final Framework osgiContainer) {
-    if (osgiContainer != null) {
-      try {
-        osgiContainer.stop();
-        osgiContainer.waitForStop(0);
-      } catch (BundleException e) {
-        LOGGER.log(Level.SEVERE, "Could not stop embedded OSGi container during code generation",
-            e);
-      } catch (InterruptedException e) {
-        LOGGER.log(Level.SEVERE, "Stopping of embedded OSGi container was interrupted", e);
-        Thread.currentThread().interrupt();
-      }
+  /**
+   * Interprets the changelogs into a schema model without executing them on the database.
+   *
+   * @return The model or <code>null</code> if the changelogs contain a change that cannot be
+   *         interpreted, so they must be executed on the database.
+   */
+  private static SchemaModel interpretChangeLogs(final Connection connection,
+      final ResourceAccessor resourceAccessor, final String schemaResource,
+      final String contexts, final String defaultSchema,
+      final ConfigurationContainer configContainer, final GenerationReport report)
+      throws LiquibaseException {
+    Liquibase liquibase = LQMG.createLiquibase(connection, resourceAccessor, schemaResource,
+        defaultSchema, false, false);
+
+    LOGGER.log(Level.INFO, "Start interpreting the changelogs.");
+    ChangeLogParameters changeLogParameters = liquibase.getChangeLogParameters();
+    changeLogParameters.setContexts(new Contexts(contexts));
+    DatabaseChangeLog changeLog = ChangeLogParserFactory.getInstance()
+        .getParser(schemaResource, resourceAccessor)
+        .parse(schemaResource, changeLogParameters, resourceAccessor);
+
+    LQMGChangeExecListener lqmgChangeExecListener = new LQMGChangeExecListener(configContainer);
+    SchemaModelInterpreter interpreter =
+        new SchemaModelInterpreter(liquibase.getDatabase(), defaultSchema);
+    SchemaModel schemaModel = interpreter.interpret(changeLog, contexts, lqmgChangeExecListener);
+    if (schemaModel == null) {
+      LOGGER.log(Level.INFO, "Changelogs cannot be interpreted, running them on the database.");
+      return null;
     }
+    report.addChangeSets(lqmgChangeExecListener.getChangeSetCount());
+    report.addSkippedDataChanges(interpreter.getSkippedDataChangeCount());
+    report.addInterpretedSchemas(1);
+    LOGGER.log(Level.INFO, "Finish interpreting the changelogs.");
+    return schemaModel;
   }
 
-  private static void throwCapabilityNotFound(final GenerationProperties parameters,
-      final Framework osgiContainer) {
-
-    LQMG.logUnresolvedBundles(osgiContainer);
-
-    throw new LQMGException(
-        "Could not find matching capability in any of the bundles for schema expression: "
-            + parameters.capability,
-        null);
+  /**
+   * Checks whether the new changesets can be applied on the file based database of a job. The
+   * lock of a previous run that was killed is released.
+   *
+   * @return <code>false</code> if a changeset that was applied before changed or was removed from
+   *         the changelogs, so the database must be rebuilt.
+   */
+  private static boolean isIncrementalUpdatePossible(final Connection connection,
+      final ResourceAccessor resourceAccessor, final String schemaResource,
+      final String contexts, final String defaultSchema) throws LiquibaseException {
+    Liquibase liquibase = LQMG.createLiquibase(connection, resourceAccessor, schemaResource,
+        defaultSchema, false, false);
+    // The database is used only by this job, so a remaining lock belongs to a killed run
+    liquibase.forceReleaseLocks();
+    try {
+      liquibase.validate();
+    } catch (ValidationFailedException e) {
+      LOGGER.log(Level.INFO, "Changesets were modified since the previous run: " + e.getMessage());
+      return false;
+    }
+    if (!liquibase.listUnexpectedChangeSets(contexts).isEmpty()) {
+      LOGGER.log(Level.INFO, "Changesets were removed since the previous run.");
+      return false;
+    }
+    return true;
   }
 
-  private static void tryCodeGeneration(
-      final GenerationProperties parameters, final Bundle bundle,
-      final Map<String, Object> bundleCapabilityAttributes) {
+  static void tryCodeGeneration(final GenerationProperties parameters,
+      final ResourceAccessor resourceAccessor, final String schemaResource,
+      final String sourceHash, final GenerationReport report) {
 
+    long updateStartTime = System.nanoTime();
     LOGGER.log(Level.INFO, "Load driver.");
     Driver h2Driver = Driver.load();
     LOGGER.log(Level.INFO, "Loaded driver.");
+
+    String contexts = parameters.contexts;
+
+    if (contexts == null || "".equals(contexts.trim())) {
+      contexts = "lqmg";
+    } else {
+      contexts += ",lqmg";
+    }
+
+    String defaultSchema = parameters.defaultSchema;
+    IncrementalDatabase incrementalDatabase = null;
     Connection connection = null;
     try {
       LOGGER.log(Level.INFO, "Creating connection.");
-      String defaultSchema = parameters.defaultSchema;
-      String jdbcURL = LQMG.createDataBaseURL(defaultSchema);
-      connection = h2Driver.connect(jdbcURL, new Properties());
-      LOGGER.log(Level.INFO, "Created connection.");
-
-      LOGGER.log(Level.INFO, "Get database.");
-      AbstractJdbcDatabase database = new H2Database();
-      database.setCaseSensitive(true);
-      database.setObjectQuotingStrategy(ObjectQuotingStrategy.QUOTE_ALL_OBJECTS);
-      database.setLiquibaseSchemaName("PUBLIC");
-      if (defaultSchema != null) {
-        database.setDefaultSchemaName(defaultSchema);
+      if (parameters.databaseFolder != null) {
+        incrementalDatabase = IncrementalDatabase.open(new File(parameters.databaseFolder),
+            parameters.capability, contexts, defaultSchema);
+        connection = LQMG.connectIncrementalDatabase(h2Driver, incrementalDatabase, defaultSchema);
+        if ((connection == null) && (incrementalDatabase != null)) {
+          incrementalDatabase.close();
+          incrementalDatabase = null;
+        }
       }
-      database.setConnection(new JdbcConnection(connection));
-
-      LOGGER.log(Level.INFO, "Start LiquiBase and update.");
-
-      ResourceAccessor resourceAccessor =
-          new EOSGiResourceAccessor(bundle, bundleCapabilityAttributes);
-
-      String schemaResource =
-          (String) bundleCapabilityAttributes
-              .get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
-      Liquibase liquibase = new Liquibase(schemaResource, resourceAccessor, database);
+      if (connection == null) {
+        connection = h2Driver.connect(LQMG.createDataBaseURL(
+            "mem:lqmg-" + UUID.randomUUID().toString(), defaultSchema), new Properties());
+      }
+      LOGGER.log(Level.INFO, "Created connection.");
 
       ConfigurationContainer configContainer = new ConfigurationContainer();
 
@@ -353,21 +378,90 @@ public final class LQMG {
         configContainer.addConfiguration(new ConfigPath(null, parameters.configurationPath));
       }
 
-      ChangeExecListener lqmgChangeExecListener = new LQMGChangeExecListener(configContainer);
-      liquibase.setChangeExecListener(lqmgChangeExecListener);
-
-      String contexts = parameters.contexts;
-
-      if (contexts == null || "".equals(contexts.trim())) {
-        contexts = "lqmg";
-      } else {
-        contexts += ",lqmg";
+      // The configuration resources of the changes that are not executed by this run
+      List<ConfigPath> previousConfigPaths = null;
+      SchemaSnapshotCache snapshotCache = null;
+      String snapshotKey = null;
+      if (incrementalDatabase != null) {
+        previousConfigPaths = incrementalDatabase.readConfigPaths();
+        if ((previousConfigPaths == null) || !LQMG.isIncrementalUpdatePossible(connection,
+            resourceAccessor, schemaResource, contexts, defaultSchema)) {
+          LOGGER.log(Level.INFO,
+              "Rebuilding database " + incrementalDatabase.getDatabaseName() + ".");
+          try (Statement statement = connection.createStatement()) {
+            statement.execute("DROP ALL OBJECTS");
+          }
+          // A new connection does not share the state that Liquibase cached for the old one
+          connection.close();
+          connection = h2Driver.connect(
+              LQMG.createDataBaseURL(incrementalDatabase.getDatabaseName(), defaultSchema),
+              new Properties());
+          previousConfigPaths = Collections.emptyList();
+        }
+      } else if ((sourceHash != null) && (parameters.cacheFolder != null)) {
+        snapshotCache = new SchemaSnapshotCache(new File(parameters.cacheFolder, "schema"),
+            parameters.cacheMaxSize);
+        snapshotKey = SchemaSnapshotCache.calculateKey(sourceHash, parameters.capability,
+            schemaResource, contexts, defaultSchema);
+        try {
+          previousConfigPaths = snapshotCache.restore(snapshotKey, connection);
+        } catch (SQLException e) {
+          LOGGER.log(Level.WARNING, "Could not restore schema snapshot " + snapshotKey
+              + ", running the changelogs on a new database.", e);
+          snapshotCache.remove(snapshotKey);
+          connection.close();
+          connection = h2Driver.connect(LQMG.createDataBaseURL(
+              "mem:lqmg-" + UUID.randomUUID().toString(), defaultSchema), new Properties());
+        }
       }
 
-      liquibase.update(contexts);
-      LOGGER.log(Level.INFO, "Finish LiquiBase and update.");
+      boolean snapshotRestored = (previousConfigPaths != null) && (incrementalDatabase == null);
+      SchemaModel schemaModel = null;
+      if (snapshotRestored) {
+        for (ConfigPath configPath : previousConfigPaths) {
+          configContainer.addConfiguration(configPath);
+        }
+        LOGGER.log(Level.INFO, "Restored schema snapshot " + snapshotKey + ".");
+        report.addRestoredSchemas(1);
+      } else if (parameters.schemaModel && (incrementalDatabase == null)) {
+        schemaModel = LQMG.interpretChangeLogs(connection, resourceAccessor, schemaResource,
+            contexts, defaultSchema, configContainer, report);
+      }
 
-      LQMG.exportMetaData(parameters, connection, configContainer);
+      if (!snapshotRestored && (schemaModel == null)) {
+        LQMGChangeExecListener lqmgChangeExecListener = LQMG.updateDatabase(connection,
+            resourceAccessor, schemaResource, contexts, defaultSchema, parameters.schemaOnly,
+            incrementalDatabase == null, configContainer, report);
+        report.addChangeSets(lqmgChangeExecListener.getChangeSetCount());
+        List<ConfigPath> executedConfigPaths = lqmgChangeExecListener.getConfigPaths();
+
+        if (incrementalDatabase != null) {
+          List<ConfigPath> allConfigPaths = IncrementalDatabase
+              .findUnreferencedConfigPaths(previousConfigPaths, executedConfigPaths);
+          for (ConfigPath configPath : allConfigPaths) {
+            configContainer.addConfiguration(configPath);
+          }
+          allConfigPaths.addAll(executedConfigPaths);
+          incrementalDatabase.storeConfigPaths(allConfigPaths);
+        } else if (snapshotCache != null) {
+          snapshotCache.store(snapshotKey, connection, executedConfigPaths);
+          snapshotCache.evict();
+        }
+      }
+      DatabaseMetaData metaData = (schemaModel != null)
+          ? SchemaModelMetaData.create(schemaModel, connection.getMetaData())
+          : connection.getMetaData();
+      report.addDuration(Phase.LIQUIBASE_UPDATE, System.nanoTime() - updateStartTime);
+      report.addTables(LQMG.countTables(metaData));
+
+      long exportStartTime = System.nanoTime();
+      // File systems with coarse timestamps round the modification time down to the second
+      long exportStartMillis =
+          (System.currentTimeMillis() / MILLIS_PER_SECOND) * MILLIS_PER_SECOND;
+      LQMG.exportMetaData(parameters, metaData, configContainer);
+      report.addDuration(Phase.METADATA_EXPORT, System.nanoTime() - exportStartTime);
+      report.addWrittenFiles(
+          LQMG.countWrittenFiles(new File(parameters.targetFolder), exportStartMillis));
     } catch (SQLException e) {
       LOGGER.log(Level.SEVERE, e.getMessage(), e);
       // error to create connection.
@@ -382,19 +476,52 @@ public final class LQMG {
               + parameters.capability,
           e);
     } finally {
-      if (connection != null) {
-        try {
+      try {
+        if (connection != null) {
           connection.close();
           LOGGER.log(Level.INFO, "Connection closed.");
-        } catch (SQLException e) {
-          LOGGER.log(Level.SEVERE, e.getMessage(), e);
-          throw new LQMGException(
-              "Closing the connection was unsuccessful.", e);
+        }
+      } catch (SQLException e) {
+        LOGGER.log(Level.SEVERE, e.getMessage(), e);
+        throw new LQMGException(
+            "Closing the connection was unsuccessful.", e);
+      } finally {
+        if (incrementalDatabase != null) {
+          incrementalDatabase.close();
         }
       }
     }
   }
 
+  /**
+   * Runs the changelogs on the database. The history of the changesets is kept in memory if the
+   * database is thrown away after the generation.
+   *
+   * @return The listener that collected the executed changes.
+   */
+  private static LQMGChangeExecListener updateDatabase(final Connection connection,
+      final ResourceAccessor resourceAccessor, final String schemaResource,
+      final String contexts, final String defaultSchema, final boolean schemaOnly,
+      final boolean inMemoryHistory, final ConfigurationContainer configContainer,
+      final GenerationReport report) throws LiquibaseException {
+    Liquibase liquibase = LQMG.createLiquibase(connection, resourceAccessor, schemaResource,
+        defaultSchema, schemaOnly, inMemoryHistory);
+
+    LOGGER.log(Level.INFO, "Start LiquiBase and update.");
+    LQMGChangeExecListener lqmgChangeExecListener = new LQMGChangeExecListener(configContainer);
+    liquibase.setChangeExecListener(lqmgChangeExecListener);
+    ((LQMGH2Database) liquibase.getDatabase()).checkInMemoryServices();
+    liquibase.update(contexts);
+    if (schemaOnly) {
+      int skippedChangeCount =
+          ((LQMGH2Database) liquibase.getDatabase()).getSkippedChangeCount();
+      LOGGER.log(Level.INFO, "Skipped " + skippedChangeCount + " data changes.");
+      report.addSkippedDataChanges(skippedChangeCount);
+    }
+    LOGGER.log(Level.INFO, "Finish LiquiBase and update.");
+    return lqmgChangeExecListener;
+  }
+
   /**
    * Simple constructor.
    */
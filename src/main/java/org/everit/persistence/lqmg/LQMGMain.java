@@ -29,10 +29,18 @@ public final class LQMGMain {
 
   public static final String ARG_BUNDLES = "bundles";
 
+  public static final String ARG_CACHE_FOLDER = "cacheFolder";
+
   public static final String ARG_CAPABILITY = "capability";
 
+  public static final String ARG_CONTAINER = "container";
+
+  public static final String ARG_DATABASE_FOLDER = "databaseFolder";
+
   public static final String ARG_DEFAULT_SCHEMA = "defaultSchema";
 
+  public static final String ARG_FRAMEWORK_FREE_RESOLUTION = "frameworkFreeResolution";
+
   public static final String ARG_HACK_WIRES = "hackWires";
 
   public static final String ARG_INNER_CLASSES_FOR_KEYS = "innerClassesForKeys";
@@ -43,6 +51,14 @@ public final class LQMGMain {
 
   public static final String ARG_PACKAGES = "packages";
 
+  public static final String ARG_REPORT_FILE = "reportFile";
+
+  public static final String ARG_SCHEMA_MODEL = "schemaModel";
+
+  public static final String ARG_SCHEMA_ONLY = "schemaOnly";
+
+  public static final String ARG_SYNTHETIC_PROVIDERS = "syntheticProviders";
+
   private static String evaluateMandatoryOptionValue(final String key,
       final CommandLine commandLine,
       final Options options) {
@@ -80,8 +96,34 @@ public final class LQMGMain {
     options.addOption("h", ARG_HACK_WIRES, true,
         "Whether to try redeploy bundles with unsatisfied constraintsin"
             + " the way that their requirements are changed to be optional. Default: true");
+    options.addOption("sp", ARG_SYNTHETIC_PROVIDERS, true,
+        "Whether to satisfy the missing requirements with synthetic bundles before resolving"
+            + " instead of redeploying the bundles. Used only if hackWires is true."
+            + " Default: false");
+    options.addOption("ffr", ARG_FRAMEWORK_FREE_RESOLUTION, true,
+        "Whether to read the changelogs directly from the jars and directories of the bundles and"
+            + " start the embedded OSGi container only if they cannot be resolved that way. Used"
+            + " only if hackWires is true. Default: false");
     options.addOption("h", ARG_INNER_CLASSES_FOR_KEYS, true,
         "Whether to generate inner classes for constraints. Default: true");
+    options.addOption("cf", ARG_CACHE_FOLDER, true,
+        "Optional folder where the state of the embedded OSGi container is cached between the"
+            + " runs. If not defined, the bundles are installed and resolved on every run.");
+    options.addOption("df", ARG_DATABASE_FOLDER, true,
+        "Optional folder where the databases are kept between the runs, so only the new"
+            + " changesets are applied. If not defined, all changesets are applied on every run.");
+    options.addOption("sm", ARG_SCHEMA_MODEL, true,
+        "Whether to interpret the changelogs into a schema model instead of running them on a"
+            + " database. Changelogs with raw SQL are run on the database. Default: false");
+    options.addOption("so", ARG_SCHEMA_ONLY, true,
+        "Whether to skip the insert, update, delete and loadData changes that do not alter the"
+            + " structure of the tables. Default: false");
+    options.addOption("ct", ARG_CONTAINER, true,
+        "The embedded OSGi framework that resolves the bundles: equinox or felix. Felix must be on"
+            + " the classpath. Default: equinox");
+    options.addOption("r", ARG_REPORT_FILE, true,
+        "Optional path of a file where the timings and counts of the generation are written in"
+            + " JSON format.");
     options.addOption("ds", ARG_DEFAULT_SCHEMA, true,
         "Default schema where tables will be generated. This schema will be passed in the "
             + "constructor of the generated metadata classes where the liquibase changelog file "
@@ -106,14 +148,29 @@ public final class LQMGMain {
     String packages = commandLine.getOptionValue(ARG_PACKAGES);
     String configurationXMLPath = commandLine.getOptionValue(ARG_LQMG_CONFIG_XML);
     String hackWires = commandLine.getOptionValue(ARG_HACK_WIRES);
+    String frameworkFreeResolution = commandLine.getOptionValue(ARG_FRAMEWORK_FREE_RESOLUTION);
     String innerClassesForKeys = commandLine.getOptionValue(ARG_INNER_CLASSES_FOR_KEYS);
     String defaultSchema = commandLine.getOptionValue(ARG_DEFAULT_SCHEMA);
+    String cacheFolder = commandLine.getOptionValue(ARG_CACHE_FOLDER);
+    String databaseFolder = commandLine.getOptionValue(ARG_DATABASE_FOLDER);
+    String reportFile = commandLine.getOptionValue(ARG_REPORT_FILE);
+    String syntheticProviders = commandLine.getOptionValue(ARG_SYNTHETIC_PROVIDERS);
+    String container = commandLine.getOptionValue(ARG_CONTAINER);
+    String schemaModel = commandLine.getOptionValue(ARG_SCHEMA_MODEL);
+    String schemaOnly = commandLine.getOptionValue(ARG_SCHEMA_ONLY);
 
     GenerationProperties generationProps =
         new GenerationProperties(changelog, bundles.split("\\;"), outputFolder);
 
     generationProps.setConfigurationPath(configurationXMLPath);
     generationProps.setDefaultSchema(defaultSchema);
+    generationProps.setCacheFolder(cacheFolder);
+    generationProps.setDatabaseFolder(databaseFolder);
+    generationProps.setReportFile(reportFile);
+
+    if (container != null) {
+      generationProps.setContainer(container);
+    }
 
     if (packages != null) {
       generationProps.setPackages(packages.split("\\,"));
@@ -123,6 +180,22 @@ public final class LQMGMain {
       generationProps.setHackWires(Boolean.valueOf(hackWires));
     }
 
+    if (frameworkFreeResolution != null) {
+      generationProps.setFrameworkFreeResolution(Boolean.valueOf(frameworkFreeResolution));
+    }
+
+    if (syntheticProviders != null) {
+      generationProps.setSyntheticProviders(Boolean.valueOf(syntheticProviders));
+    }
+
+    if (schemaModel != null) {
+      generationProps.setSchemaModel(Boolean.valueOf(schemaModel));
+    }
+
+    if (schemaOnly != null) {
+      generationProps.setSchemaOnly(Boolean.valueOf(schemaOnly));
+    }
+
     if (innerClassesForKeys != null) {
       generationProps.setHackWires(Boolean.valueOf(innerClassesForKeys));
     }
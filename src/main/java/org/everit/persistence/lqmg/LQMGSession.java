@@ -0,0 +1,1157 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.lqmg.GenerationReport.Phase;
+import org.everit.persistence.lqmg.internal.BundleLocationUtil;
+import org.everit.persistence.lqmg.internal.BundleWithAttributes;
+import org.everit.persistence.lqmg.internal.ChangelogCapabilityIndex;
+import org.everit.persistence.lqmg.internal.EmbeddedContainer;
+import org.everit.persistence.lqmg.internal.EquinoxContainer;
+import org.everit.persistence.lqmg.internal.FelixContainer;
+import org.everit.persistence.lqmg.internal.HackStatistics;
+import org.everit.persistence.lqmg.internal.HackedBundleCache;
+import org.everit.persistence.lqmg.internal.SchemaSnapshotCache;
+import org.everit.persistence.lqmg.internal.StorageAreaCache;
+import org.everit.persistence.lqmg.internal.SyntheticProviderBuilder;
+import org.everit.persistence.lqmg.internal.SyntheticProviderResolverHookFactory;
+import org.everit.persistence.lqmg.internal.liquibase.LocalBundleChangeLogParser;
+import org.everit.persistence.lqmg.internal.liquibase.LocalBundleResourceAccessor;
+import org.everit.persistence.lqmg.internal.liquibase.UnresolvedLocalBundleException;
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
+import org.everit.persistence.lqmg.internal.manifest.BundleManifestReader;
+import org.everit.persistence.lqmg.internal.manifest.CapabilityDescriptor;
+import org.everit.persistence.lqmg.internal.manifest.DependencyClosure;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.hooks.resolver.ResolverHookFactory;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * A generation session that keeps the embedded OSGi container running between generation
+ * requests. The bundles are installed and resolved when they are needed the first time and they
+ * are re-installed only if their location or content changed. Based on the manifest headers of the
+ * bundles, only the ones in the dependency closure of the requested capabilities are installed.
+ * The session must be closed to stop the embedded OSGi container and to delete its temporary
+ * files. If the first generation request of the session specifies a
+ * {@link GenerationProperties#cacheFolder}, the storage area of the container is kept in the cache
+ * folder and it is reused by the next session that has the same bundles. Instances of this class
+ * are not thread-safe, but multiple sessions can be used at the same time within the same JVM.
+ */
+public class LQMGSession implements Closeable {
+
+  /**
+   * A generation job with the resource accessor that reads its changelogs and the hash of the
+   * bundles that provide the changelogs.
+   */
+  private static class GenerationTask implements Runnable {
+
+    final GenerationProperties job;
+
+    final GenerationReport report;
+
+    final ResourceAccessor resourceAccessor;
+
+    final String schemaResource;
+
+    /**
+     * The hash of the bundles that provide the changelogs or <code>null</code> if the schema should
+     * not be cached.
+     */
+    final String sourceHash;
+
+    GenerationTask(final GenerationProperties job, final ResourceAccessor resourceAccessor,
+        final String schemaResource, final String sourceHash, final GenerationReport report) {
+      this.job = job;
+      this.resourceAccessor = resourceAccessor;
+      this.schemaResource = schemaResource;
+      this.sourceHash = sourceHash;
+      this.report = report;
+    }
+
+    @Override
+    public void run() {
+      LQMG.tryCodeGeneration(job, resourceAccessor, schemaResource, sourceHash, report);
+    }
+  }
+
+  /**
+   * A bundle installed into the embedded OSGi container with the fingerprint of its content at the
+   * time of the installation.
+   */
+  private static class InstalledBundle {
+
+    final Bundle bundle;
+
+    final String fingerprint;
+
+    InstalledBundle(final Bundle bundle, final String fingerprint) {
+      this.bundle = bundle;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  /**
+   * Some frameworks (e.g. Equinox) keep the properties of the launched framework in a static field.
+   * Therefore the operations that start, stop or modify an embedded OSGi container are serialized
+   * within the JVM and every session activates the global state of its own container before using
+   * it. The Liquibase update and the meta data export of the sessions are not serialized.
+   */
+  private static final Object FRAMEWORK_LOCK = new Object();
+
+  /**
+   * The {@link Logger} instance for logging.
+   */
+  private static final Logger LOGGER = Logger.getLogger(LQMGSession.class.getName());
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /**
+   * Calculates the hash of the bundles that provide the changelogs that a job can use based on the
+   * manifest headers of the bundles.
+   *
+   * @return The hash or <code>null</code> if the job does not use a cache folder, the manifest of
+   *         a bundle could not be read or the bundles cannot be hashed.
+   */
+  private static String calculateSourceHash(final GenerationProperties job,
+      final DependencyClosure dependencyClosure) {
+    if ((job.cacheFolder == null) || (dependencyClosure == null)) {
+      return null;
+    }
+    Set<BundleDescriptor> closure =
+        dependencyClosure.resolve(Collections.singleton(job.capability));
+    if (closure == null) {
+      return null;
+    }
+    Set<String> changelogProviderLocations = new TreeSet<String>();
+    for (BundleDescriptor descriptor : closure) {
+      for (CapabilityDescriptor capability : descriptor.capabilities) {
+        if (DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG.equals(capability.namespace)) {
+          changelogProviderLocations.add(descriptor.location);
+        }
+      }
+    }
+    return SchemaSnapshotCache.calculateSourceHash(changelogProviderLocations);
+  }
+
+  private static EmbeddedContainer createContainer(final String name) {
+    if ((name == null) || GenerationProperties.CONTAINER_EQUINOX.equals(name)) {
+      return new EquinoxContainer();
+    }
+    if (GenerationProperties.CONTAINER_FELIX.equals(name)) {
+      return new FelixContainer();
+    }
+    throw new LQMGException("Unknown embedded OSGi container: " + name, null);
+  }
+
+  private static File createTempDirectory() throws IOException {
+    final File temp = File.createTempFile("lqmg-",
+        Long.toString(System.nanoTime()));
+
+    if (!(temp.delete())) {
+      throw new IOException("Could not delete temp file: "
+          + temp.getAbsolutePath());
+    }
+
+    if (!(temp.mkdir())) {
+      throw new IOException("Could not create temp directory: "
+          + temp.getAbsolutePath());
+    }
+
+    return temp;
+  }
+
+  private static void deleteFolder(final File folder) {
+
+    if (folder == null) {
+      return;
+    }
+
+    File[] files = folder.listFiles();
+    if (files != null) { // some JVMs return null for empty dirs
+      for (File f : files) {
+        if (f.isDirectory()) {
+          LQMGSession.deleteFolder(f);
+        } else {
+          if (!f.delete()) {
+            LOGGER.warning("Failed to delete file [" + f.getAbsolutePath() + "]");
+          }
+        }
+      }
+    }
+    if (!folder.delete()) {
+      LOGGER.warning("Failed to delete folder [" + folder.getAbsolutePath() + "]");
+    }
+  }
+
+  /**
+   * Marks every job with the specified indexes as failed with the same cause.
+   */
+  private static void setFailures(final RuntimeException[] failures,
+      final List<Integer> jobIndexes, final String msg, final Throwable cause) {
+    for (Integer jobIndex : jobIndexes) {
+      failures[jobIndex] = new LQMGException(msg, cause);
+    }
+  }
+
+  /**
+   * The framework implementation of the running embedded OSGi container.
+   */
+  private EmbeddedContainer container;
+
+  /**
+   * The state that the framework of the container keeps in static fields.
+   */
+  private Object containerGlobalState;
+
+  private final Map<String, InstalledBundle> installedBundles =
+      new LinkedHashMap<String, InstalledBundle>();
+
+  /**
+   * The cache of the hacked bundles or <code>null</code> if no cache folder is configured.
+   */
+  private HackedBundleCache hackedBundleCache;
+
+  private Framework osgiContainer;
+
+  /**
+   * The report of the last generation request. The cleanup phase is added to it when the session
+   * is closed.
+   */
+  private GenerationReport report;
+
+  /**
+   * The file where the report of the last generation request is written or <code>null</code>.
+   */
+  private File reportFile;
+
+  /**
+   * The storage area of the embedded OSGi container if it comes from a {@link StorageAreaCache}.
+   */
+  private StorageAreaCache.Area storageArea;
+
+  private StorageAreaCache storageAreaCache;
+
+  private File storageDirectory;
+
+  /**
+   * The manifest-only bundles that provide the requirements that none of the bundles satisfy.
+   */
+  private final List<Bundle> syntheticBundles = new ArrayList<Bundle>();
+
+  private void activateContainerGlobalState() {
+    if (container != null) {
+      container.restoreGlobalState(containerGlobalState);
+    }
+  }
+
+  private void checkMatchingBundleResourceSize(final GenerationProperties parameters,
+      final List<BundleWithAttributes> bundleResources) {
+    if (bundleResources.size() > 1) {
+      LOGGER.log(Level.WARNING,
+          "Found multiple bundles containing matching capabilities for schema"
+              + " expression: '" + parameters.capability
+              + "'. Using the first one from list: "
+              + bundleResources.toString());
+    }
+  }
+
+  /**
+   * Stops the embedded OSGi container and deletes its temporary files. A cached storage area is
+   * kept and the least recently used areas are evicted from the cache if it grew too big. The
+   * session can be used again after closing; in that case a new container is started when the next
+   * generation request arrives.
+   */
+  @Override
+  public void close() {
+    long startTime = System.nanoTime();
+    synchronized (FRAMEWORK_LOCK) {
+      try {
+        activateContainerGlobalState();
+        stopFramework();
+      } finally {
+        osgiContainer = null;
+        container = null;
+        containerGlobalState = null;
+        installedBundles.clear();
+        syntheticBundles.clear();
+        releaseStorageDirectory();
+      }
+    }
+    if (report != null) {
+      report.addDuration(Phase.CLEANUP, System.nanoTime() - startTime);
+      writeReport();
+      report = null;
+      reportFile = null;
+    }
+  }
+
+  private GenerationTask createBundleTask(final GenerationProperties job,
+      final BundleWithAttributes bundleResource, final String sourceHash) {
+    return new GenerationTask(job,
+        new EOSGiResourceAccessor(bundleResource.bundle, bundleResource.attributes),
+        (String) bundleResource.attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE),
+        sourceHash, report);
+  }
+
+  /**
+   * Creates a task that runs the job without the embedded OSGi container by reading the changelogs
+   * directly from the bundle jars and directories.
+   *
+   * @return The task or <code>null</code> if the job cannot be processed without the container.
+   */
+  private GenerationTask createLocalBundleTask(final GenerationProperties job,
+      final DependencyClosure dependencyClosure, final String sourceHash) {
+
+    if (!job.hackWires || !job.frameworkFreeResolution) {
+      return null;
+    }
+
+    List<CapabilityDescriptor> capabilities =
+        dependencyClosure.findChangelogCapabilities(job.capability);
+    if (capabilities.size() == 0) {
+      return null;
+    }
+    CapabilityDescriptor capability = capabilities.get(0);
+    String schemaResource =
+        (String) capability.attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
+    if (schemaResource == null) {
+      return null;
+    }
+
+    if (capabilities.size() > 1) {
+      LOGGER.log(Level.WARNING,
+          "Found multiple capabilities for schema expression: '" + job.capability
+              + "'. Using the first one from list: " + capabilities.toString());
+    }
+
+    LocalBundleChangeLogParser.registerIfNecessary();
+    return new GenerationTask(job, new LocalBundleResourceAccessor(capability.bundle,
+        capability.attributes, dependencyClosure), schemaResource, sourceHash, report);
+  }
+
+  private LQMGException createCapabilityNotFoundException(final GenerationProperties parameters) {
+
+    logUnresolvedBundles(parameters.capability);
+
+    return new LQMGException(
+        "Could not find matching capability in any of the bundles for schema expression: "
+            + parameters.capability,
+        null);
+  }
+
+  /**
+   * Finds the bundle resources of the jobs. Hacks the wires of the unresolved bundles if there is
+   * at least one job that needs it.
+   *
+   * @return The bundle resources in the order of the jobs. If there is no matching capability for
+   *         a job, the element of the list is <code>null</code>.
+   */
+  private List<BundleWithAttributes> findBundleResources(final List<GenerationProperties> jobs,
+      final List<BundleDescriptor> descriptors) {
+    long startTime = System.nanoTime();
+    BundleContext systemBundleContext = osgiContainer.getBundleContext();
+    ChangelogCapabilityIndex changelogIndex =
+        new ChangelogCapabilityIndex(systemBundleContext.getBundles(), Bundle.RESOLVED);
+    List<List<BundleWithAttributes>> bundleResourcesOfJobs =
+        new ArrayList<List<BundleWithAttributes>>();
+    List<String> hackedCapabilityExpressions = new ArrayList<String>();
+    for (GenerationProperties job : jobs) {
+      List<BundleWithAttributes> bundleResources =
+          changelogIndex.findBySchemaExpression(job.capability);
+      bundleResourcesOfJobs.add(bundleResources);
+
+      if (bundleResources.size() == 0) {
+        if (job.hackWires) {
+          hackedCapabilityExpressions.add(job.capability);
+        } else {
+          LOGGER.severe("No matching bundle found for schema expression '" + job.capability
+              + "'. Probably setting hackWires to true would help");
+        }
+      }
+    }
+
+    report.addDuration(Phase.CAPABILITY_LOOKUP, System.nanoTime() - startTime);
+
+    if (!hackedCapabilityExpressions.isEmpty()) {
+      LOGGER.info(
+          "No matching bundle found. Trying to find unresolved bundles and hack their wires.");
+      Map<String, Manifest> originalManifests = new HashMap<String, Manifest>();
+      for (BundleDescriptor descriptor : descriptors) {
+        if (descriptor != null) {
+          originalManifests.put(BundleLocationUtil.toInstallLocation(descriptor.location),
+              descriptor.manifest);
+        }
+      }
+      long hackStartTime = System.nanoTime();
+      HackStatistics hackStatistics = container.getHackUtil().hackBundles(osgiContainer,
+          storageDirectory, originalManifests, hackedBundleCache, hackedCapabilityExpressions);
+      long resolveStartTime = System.nanoTime();
+      report.addDuration(Phase.WIRE_HACKING, resolveStartTime - hackStartTime);
+      report.addHackedBundles(hackStatistics.hackedBundleCount, hackStatistics.threadCount,
+          hackStatistics.getSavedDuration());
+      LOGGER.info("Hacked " + hackStatistics.hackedBundleCount + " bundles on "
+          + hackStatistics.threadCount + " threads, saving "
+          + (hackStatistics.getSavedDuration() / NANOS_PER_MILLI) + "ms");
+      FrameworkWiring frameworkWiring = osgiContainer.adapt(FrameworkWiring.class);
+      frameworkWiring.resolveBundles(null);
+      long lookupStartTime = System.nanoTime();
+      report.addDuration(Phase.RESOLVE, lookupStartTime - resolveStartTime);
+
+      changelogIndex =
+          new ChangelogCapabilityIndex(systemBundleContext.getBundles(), Bundle.RESOLVED);
+      for (int i = 0, n = jobs.size(); i < n; i++) {
+        GenerationProperties job = jobs.get(i);
+        if (job.hackWires && (bundleResourcesOfJobs.get(i).size() == 0)) {
+          bundleResourcesOfJobs.set(i, changelogIndex.findBySchemaExpression(job.capability));
+        }
+      }
+      report.addDuration(Phase.CAPABILITY_LOOKUP, System.nanoTime() - lookupStartTime);
+    }
+
+    List<BundleWithAttributes> result = new ArrayList<BundleWithAttributes>(jobs.size());
+    for (int i = 0, n = jobs.size(); i < n; i++) {
+      GenerationProperties job = jobs.get(i);
+      List<BundleWithAttributes> bundleResources = bundleResourcesOfJobs.get(i);
+      if (bundleResources.size() == 0) {
+        result.add(null);
+      } else {
+        checkMatchingBundleResourceSize(job, bundleResources);
+        result.add(bundleResources.get(0));
+      }
+    }
+    return result;
+  }
+
+  private void finishReport(final RuntimeException[] failures) {
+    for (RuntimeException failure : failures) {
+      if (failure != null) {
+        report.addFailedJobs(1);
+      }
+    }
+    report.finish();
+    LOGGER.info(report.toString());
+    writeReport();
+  }
+
+  /**
+   * Runs a batch of generation jobs against the bundles of an OSGi framework that is already
+   * running, e.g. the framework that LQMG is deployed into. No embedded OSGi container is started,
+   * no bundles are installed and the wires are not hacked: the changelog capabilities are looked up
+   * in the bundles that are resolved in the host framework and Liquibase reads the changelogs
+   * through those bundles. The bundle locations, the cache and the wire hacking settings of the
+   * jobs are ignored.
+   *
+   * @param hostBundleContext
+   *          A bundle context of the host framework.
+   * @param jobs
+   *          The generation jobs. The target folders of the jobs should not overlap.
+   * @param parallelism
+   *          The maximum number of jobs that are processed at the same time.
+   * @return The timings and counts of the generation. The report is also written to the
+   *         {@link GenerationProperties#reportFile} of the first job, even if the generation fails.
+   * @throws IllegalArgumentException
+   *           if the parallelism is not a positive number.
+   * @see #generate(List, int)
+   */
+  public GenerationReport generate(final BundleContext hostBundleContext,
+      final List<GenerationProperties> jobs, final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be a positive number: " + parallelism);
+    }
+    report = new GenerationReport();
+    reportFile = null;
+    if (jobs.size() == 0) {
+      report.finish();
+      return report;
+    }
+    if (jobs.get(0).reportFile != null) {
+      reportFile = new File(jobs.get(0).reportFile);
+    }
+    report.addJobs(jobs.size());
+
+    RuntimeException[] failures = new RuntimeException[jobs.size()];
+    try {
+      long startTime = System.nanoTime();
+      ChangelogCapabilityIndex changelogIndex = new ChangelogCapabilityIndex(
+          hostBundleContext.getBundles(), Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE);
+      // Every job reads its changelogs from the same providers, so they are hashed only once
+      String providerHash = null;
+      for (GenerationProperties job : jobs) {
+        if (job.cacheFolder != null) {
+          providerHash =
+              SchemaSnapshotCache.calculateSourceHash(changelogIndex.getProviderLocations());
+          break;
+        }
+      }
+      List<GenerationTask> tasks = new ArrayList<GenerationTask>(jobs.size());
+      for (int i = 0, n = jobs.size(); i < n; i++) {
+        GenerationProperties job = jobs.get(i);
+        List<BundleWithAttributes> bundleResources =
+            changelogIndex.findBySchemaExpression(job.capability);
+        if (bundleResources.size() == 0) {
+          failures[i] = createCapabilityNotFoundException(job);
+          tasks.add(null);
+        } else {
+          checkMatchingBundleResourceSize(job, bundleResources);
+          String sourceHash = (job.cacheFolder != null) ? providerHash : null;
+          tasks.add(createBundleTask(job, bundleResources.get(0), sourceHash));
+        }
+      }
+      report.addDuration(Phase.CAPABILITY_LOOKUP, System.nanoTime() - startTime);
+
+      runTasks(tasks, parallelism, failures);
+    } finally {
+      finishReport(failures);
+    }
+
+    throwFailures(jobs, failures);
+    return report;
+  }
+
+  /**
+   * Generate the JAVA classes to QueryDSL from LiquiBase XML. The embedded OSGi container is
+   * started if it is not running yet and the bundles of the request are synchronized with the ones
+   * that are already installed.
+   *
+   * @param parameters
+   *          the parameters for the generation. See more {@link GenerationProperties}.
+   * @return The timings and counts of the generation.
+   * @throws LQMGException
+   *           if the generation fails or the embedded OSGi container could not be started.
+   */
+  public GenerationReport generate(final GenerationProperties parameters) {
+    return generate(Collections.singletonList(parameters));
+  }
+
+  /**
+   * Runs a batch of generation jobs against one shared set of bundles. The bundles are installed,
+   * resolved and their wires are hacked (if necessary) only once, after that every job runs its
+   * own Liquibase update and meta data export. The jobs are processed one after the other.
+   *
+   * @param jobs
+   *          The generation jobs. All of them must have the same bundle locations.
+   * @throws IllegalArgumentException
+   *           if the bundle locations of the jobs are not the same.
+   * @see #generate(List, int)
+   */
+  public GenerationReport generate(final List<GenerationProperties> jobs) {
+    return generate(jobs, 1);
+  }
+
+  /**
+   * Runs a batch of generation jobs against one shared set of bundles. The bundles are installed,
+   * resolved and their wires are hacked (if necessary) only once, after that the jobs run their own
+   * Liquibase update and meta data export on a worker pool. Every job uses a separate in-memory
+   * database. A failing job does not stop the processing of the other ones; the failures are
+   * thrown after all jobs are finished. If only one job failed, its exception is thrown as it is,
+   * otherwise an {@link LQMGException} is thrown with the exception of the first failed job as the
+   * cause and the exceptions of the other failed jobs as suppressed exceptions.
+   *
+   * @param jobs
+   *          The generation jobs. All of them must have the same bundle locations and the target
+   *          folders of the jobs should not overlap.
+   * @param parallelism
+   *          The maximum number of jobs that are processed at the same time.
+   * @return The timings and counts of the generation. The report is also written to the
+   *         {@link GenerationProperties#reportFile} of the first job, even if the generation fails.
+   *         The cleanup phase is added to the report when the session is closed.
+   * @throws IllegalArgumentException
+   *           if the bundle locations of the jobs are not the same or the parallelism is not a
+   *           positive number.   * @throws LQMGException
+   *           if the temp directory of the container could not be created or the embedded OSGi
+   *           container could not be started. In that case none of the jobs are processed.
+   */
+  public GenerationReport generate(final List<GenerationProperties> jobs,
+      final int parallelism) {
+    if (parallelism < 1) {
+      throw new IllegalArgumentException("Parallelism must be a positive number: " + parallelism);
+    }
+    report = new GenerationReport();
+    reportFile = null;
+    if (jobs.size() == 0) {
+      report.finish();
+      return report;
+    }
+
+    String[] bundleLocations = jobs.get(0).bundleLocations;
+    for (GenerationProperties job : jobs) {
+      if (!Arrays.equals(bundleLocations, job.bundleLocations)) {
+        throw new IllegalArgumentException(
+            "All generation jobs of a batch must have the same bundle locations. Expected: "
+                + Arrays.toString(bundleLocations) + ", found: "
+                + Arrays.toString(job.bundleLocations));
+      }
+    }
+
+    if (jobs.get(0).reportFile != null) {
+      reportFile = new File(jobs.get(0).reportFile);
+    }
+    report.addJobs(jobs.size());
+    report.addBundles(bundleLocations.length);
+
+    RuntimeException[] failures = new RuntimeException[jobs.size()];
+    try {
+      long scanStartTime = System.nanoTime();
+      List<BundleDescriptor> descriptors = BundleManifestReader.readAll(bundleLocations);
+      List<BundleDescriptor> knownDescriptors = new ArrayList<BundleDescriptor>();
+      for (BundleDescriptor descriptor : descriptors) {
+        if (descriptor != null) {
+          knownDescriptors.add(descriptor);
+        }
+      }
+      DependencyClosure dependencyClosure = new DependencyClosure(knownDescriptors);
+      report.addDuration(Phase.MANIFEST_SCAN, System.nanoTime() - scanStartTime);
+
+      // A changelog provider might be missing from the closure if a manifest could not be read
+      DependencyClosure sourceClosure =
+          (knownDescriptors.size() == descriptors.size()) ? dependencyClosure : null;
+      String[] sourceHashes = new String[jobs.size()];
+      List<GenerationTask> localBundleTasks = new ArrayList<GenerationTask>(jobs.size());
+      for (int i = 0, n = jobs.size(); i < n; i++) {
+        GenerationProperties job = jobs.get(i);
+        sourceHashes[i] = LQMGSession.calculateSourceHash(job, sourceClosure);
+        localBundleTasks.add(createLocalBundleTask(job, dependencyClosure, sourceHashes[i]));
+      }
+      runTasks(localBundleTasks, parallelism, failures);
+
+      List<Integer> containerJobIndexes = new ArrayList<Integer>();
+      for (int i = 0, n = jobs.size(); i < n; i++) {
+        if (localBundleTasks.get(i) == null) {
+          containerJobIndexes.add(i);
+        } else if ((failures[i] != null)
+            && UnresolvedLocalBundleException.isCauseOf(failures[i])) {
+          LOGGER.log(Level.INFO, "Could not generate schema expression '"
+              + jobs.get(i).capability
+              + "' without the embedded OSGi container. Falling back to the container.",
+              failures[i]);
+          failures[i] = null;
+          containerJobIndexes.add(i);
+        } else if (failures[i] == null) {
+          report.addFrameworkFreeJobs(1);
+        }
+      }
+
+      if (containerJobIndexes.size() > 0) {
+        generateInContainer(jobs, containerJobIndexes, parallelism, descriptors,
+            dependencyClosure, sourceHashes, failures);
+      }
+    } finally {
+      finishReport(failures);
+    }
+
+    throwFailures(jobs, failures);
+    return report;
+  }
+
+  /**
+   * Runs the jobs with the specified indexes in the embedded OSGi container.
+   */
+  private void generateInContainer(final List<GenerationProperties> jobs,
+      final List<Integer> jobIndexes, final int parallelism,
+      final List<BundleDescriptor> descriptors, final DependencyClosure dependencyClosure,
+      final String[] sourceHashes, final RuntimeException[] failures) {
+
+    List<GenerationProperties> containerJobs = new ArrayList<GenerationProperties>();
+    for (Integer jobIndex : jobIndexes) {
+      containerJobs.add(jobs.get(jobIndex));
+    }
+    GenerationProperties firstJob = containerJobs.get(0);
+    boolean syntheticProviders = false;
+    for (GenerationProperties containerJob : containerJobs) {
+      if (containerJob.hackWires && containerJob.syntheticProviders) {
+        syntheticProviders = true;
+      }
+    }
+
+    List<BundleWithAttributes> bundleResources;
+    List<GenerationTask> tasks = new ArrayList<GenerationTask>(jobs.size());
+    for (int i = 0, n = jobs.size(); i < n; i++) {
+      tasks.add(null);
+    }
+    synchronized (FRAMEWORK_LOCK) {
+      try {
+        activateContainerGlobalState();
+        startOSGiContainerIfNecessary(firstJob);
+        synchronizeBundles(firstJob.bundleLocations,
+            selectBundleLocations(containerJobs, descriptors, dependencyClosure),
+            syntheticProviders);
+        bundleResources = findBundleResources(containerJobs, descriptors);
+      } catch (IOException e) {
+
+        LOGGER.log(Level.SEVERE, "Could not create storage directory", e);
+        LQMGSession.setFailures(failures, jobIndexes, "Could not create storage directory", e);
+        return;
+
+      } catch (BundleException e) {
+
+        LOGGER.log(Level.SEVERE, "Could not start embedded OSGi framework", e);
+        LQMGSession.setFailures(failures, jobIndexes, "Could not start embedded OSGi framework",
+            e);
+        return;
+      }
+
+      for (int i = 0, n = containerJobs.size(); i < n; i++) {
+        int jobIndex = jobIndexes.get(i);
+        BundleWithAttributes bundleResource = bundleResources.get(i);
+        if (bundleResource == null) {
+          failures[jobIndex] = createCapabilityNotFoundException(containerJobs.get(i));
+        } else {
+          tasks.set(jobIndex,
+              createBundleTask(containerJobs.get(i), bundleResource, sourceHashes[jobIndex]));
+        }
+      }
+    }
+
+    runTasks(tasks, parallelism, failures);
+  }
+
+  private void logUnresolvedBundles(final String capabilityExpression) {
+    if (osgiContainer == null) {
+      // The bundles of a host framework are not diagnosed
+      return;
+    }
+    LOGGER.warning(container.getHackUtil().createResolutionDiagnostics(osgiContainer,
+        capabilityExpression));
+  }
+
+  /**
+   * Collects the bundles that were installed into a reused storage area by a previous session. The
+   * fingerprint of the storage area matched, so the content of the bundles did not change since
+   * their installation.
+   */
+  private void loadInstalledBundlesFromStorage(final String[] bundleLocations) {
+    Map<String, String> bundleLocationsByInstallLocation = new HashMap<String, String>();
+    for (String bundleLocation : bundleLocations) {
+      bundleLocationsByInstallLocation.put(BundleLocationUtil.toInstallLocation(bundleLocation),
+          bundleLocation);
+    }
+
+    for (Bundle bundle : osgiContainer.getBundleContext().getBundles()) {
+      if (SyntheticProviderBuilder.isSynthetic(bundle)) {
+        syntheticBundles.add(bundle);
+      } else if (bundle.getBundleId() != 0) {
+        String bundleLocation = bundleLocationsByInstallLocation.get(bundle.getLocation());
+        if (bundleLocation == null) {
+          bundleLocation = bundle.getLocation();
+        }
+        installedBundles.put(bundleLocation,
+            new InstalledBundle(bundle, BundleLocationUtil.fingerprint(bundleLocation)));
+      }
+    }
+    LOGGER.info("Reusing cached storage area " + storageDirectory.getAbsolutePath() + " with "
+        + installedBundles.size() + " installed bundles");
+  }
+
+  private void lockStorageDirectory(final GenerationProperties parameters) throws IOException {
+    if (parameters.cacheFolder != null) {
+      hackedBundleCache = new HackedBundleCache(new File(parameters.cacheFolder, "hacked"),
+          parameters.cacheMaxSize);
+      // The storage areas of different frameworks are not compatible
+      String storageFolderName = "osgi";
+      if (!GenerationProperties.CONTAINER_EQUINOX.equals(container.getName())) {
+        storageFolderName = "osgi-" + container.getName();
+      }
+      storageAreaCache = new StorageAreaCache(new File(parameters.cacheFolder, storageFolderName),
+          parameters.cacheMaxSize);
+      storageArea = storageAreaCache.lock(parameters.bundleLocations);
+      if (storageArea != null) {
+        storageDirectory = storageArea.directory;
+        return;
+      }
+    }
+    storageDirectory = LQMGSession.createTempDirectory();
+  }
+
+  private void refreshRemovalPendingBundles() {
+    final CountDownLatch refreshLatch = new CountDownLatch(1);
+    FrameworkWiring frameworkWiring = osgiContainer.adapt(FrameworkWiring.class);
+    frameworkWiring.refreshBundles(null, new FrameworkListener() {
+
+      @Override
+      public void frameworkEvent(final FrameworkEvent event) {
+        refreshLatch.countDown();
+      }
+    });
+
+    try {
+      refreshLatch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LQMGException("Refreshing the bundles of the embedded OSGi container was"
+          + " interrupted", e);
+    }
+  }
+
+  private void releaseStorageDirectory() {
+    if (storageArea != null) {
+      storageAreaCache.release(storageArea);
+      storageAreaCache.evict();
+    } else {
+      LQMGSession.deleteFolder(storageDirectory);
+    }
+    if (hackedBundleCache != null) {
+      hackedBundleCache.evict();
+    }
+    hackedBundleCache = null;
+    storageArea = null;
+    storageAreaCache = null;
+    storageDirectory = null;
+  }
+
+  /**
+   * Runs the tasks that are not <code>null</code> and stores their failures in the array with the
+   * same index.
+   */
+  private void runTasks(final List<GenerationTask> tasks, final int parallelism,
+      final RuntimeException[] failures) {
+
+    int taskCount = 0;
+    for (GenerationTask task : tasks) {
+      if (task != null) {
+        taskCount++;
+      }
+    }
+    if (taskCount == 0) {
+      return;
+    }
+
+    if ((parallelism == 1) || (taskCount == 1)) {
+      for (int i = 0, n = tasks.size(); i < n; i++) {
+        GenerationTask task = tasks.get(i);
+        if (task != null) {
+          try {
+            task.run();
+          } catch (RuntimeException e) {
+            failures[i] = e;
+          }
+        }
+      }
+    } else {
+      runTasksInParallel(tasks, Math.min(parallelism, taskCount), failures);
+    }
+  }
+
+  private void runTasksInParallel(final List<GenerationTask> tasks, final int threadCount,
+      final RuntimeException[] failures) {
+
+    ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+      for (GenerationTask task : tasks) {
+        if (task == null) {
+          futures.add(null);
+        } else {
+          futures.add(executorService.submit(task));
+        }
+      }
+
+      for (int i = 0, n = futures.size(); i < n; i++) {
+        Future<?> future = futures.get(i);
+        if (future != null) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+              failures[i] = (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+              throw (Error) cause;
+            } else {
+              failures[i] = new LQMGException("Generation job failed", cause);
+            }
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LQMGException("Waiting for the generation jobs was interrupted", e);
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads the manifests of the bundles and selects the ones that are necessary to resolve the
+   * capabilities of the jobs. Bundles whose manifest cannot be read are always selected. If none of
+   * the readable manifests provides one of the capabilities, all bundles are selected.
+   */
+  private Set<String> selectBundleLocations(final List<GenerationProperties> jobs,
+      final List<BundleDescriptor> descriptors, final DependencyClosure dependencyClosure) {
+    String[] bundleLocations = jobs.get(0).bundleLocations;
+    Set<String> capabilities = new LinkedHashSet<String>();
+    for (GenerationProperties job : jobs) {
+      capabilities.add(job.capability);
+    }
+
+    Set<BundleDescriptor> closure = dependencyClosure.resolve(capabilities);
+    Set<String> result = new LinkedHashSet<String>();
+    if (closure == null) {
+      LOGGER.info("Could not find the providers of the requested capabilities in the bundle"
+          + " manifests. Installing all bundles.");
+      result.addAll(Arrays.asList(bundleLocations));
+      return result;
+    }
+
+    for (int i = 0; i < bundleLocations.length; i++) {
+      BundleDescriptor descriptor = descriptors.get(i);
+      if ((descriptor == null) || closure.contains(descriptor)) {
+        result.add(bundleLocations[i]);
+      }
+    }
+    LOGGER.info("Selected " + result.size() + " of " + bundleLocations.length
+        + " bundles that are in the dependency closure of the requested capabilities");
+    return result;
+  }
+
+  private void startOSGiContainerIfNecessary(final GenerationProperties parameters)
+      throws IOException, BundleException {
+    if (osgiContainer != null) {
+      return;
+    }
+
+    container = LQMGSession.createContainer(parameters.container);
+    long storageStartTime = System.nanoTime();
+    lockStorageDirectory(parameters);
+    long startTime = System.nanoTime();
+    report.addDuration(Phase.STORAGE_AREA, startTime - storageStartTime);
+
+    Framework framework;
+    try {
+      framework = container.createFramework(storageDirectory);
+      framework.start();
+    } catch (BundleException e) {
+      releaseStorageDirectory();
+      throw e;
+    } catch (RuntimeException e) {
+      releaseStorageDirectory();
+      throw e;
+    }
+    osgiContainer = framework;
+    containerGlobalState = container.captureGlobalState();
+    framework.getBundleContext().registerService(ResolverHookFactory.class,
+        new SyntheticProviderResolverHookFactory(), null);
+
+    if ((storageArea != null) && storageArea.reused) {
+      loadInstalledBundlesFromStorage(parameters.bundleLocations);
+    }
+    report.addDuration(Phase.FRAMEWORK_START, System.nanoTime() - startTime);
+  }
+
+  private void stopFramework() {
+    if (osgiContainer != null) {
+      try {
+        osgiContainer.stop();
+        osgiContainer.waitForStop(0);
+      } catch (BundleException e) {
+        LOGGER.log(Level.SEVERE, "Could not stop embedded OSGi container during code generation",
+            e);
+      } catch (InterruptedException e) {
+        LOGGER.log(Level.SEVERE, "Stopping of embedded OSGi container was interrupted", e);
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Installs the selected bundles that are not installed yet, re-installs the ones whose content
+   * changed since the installation and uninstalls the ones that are not requested anymore. Bundles
+   * that are requested but not selected are kept if they were installed by a previous request. The
+   * bundles are resolved again if anything changed.
+   */
+  private void synchronizeBundles(final String[] bundleLocations,
+      final Set<String> selectedLocations, final boolean syntheticProviders) {
+    long startTime = System.nanoTime();
+    BundleContext systemBundleContext = osgiContainer.getBundleContext();
+    Set<String> requestedLocations = new LinkedHashSet<String>(Arrays.asList(bundleLocations));
+
+    boolean uninstalled = false;
+    Iterator<Entry<String, InstalledBundle>> iterator = installedBundles.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Entry<String, InstalledBundle> entry = iterator.next();
+      String bundleLocation = entry.getKey();
+      InstalledBundle installedBundle = entry.getValue();
+      String fingerprint = installedBundle.fingerprint;
+
+      if (!requestedLocations.contains(bundleLocation) || (fingerprint != null
+          && !fingerprint.equals(BundleLocationUtil.fingerprint(bundleLocation)))) {
+        try {
+          LOGGER.info("Uninstalling changed or not requested bundle " + bundleLocation);
+          installedBundle.bundle.uninstall();
+        } catch (BundleException e) {
+          LOGGER.log(Level.WARNING, "Could not uninstall bundle " + bundleLocation, e);
+        }
+        iterator.remove();
+        uninstalled = true;
+      }
+    }
+
+    if ((syntheticBundles.size() > 0)
+        && (uninstalled || !installedBundles.keySet().containsAll(selectedLocations))) {
+      uninstallSyntheticBundles();
+      uninstalled = true;
+    }
+
+    long uninstallDuration = System.nanoTime() - startTime;
+
+    if (uninstalled) {
+      long refreshStartTime = System.nanoTime();
+      refreshRemovalPendingBundles();
+      report.addDuration(Phase.RESOLVE, System.nanoTime() - refreshStartTime);
+    }
+
+    long installStartTime = System.nanoTime();
+
+    int installedCount = 0;
+    int referenceCount = 0;
+    long avoidedCopyBytes = 0;
+    for (String bundleLocation : selectedLocations) {
+      if (!installedBundles.containsKey(bundleLocation)) {
+        String fingerprint = BundleLocationUtil.fingerprint(bundleLocation);
+        String installLocation = BundleLocationUtil.toInstallLocation(bundleLocation);
+        try {
+          Bundle bundle = systemBundleContext.installBundle(installLocation);
+          installedBundles.put(bundleLocation, new InstalledBundle(bundle, fingerprint));
+          installedCount++;
+          if (!installLocation.equals(bundleLocation)) {
+            referenceCount++;
+            avoidedCopyBytes += BundleLocationUtil.contentSize(bundleLocation);
+          }
+        } catch (BundleException e) {
+          LOGGER.log(Level.WARNING, "Could not start bundle " + bundleLocation, e);
+        }
+      }
+    }
+
+    if (referenceCount > 0) {
+      LOGGER.info("Installed " + referenceCount + " local bundles by reference. Avoided copying "
+          + avoidedCopyBytes + " bytes into the storage area of the embedded OSGi container.");
+    }
+
+    report.addInstalledBundles(installedCount);
+    long resolveStartTime = System.nanoTime();
+    report.addDuration(Phase.BUNDLE_INSTALL,
+        uninstallDuration + (resolveStartTime - installStartTime));
+
+    if (syntheticProviders && (uninstalled || (installedCount > 0))) {
+      List<Bundle> newSyntheticBundles = container.getHackUtil()
+          .installSyntheticProviders(osgiContainer);
+      syntheticBundles.addAll(newSyntheticBundles);
+      LOGGER.info("Installed " + newSyntheticBundles.size()
+          + " synthetic bundles that provide the requirements that none of the bundles satisfy");
+      long syntheticEndTime = System.nanoTime();
+      report.addDuration(Phase.WIRE_HACKING, syntheticEndTime - resolveStartTime);
+      resolveStartTime = syntheticEndTime;
+    }
+
+    if (uninstalled || (installedCount > 0)) {
+      FrameworkWiring frameworkWiring = osgiContainer
+          .adapt(FrameworkWiring.class);
+      frameworkWiring.resolveBundles(null);
+      report.addDuration(Phase.RESOLVE, System.nanoTime() - resolveStartTime);
+    }
+  }
+
+  private void throwFailures(final List<GenerationProperties> jobs,
+      final RuntimeException[] failures) {
+
+    List<RuntimeException> failureList = new ArrayList<RuntimeException>();
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < failures.length; i++) {
+      RuntimeException failure = failures[i];
+      if (failure != null) {
+        String capability = jobs.get(i).capability;
+        if (jobs.size() > 1) {
+          LOGGER.log(Level.SEVERE, "Generation failed for schema expression: " + capability,
+              failure);
+        }
+        if (sb.length() > 0) {
+          sb.append(", ");
+        }
+        sb.append(capability);
+        failureList.add(failure);
+      }
+    }
+
+    if (failureList.size() == 1) {
+      throw failureList.get(0);
+    }
+    if (failureList.size() > 1) {
+      LQMGException exception = new LQMGException(failureList.size() + " of " + jobs.size()
+          + " generation jobs failed. Schema expressions: " + sb.toString(), failureList.get(0));
+      for (int i = 1, n = failureList.size(); i < n; i++) {
+        exception.addSuppressed(failureList.get(i));
+      }
+      throw exception;
+    }
+  }
+
+  private void uninstallSyntheticBundles() {
+    for (Bundle syntheticBundle : syntheticBundles) {
+      try {
+        syntheticBundle.uninstall();
+      } catch (BundleException e) {
+        LOGGER.log(Level.WARNING, "Could not uninstall synthetic bundle " + syntheticBundle, e);
+      }
+    }
+    syntheticBundles.clear();
+  }
+
+  private void writeReport() {
+    if (reportFile == null) {
+      return;
+    }
+    try {
+      report.writeJSON(reportFile);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING,
+          "Could not write generation report to " + reportFile.getAbsolutePath(), e);
+    }
+  }
+
+}
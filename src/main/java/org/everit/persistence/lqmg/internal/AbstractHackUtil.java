@@ -0,0 +1,727 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+import org.everit.persistence.lqmg.LQMGException;
+import org.everit.persistence.lqmg.internal.manifest.DependencyClosure;
+import org.everit.persistence.lqmg.internal.manifest.JarManifestReplacer;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Base class of the {@link HackUtil} implementations. The bundles are examined through the
+ * standard {@link BundleRevision} API, so only the way of rewriting the wiring headers, of reading
+ * the content of a bundle and of updating a bundle with its hacked version is left to the
+ * framework specific subclasses.
+ */
+public abstract class AbstractHackUtil implements HackUtil {
+
+  protected static final int BUFFER_SIZE = 65536;
+
+  /**
+   * The name of the folder within the storage area where the hacked bundles are written.
+   */
+  private static final String HACKED_BUNDLE_DIRECTORY_NAME = "lqmg-hacked";
+
+  private static final Logger LOGGER = Logger.getLogger(AbstractHackUtil.class.getName());
+
+  /**
+   * Hacking the bundles is mostly I/O bound, so more threads are used than the number of
+   * processors.
+   */
+  private static final int THREADS_PER_PROCESSOR = 2;
+
+  private static void appendIndent(final StringBuilder sb, final int depth) {
+    for (int i = 0; i < depth; i++) {
+      sb.append("  ");
+    }
+  }
+
+  protected static void copyStream(final InputStream in, final OutputStream out)
+      throws IOException {
+    byte[] buf = new byte[BUFFER_SIZE];
+    int r = in.read(buf);
+    while (r > -1) {
+      out.write(buf, 0, r);
+      r = in.read(buf);
+    }
+  }
+
+  private static boolean isResolved(final BundleRevision revision) {
+    return revision.getWiring() != null;
+  }
+
+  private void addEntriesToJar(final Bundle bundle, final String path,
+      final JarOutputStream jarOut) throws IOException {
+    Enumeration<String> entryPaths = bundle.getEntryPaths(path);
+    if (entryPaths == null) {
+      return;
+    }
+    while (entryPaths.hasMoreElements()) {
+      String entryPath = entryPaths.nextElement();
+      if (entryPath.endsWith("/")) {
+        addEntriesToJar(bundle, entryPath, jarOut);
+      } else if (!JarFile.MANIFEST_NAME.equals(entryPath)) {
+        URL entryURL = bundle.getEntry(entryPath);
+        if (entryURL != null) {
+          jarOut.putNextEntry(new ZipEntry(entryPath));
+          try (InputStream in = entryURL.openStream()) {
+            AbstractHackUtil.copyStream(in, jarOut);
+          }
+        }
+      }
+    }
+  }
+
+  private void addRequiredBundles(final BundleRevision revision,
+      final CapabilityIndex capabilityIndex, final Map<BundleRevision, Bundle> bundlesByRevision,
+      final Map<BundleRevision, List<BundleRevision>> fragmentsByHost,
+      final Set<BundleRevision> result, final LinkedList<BundleRevision> queue) {
+    for (BundleRequirement requirement : revision.getDeclaredRequirements(null)) {
+      for (BundleCapability capability : capabilityIndex.findMatchingCapabilities(requirement)) {
+        BundleRevision provider = capability.getRevision();
+        if (bundlesByRevision.containsKey(provider) && !result.contains(provider)) {
+          queue.add(provider);
+        }
+      }
+    }
+    List<BundleRevision> fragments = fragmentsByHost.get(revision);
+    if (fragments != null) {
+      queue.addAll(fragments);
+    }
+  }
+
+  private void appendResolutionDiagnostics(final StringBuilder sb, final BundleRevision revision,
+      final int depth, final CapabilityIndex capabilityIndex,
+      final Set<BundleRevision> visitedRevisions) {
+    sb.append('\n');
+    AbstractHackUtil.appendIndent(sb, depth);
+    sb.append(revision.getSymbolicName()).append('_').append(revision.getVersion()).append(" [")
+        .append(revision.getBundle().getBundleId()).append(']');
+    if (AbstractHackUtil.isResolved(revision)) {
+      sb.append(" resolved");
+      return;
+    }
+    if (!visitedRevisions.add(revision)) {
+      sb.append(" unresolved, see above");
+      return;
+    }
+    boolean unsatisfiedFound = false;
+    for (BundleRequirement requirement : revision.getDeclaredRequirements(null)) {
+      if (!SyntheticProviderBuilder.isMandatory(requirement)) {
+        continue;
+      }
+      // Requirements of unresolved bundles may be satisfied by their own capabilities
+      boolean satisfied = false;
+      for (BundleCapability capability : capabilityIndex.findMatchingCapabilities(requirement)) {
+        BundleRevision provider = capability.getRevision();
+        satisfied = satisfied || revision.equals(provider)
+            || ((provider != null) && AbstractHackUtil.isResolved(provider));
+      }
+      if (satisfied) {
+        continue;
+      }
+      List<BundleRevision> suppliers =
+          findPossibleSuppliers(requirement, revision, capabilityIndex);
+      if (!unsatisfiedFound) {
+        sb.append(" unresolved");
+        unsatisfiedFound = true;
+      }
+      sb.append('\n');
+      AbstractHackUtil.appendIndent(sb, depth + 1);
+      sb.append(requirement.toString());
+      if (suppliers.isEmpty()) {
+        sb.append(" -> MISSING");
+      } else {
+        sb.append(" -> provided by unresolved bundles:");
+        for (BundleRevision supplier : suppliers) {
+          appendResolutionDiagnostics(sb, supplier, depth + 2, capabilityIndex, visitedRevisions);
+        }
+      }
+    }
+    if (!unsatisfiedFound) {
+      sb.append(" unresolved, all requirements have providers (uses or singleton conflict?)");
+    }
+  }
+
+  /**
+   * Collects the declared capabilities of the bundles.
+   */
+  protected List<BundleCapability> collectAllCapabilities(
+      final Collection<BundleRevision> revisions) {
+    List<BundleCapability> availableCapabilities = new ArrayList<BundleCapability>();
+    for (BundleRevision revision : revisions) {
+      availableCapabilities.addAll(revision.getDeclaredCapabilities(null));
+    }
+    return availableCapabilities;
+  }
+
+  /**
+   * Collects the bundles that the providers of the capability expressions depend on. All
+   * providers of every requirement are followed, including the optional ones, as the requirements
+   * are not wired yet. The fragments of the collected bundles are also added.
+   *
+   * @return The providers of the capability expressions and the bundles they depend on.
+   */
+  private Set<Bundle> collectRequiredBundles(final Map<BundleRevision, Bundle> bundlesByRevision,
+      final CapabilityIndex capabilityIndex, final Collection<String> capabilityExpressions) {
+    List<Filter> changelogFilters = new ArrayList<Filter>();
+    for (String capabilityExpression : capabilityExpressions) {
+      Filter filter = DependencyClosure.createChangelogFilter(capabilityExpression);
+      if (filter != null) {
+        changelogFilters.add(filter);
+      }
+    }
+
+    Map<BundleRevision, List<BundleRevision>> fragmentsByHost =
+        new HashMap<BundleRevision, List<BundleRevision>>();
+    LinkedList<BundleRevision> queue = new LinkedList<BundleRevision>();
+    for (BundleRevision revision : bundlesByRevision.keySet()) {
+      for (BundleRequirement hostRequirement : revision
+          .getDeclaredRequirements(BundleRevision.HOST_NAMESPACE)) {
+        for (BundleCapability hostCapability : capabilityIndex
+            .findMatchingCapabilities(hostRequirement)) {
+          List<BundleRevision> fragments = fragmentsByHost.get(hostCapability.getRevision());
+          if (fragments == null) {
+            fragments = new ArrayList<BundleRevision>();
+            fragmentsByHost.put(hostCapability.getRevision(), fragments);
+          }
+          fragments.add(revision);
+        }
+      }
+      for (BundleCapability capability : revision
+          .getDeclaredCapabilities(DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG)) {
+        for (Filter filter : changelogFilters) {
+          if (filter.matches(capability.getAttributes())) {
+            queue.add(revision);
+          }
+        }
+      }
+    }
+
+    Set<BundleRevision> result = new LinkedHashSet<BundleRevision>();
+    while (!queue.isEmpty()) {
+      BundleRevision revision = queue.removeFirst();
+      if (result.add(revision)) {
+        addRequiredBundles(revision, capabilityIndex, bundlesByRevision, fragmentsByHost, result,
+            queue);
+      }
+    }
+
+    Set<Bundle> requiredBundles = new LinkedHashSet<Bundle>();
+    for (BundleRevision revision : result) {
+      requiredBundles.add(bundlesByRevision.get(revision));
+    }
+    return requiredBundles;
+  }
+
+  private <V> String convertClauseFieldsToString(final Map<String, V> map,
+      final boolean directives) {
+    if (map.size() == 0) {
+      return "";
+    }
+    String assignment = directives ? ":=" : "=";
+    Set<Entry<String, V>> set = map.entrySet();
+    StringBuilder sb = new StringBuilder();
+    for (Entry<String, V> entry : set) {
+      sb.append(";");
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (value instanceof List) {
+        @SuppressWarnings("unchecked")
+        List<Object> list = (List<Object>) value;
+        if (list.size() == 0) {
+          continue;
+        }
+        sb.append(key).append(assignment).append('"');
+        for (Object object : list) {
+          sb.append(escapeClauseValue(object)).append(',');
+        }
+        sb.setLength(sb.length() - 1);
+        sb.append('"');
+      } else {
+        sb.append(key).append(assignment).append('"').append(escapeClauseValue(value)).append('"');
+      }
+    }
+    return sb.toString();
+  }
+
+  private String createClauseString(final String namespace, final Map<String, Object> attributeMap,
+      final Map<String, String> directiveMap) {
+    String attributesPart = convertClauseFieldsToString(attributeMap, false);
+    String directivesPart = convertClauseFieldsToString(directiveMap, true);
+    StringBuilder sb = new StringBuilder(namespace);
+    if (!"".equals(attributesPart)) {
+      sb.append(attributesPart);
+    }
+    if (!"".equals(directivesPart)) {
+      sb.append(directivesPart);
+    }
+    return sb.toString();
+  }
+
+  private Manifest createHackedManifest(final Bundle bundle, final BundleRevision revision,
+      final CapabilityIndex capabilityIndex, final Map<String, Manifest> originalManifests) {
+    Manifest manifest;
+    Manifest originalManifest = originalManifests.get(bundle.getLocation());
+    if (originalManifest != null) {
+      manifest = new Manifest(originalManifest);
+    } else {
+      manifest = readOriginalManifest(bundle);
+    }
+    Attributes mainAttributes = manifest.getMainAttributes();
+
+    hackWiringManifestHeaders(revision, capabilityIndex, mainAttributes);
+    hackRequireCapabilityManifestHeader(revision, capabilityIndex, mainAttributes);
+    return manifest;
+  }
+
+  @Override
+  public String createResolutionDiagnostics(final Framework osgiContainer,
+      final String capabilityExpression) {
+    StringBuilder sb = new StringBuilder("Resolution diagnostics of the schema expression '")
+        .append(capabilityExpression).append("':");
+    Filter filter = DependencyClosure.createChangelogFilter(capabilityExpression);
+    if (filter == null) {
+      return sb.append(" the expression is invalid").toString();
+    }
+
+    Map<BundleRevision, Bundle> bundlesByRevision =
+        mapRevisionsToBundles(osgiContainer.getBundleContext().getBundles());
+    List<BundleRevision> providers = new ArrayList<BundleRevision>();
+    for (BundleRevision revision : bundlesByRevision.keySet()) {
+      for (BundleCapability capability : revision
+          .getDeclaredCapabilities(DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG)) {
+        if (filter.matches(capability.getAttributes())) {
+          providers.add(revision);
+          break;
+        }
+      }
+    }
+    if (providers.isEmpty()) {
+      return sb.append(" none of the bundles provides a matching capability").toString();
+    }
+
+    CapabilityIndex capabilityIndex =
+        new CapabilityIndex(collectAllCapabilities(bundlesByRevision.keySet()));
+    Set<BundleRevision> visitedRevisions = new HashSet<BundleRevision>();
+    for (BundleRevision provider : providers) {
+      appendResolutionDiagnostics(sb, provider, 1, capabilityIndex, visitedRevisions);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Deletes the files that were written by earlier hacks of the same bundle.
+   */
+  protected void deletePreviousHackedFiles(final Bundle bundle, final File hackedFile) {
+    File[] files = hackedFile.getParentFile().listFiles();
+    if (files == null) {
+      return;
+    }
+    String prefix = bundle.getBundleId() + "-";
+    for (File file : files) {
+      if (file.getName().startsWith(prefix) && !file.equals(hackedFile) && !file.delete()) {
+        LOGGER.fine("Could not delete previously hacked bundle file " + file);
+      }
+    }
+  }
+
+  /**
+   * Escapes a value so it can be written between quotes into a manifest header.
+   */
+  protected String escapeClauseValue(final Object object) {
+    String stringValue = String.valueOf(object);
+    return stringValue.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * Finds the bundles other than the requirer that declare a capability matching a requirement.
+   */
+  protected List<BundleRevision> findPossibleSuppliers(final BundleRequirement requirement,
+      final BundleRevision requirer, final CapabilityIndex capabilityIndex) {
+    List<BundleRevision> result = new ArrayList<BundleRevision>();
+    if (requirement == null) {
+      return result;
+    }
+    for (BundleCapability capability : capabilityIndex.findMatchingCapabilities(requirement)) {
+      BundleRevision revision = capability.getRevision();
+      if ((revision != null) && !revision.equals(requirer) && !result.contains(revision)) {
+        result.add(revision);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public HackStatistics hackBundles(final Framework osgiContainer, final File tempDirectory,
+      final Map<String, Manifest> originalManifests, final HackedBundleCache hackedBundleCache,
+      final Collection<String> capabilityExpressions) {
+    File hackedBundleDirectory = new File(tempDirectory, HACKED_BUNDLE_DIRECTORY_NAME);
+    if (!hackedBundleDirectory.exists() && !hackedBundleDirectory.mkdirs()) {
+      throw new LQMGException("Could not create directory " + hackedBundleDirectory, null);
+    }
+
+    Map<BundleRevision, Bundle> bundlesByRevision =
+        mapRevisionsToBundles(osgiContainer.getBundleContext().getBundles());
+    List<BundleCapability> availableCapabilities =
+        collectAllCapabilities(bundlesByRevision.keySet());
+    CapabilityIndex capabilityIndex = new CapabilityIndex(availableCapabilities);
+    String capabilityFingerprint = null;
+    if (hackedBundleCache != null) {
+      capabilityFingerprint =
+          HackedBundleCache.calculateCapabilityFingerprint(availableCapabilities);
+    }
+
+    Set<Bundle> requiredBundles =
+        collectRequiredBundles(bundlesByRevision, capabilityIndex, capabilityExpressions);
+    List<Bundle> installedBundles = new ArrayList<Bundle>();
+    List<BundleRevision> installedRevisions = new ArrayList<BundleRevision>();
+    List<File> hackedFiles = new ArrayList<File>();
+    int skippedBundleCount = 0;
+    for (Entry<BundleRevision, Bundle> entry : bundlesByRevision.entrySet()) {
+      Bundle bundle = entry.getValue();
+      if ((bundle.getState() == Bundle.INSTALLED) && !requiredBundles.contains(bundle)) {
+        skippedBundleCount++;
+      } else if (bundle.getState() == Bundle.INSTALLED) {
+        installedBundles.add(bundle);
+        installedRevisions.add(entry.getKey());
+        hackedFiles.add(new File(hackedBundleDirectory,
+            bundle.getBundleId() + "-" + System.nanoTime() + ".jar"));
+      }
+    }
+
+    if (skippedBundleCount > 0) {
+      LOGGER.info("[HACK]: Skipping " + skippedBundleCount + " unresolved bundles that the"
+          + " requested capabilities do not depend on");
+    }
+
+    int threadCount = Math.min(installedBundles.size(),
+        Runtime.getRuntime().availableProcessors() * THREADS_PER_PROCESSOR);
+    long startTime = System.nanoTime();
+    long workDuration = 0;
+    if (threadCount <= 1) {
+      for (int i = 0, n = installedBundles.size(); i < n; i++) {
+        workDuration += prepareHackedBundle(installedBundles.get(i), installedRevisions.get(i),
+            capabilityIndex, originalManifests, hackedBundleCache, capabilityFingerprint,
+            hackedFiles.get(i));
+      }
+    } else {
+      workDuration = prepareHackedBundlesInParallel(installedBundles, installedRevisions,
+          capabilityIndex, originalManifests, hackedBundleCache, capabilityFingerprint,
+          hackedFiles, threadCount);
+    }
+    long elapsedDuration = System.nanoTime() - startTime;
+
+    // The framework must not be updated from multiple threads
+    for (int i = 0, n = installedBundles.size(); i < n; i++) {
+      updateBundle(installedBundles.get(i), hackedFiles.get(i));
+    }
+    return new HackStatistics(installedBundles.size(), Math.max(threadCount, 1), workDuration,
+        elapsedDuration);
+  }
+
+  private void hackRequireCapabilityManifestHeader(final BundleRevision revision,
+      final CapabilityIndex capabilityIndex, final Attributes mainAttributes) {
+    StringBuilder sb = new StringBuilder();
+    for (BundleRequirement declaredRequirement : revision.getDeclaredRequirements(null)) {
+      String namespace = declaredRequirement.getNamespace();
+      if (namespace.equals(BundleRevision.PACKAGE_NAMESPACE)
+          || namespace.equals(BundleRevision.HOST_NAMESPACE)
+          || namespace.equals(BundleRevision.BUNDLE_NAMESPACE)) {
+        continue;
+      }
+      Map<String, String> directives = declaredRequirement.getDirectives();
+      Map<String, Object> attributes = declaredRequirement.getAttributes();
+
+      boolean optional = Constants.RESOLUTION_OPTIONAL.equals(declaredRequirement
+          .getDirectives().get(Constants.RESOLUTION_DIRECTIVE));
+      if (!optional && !capabilityIndex.isSatisfiable(declaredRequirement)) {
+        LOGGER.info(
+            "[HACK]: Making Require-Capability optional in bundle " + revision.toString()
+                + ": " + declaredRequirement.toString());
+        directives = new HashMap<String, String>(directives);
+        directives.put(Constants.RESOLUTION_DIRECTIVE, Constants.RESOLUTION_OPTIONAL);
+      }
+      String clauseString = createClauseString(namespace, attributes, directives);
+      if (sb.length() > 0) {
+        sb.append(",");
+      }
+      sb.append(clauseString);
+    }
+    if (sb.length() > 0) {
+      mainAttributes.putValue(Constants.REQUIRE_CAPABILITY, sb.toString());
+    }
+  }
+
+  /**
+   * Rewrites the <code>Import-Package</code> and <code>Require-Bundle</code> headers of a bundle
+   * in the way that the clauses that none of the bundles can satisfy become optional.
+   *
+   * @param revision
+   *          The revision of the bundle that is hacked.
+   * @param capabilityIndex
+   *          The capabilities of all bundles of the container.
+   * @param mainAttributes
+   *          The main attributes of the manifest that is written into the hacked bundle.
+   */
+  protected abstract void hackWiringManifestHeaders(BundleRevision revision,
+      CapabilityIndex capabilityIndex, Attributes mainAttributes);
+
+  @Override
+  public List<Bundle> installSyntheticProviders(final Framework osgiContainer) {
+    BundleContext systemBundleContext = osgiContainer.getBundleContext();
+    Map<BundleRevision, Bundle> bundlesByRevision =
+        mapRevisionsToBundles(systemBundleContext.getBundles());
+    CapabilityIndex capabilityIndex =
+        new CapabilityIndex(collectAllCapabilities(bundlesByRevision.keySet()));
+    SyntheticProviderBuilder syntheticProviderBuilder = new SyntheticProviderBuilder();
+    for (Entry<BundleRevision, Bundle> entry : bundlesByRevision.entrySet()) {
+      if (entry.getValue().getState() == Bundle.INSTALLED) {
+        BundleRevision revision = entry.getKey();
+        for (BundleRequirement requirement : revision.getDeclaredRequirements(null)) {
+          if (SyntheticProviderBuilder.isMandatory(requirement)
+              && !capabilityIndex.isSatisfiable(requirement)
+              && !syntheticProviderBuilder.add(requirement)) {
+            LOGGER.info("Cannot provide requirement synthetically in bundle "
+                + revision.toString() + ": " + requirement.toString());
+          }
+        }
+      }
+    }
+
+    List<Bundle> result = new ArrayList<Bundle>();
+    for (Entry<String, Manifest> entry : syntheticProviderBuilder.createManifests().entrySet()) {
+      byte[] content = SyntheticProviderBuilder.toJar(entry.getValue());
+      try {
+        result.add(systemBundleContext.installBundle(entry.getKey(),
+            new ByteArrayInputStream(content)));
+      } catch (BundleException e) {
+        LOGGER.log(Level.WARNING, "Could not install synthetic provider " + entry.getKey(), e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Maps the current revisions of the bundles to the bundles. Bundles that were uninstalled in the
+   * meantime do not have a revision and are left out.
+   */
+  private Map<BundleRevision, Bundle> mapRevisionsToBundles(final Bundle[] bundles) {
+    Map<BundleRevision, Bundle> result = new LinkedHashMap<BundleRevision, Bundle>();
+    for (Bundle bundle : bundles) {
+      BundleRevision revision = bundle.adapt(BundleRevision.class);
+      if (revision != null) {
+        result.put(revision, bundle);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the hacked version of a bundle into a file or copies it from the cache. The method does
+   * not change the state of the framework, so it can be called from multiple threads at the same
+   * time.
+   *
+   * @return The time spent in nanoseconds.
+   */
+  private long prepareHackedBundle(final Bundle bundle, final BundleRevision revision,
+      final CapabilityIndex capabilityIndex, final Map<String, Manifest> originalManifests,
+      final HackedBundleCache hackedBundleCache, final String capabilityFingerprint,
+      final File hackedFile) {
+    long startTime = System.nanoTime();
+    String cacheKey = null;
+    if (hackedBundleCache != null) {
+      cacheKey = hackedBundleCache.calculateKey(bundle, capabilityFingerprint);
+    }
+    if ((cacheKey != null) && hackedBundleCache.copyTo(cacheKey, hackedFile)) {
+      LOGGER.info("[HACK]: Using cached hacked version of bundle " + revision);
+    } else {
+      writeHackedBundle(bundle, revision, capabilityIndex, originalManifests, hackedFile);
+      if (cacheKey != null) {
+        hackedBundleCache.store(cacheKey, hackedFile);
+      }
+    }
+    return System.nanoTime() - startTime;
+  }
+
+  private long prepareHackedBundlesInParallel(final List<Bundle> installedBundles,
+      final List<BundleRevision> installedRevisions, final CapabilityIndex capabilityIndex,
+      final Map<String, Manifest> originalManifests, final HackedBundleCache hackedBundleCache,
+      final String capabilityFingerprint, final List<File> hackedFiles, final int threadCount) {
+
+    long workDuration = 0;
+    ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Long>> futures = new ArrayList<Future<Long>>(installedBundles.size());
+      for (int i = 0, n = installedBundles.size(); i < n; i++) {
+        final Bundle bundle = installedBundles.get(i);
+        final BundleRevision revision = installedRevisions.get(i);
+        final File hackedFile = hackedFiles.get(i);
+        futures.add(executorService.submit(new Callable<Long>() {
+
+          @Override
+          public Long call() {
+            return prepareHackedBundle(bundle, revision, capabilityIndex, originalManifests,
+                hackedBundleCache, capabilityFingerprint, hackedFile);
+          }
+        }));
+      }
+      for (Future<Long> future : futures) {
+        workDuration += future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new LQMGException("Hacking the bundles was interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new LQMGException("Could not hack the bundles", cause);
+    } finally {
+      executorService.shutdownNow();
+    }
+    return workDuration;
+  }
+
+  private Manifest readOriginalManifest(final Bundle bundle) {
+    URL manifestURL = bundle.getEntry(JarFile.MANIFEST_NAME);
+    InputStream manifestStream = null;
+    try {
+      manifestStream = manifestURL.openStream();
+      return new Manifest(manifestStream);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (manifestStream != null) {
+        try {
+          manifestStream.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Resolves the jar file of a bundle if the framework reads the bundle from a file of the local
+   * filesystem.
+   *
+   * @param bundle
+   *          The bundle.
+   * @return The jar file or <code>null</code> if the bundle is not read from a local jar file.
+   */
+  protected abstract File resolveBundleJarFile(Bundle bundle);
+
+  /**
+   * Updates a bundle with the content of its hacked version. Called on the thread of
+   * {@link #hackBundles(Framework, File, Map, HackedBundleCache, Collection)} only.
+   *
+   * @param bundle
+   *          The bundle.
+   * @param hackedFile
+   *          The hacked version of the bundle.
+   */
+  protected abstract void updateBundle(Bundle bundle, File hackedFile);
+
+  private void writeHackedBundle(final Bundle bundle, final BundleRevision revision,
+      final CapabilityIndex capabilityIndex, final Map<String, Manifest> originalManifests,
+      final File hackedFile) {
+    Manifest manifest = createHackedManifest(bundle, revision, capabilityIndex,
+        originalManifests);
+    try {
+      File jarFile = resolveBundleJarFile(bundle);
+      if ((jarFile != null) && jarFile.isFile()) {
+        try {
+          JarManifestReplacer.replaceManifest(jarFile, manifest, hackedFile);
+          return;
+        } catch (IOException e) {
+          LOGGER.log(Level.FINE, "Could not copy the raw entries of " + jarFile
+              + ", repacking the bundle", e);
+        }
+      }
+      writeHackedJar(bundle, manifest, hackedFile);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Repacks a bundle with a new manifest. The entries are read via {@link Bundle#getEntryPaths}
+   * and {@link Bundle#getEntry}, which do not trigger the resolution of the bundle. Subclasses may
+   * read the content of the bundle in a more efficient way.
+   *
+   * @param bundle
+   *          The bundle.
+   * @param manifest
+   *          The manifest of the hacked bundle.
+   * @param hackedFile
+   *          The file where the hacked bundle is written.
+   * @throws IOException
+   *           if the bundle cannot be read or the file cannot be written.
+   */
+  protected void writeHackedJar(final Bundle bundle, final Manifest manifest,
+      final File hackedFile) throws IOException {
+    try (JarOutputStream jarOut = new JarOutputStream(
+        new BufferedOutputStream(new FileOutputStream(hackedFile), BUFFER_SIZE), manifest)) {
+      addEntriesToJar(bundle, "/", jarOut);
+    }
+  }
+}
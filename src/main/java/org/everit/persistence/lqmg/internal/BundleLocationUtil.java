@@ -0,0 +1,359 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * Helper functions to work with the bundle locations that are passed to LQMG.
+ */
+public final class BundleLocationUtil {
+
+  private static final int BUFFER_SIZE = 65536;
+
+  /**
+   * Content hashes of the bundles by their path and size and modification time based fingerprint.
+   * As calculating the hash needs reading the full content of the bundle, it is done only once per
+   * JVM for each version of the bundles that were used recently.
+   */
+  private static final LRUCache<String, String> CONTENT_HASH_CACHE =
+      new LRUCache<String, String>(BundleLocationUtil.MAX_CACHED_CONTENT_HASHES);
+
+  private static final String FILE_PREFIX = "file:";
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final int MAX_CACHED_CONTENT_HASHES = 4096;
+
+  private static final String REFERENCE_PREFIX = "reference:";
+
+  private static void collectDirectoryEntries(final File directory, final String prefix,
+      final List<String> result) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        String path = prefix + file.getName() + "/";
+        result.add(path);
+        BundleLocationUtil.collectDirectoryEntries(file, path, result);
+      } else {
+        result.add(prefix + file.getName());
+      }
+    }
+  }
+
+  private static void collectDirectoryFingerprint(final File directory, final long[] result) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        BundleLocationUtil.collectDirectoryFingerprint(file, result);
+      } else {
+        result[0]++;
+        result[1] += file.length();
+        result[2] = Math.max(result[2], file.lastModified());
+      }
+    }
+  }
+
+  /**
+   * Calculates the SHA-1 hash of the content that is available on the bundle location. In case of
+   * a directory, the relative paths and the content of all files are part of the hash.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @return The hash in hexadecimal format or <code>null</code> if the location does not point to
+   *         the local filesystem.
+   * @throws IOException
+   *           if the content of the bundle cannot be read.
+   */
+  public static String contentHash(final String bundleLocation) throws IOException {
+    String fingerprint = BundleLocationUtil.fingerprint(bundleLocation);
+    if (fingerprint == null) {
+      return null;
+    }
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    String cacheKey = file.getAbsolutePath() + "|" + fingerprint;
+    String hash = CONTENT_HASH_CACHE.get(cacheKey);
+    if (hash != null) {
+      return hash;
+    }
+
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    if (file.isDirectory()) {
+      BundleLocationUtil.updateDigestWithDirectory(digest, file, "", buffer);
+    } else {
+      BundleLocationUtil.updateDigestWithFile(digest, file, buffer);
+    }
+    hash = BundleLocationUtil.toHex(digest.digest());
+    CONTENT_HASH_CACHE.put(cacheKey, hash);
+    return hash;
+  }
+
+  /**
+   * Calculates the size of the content that is available on the bundle location.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @return The size of the file or the sum of the sizes of the files in the directory. Zero if
+   *         the location does not point to the local filesystem.
+   */
+  public static long contentSize(final String bundleLocation) {
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    if (file == null || !file.exists()) {
+      return 0;
+    }
+    if (file.isDirectory()) {
+      long[] result = new long[] { 0, 0, 0 };
+      BundleLocationUtil.collectDirectoryFingerprint(file, result);
+      return result[1];
+    }
+    return file.length();
+  }
+
+  /**
+   * Creates a new SHA-1 {@link MessageDigest}.
+   */
+  public static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Calculates a fingerprint of the content that is available on the bundle location. The
+   * fingerprint changes if a file of the bundle is added, removed or modified.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @return The fingerprint or <code>null</code> if the location does not point to the local
+   *         filesystem.
+   */
+  public static String fingerprint(final String bundleLocation) {
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    if (file == null || !file.exists()) {
+      return null;
+    }
+    if (file.isDirectory()) {
+      long[] result = new long[] { 0, 0, 0 };
+      BundleLocationUtil.collectDirectoryFingerprint(file, result);
+      return "d:" + result[0] + ":" + result[1] + ":" + result[2];
+    }
+    return "f:" + file.length() + ":" + file.lastModified();
+  }
+
+  /**
+   * Finds an entry of a bundle directly in the jar or directory of the bundle. Only the content of
+   * the bundle itself is searched, the bundle class path and the fragments are not taken into
+   * account.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @param path
+   *          The path of the entry within the bundle with or without a leading slash.
+   * @return The URL of the entry or <code>null</code> if the entry does not exist or the location
+   *         does not point to the local filesystem.
+   * @throws IOException
+   *           if the jar of the bundle cannot be read.
+   */
+  public static URL getEntry(final String bundleLocation, final String path) throws IOException {
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    if (file == null || !file.exists()) {
+      return null;
+    }
+    String entryName = path;
+    while (entryName.startsWith("/")) {
+      entryName = entryName.substring(1);
+    }
+
+    try {
+      if (file.isDirectory()) {
+        File entryFile = new File(file, entryName);
+        return entryFile.isFile() ? entryFile.toURI().toURL() : null;
+      }
+
+      try (JarFile jarFile = new JarFile(file, false)) {
+        ZipEntry entry = jarFile.getEntry(entryName);
+        if (entry == null || entry.isDirectory()) {
+          return null;
+        }
+      }
+      return new URL("jar:" + file.toURI().toString() + "!/" + entryName);
+    } catch (MalformedURLException e) {
+      throw new IOException("Could not create URL for entry " + path + " of bundle "
+          + bundleLocation, e);
+    }
+  }
+
+  /**
+   * Checks whether the bundle location is already installed by reference.
+   */
+  public static boolean isReference(final String bundleLocation) {
+    return bundleLocation.startsWith(REFERENCE_PREFIX);
+  }
+
+  /**
+   * Lists all entries of a bundle directly from the jar or directory of the bundle.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @return The paths of the entries without leading slash. The paths of directories end with a
+   *         slash. Empty if the location does not point to the local filesystem.
+   * @throws IOException
+   *           if the jar of the bundle cannot be read.
+   */
+  public static List<String> listEntries(final String bundleLocation) throws IOException {
+    List<String> result = new ArrayList<String>();
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    if (file == null || !file.exists()) {
+      return result;
+    }
+    if (file.isDirectory()) {
+      BundleLocationUtil.collectDirectoryEntries(file, "", result);
+      return result;
+    }
+    try (JarFile jarFile = new JarFile(file, false)) {
+      Enumeration<JarEntry> entries = jarFile.entries();
+      while (entries.hasMoreElements()) {
+        result.add(entries.nextElement().getName());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resolves the file or directory that a bundle location points to.
+   *
+   * @param bundleLocation
+   *          The location of the bundle with or without the <code>reference:</code> prefix.
+   * @return The file or <code>null</code> if the location does not point to the local filesystem.
+   */
+  public static File resolveFile(final String bundleLocation) {
+    String location = bundleLocation;
+    if (location.startsWith(REFERENCE_PREFIX)) {
+      location = location.substring(REFERENCE_PREFIX.length());
+    }
+
+    if (location.startsWith(FILE_PREFIX)) {
+      try {
+        return new File(new URI(location));
+      } catch (URISyntaxException e) {
+        return new File(location.substring(FILE_PREFIX.length()));
+      } catch (IllegalArgumentException e) {
+        return new File(location.substring(FILE_PREFIX.length()));
+      }
+    }
+
+    if (location.indexOf(':') > 1) {
+      // Some other URL scheme
+      return null;
+    }
+
+    return new File(location);
+  }
+
+  /**
+   * Converts a byte array to a hexadecimal string.
+   */
+  public static String toHex(final byte[] bytes) {
+    char[] result = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int value = bytes[i] & 0xFF;
+      result[i * 2] = HEX_DIGITS[value >>> 4];
+      result[(i * 2) + 1] = HEX_DIGITS[value & 0x0F];
+    }
+    return new String(result);
+  }
+
+  /**
+   * Converts the bundle location to the location that should be used to install the bundle into
+   * the embedded OSGi container. Local jars and directories are installed by reference, so the
+   * OSGi container does not copy them into its storage area.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @return The location with the <code>reference:file:</code> prefix if it points to an existing
+   *         file or directory on the local filesystem, otherwise the original location.
+   */
+  public static String toInstallLocation(final String bundleLocation) {
+    if (BundleLocationUtil.isReference(bundleLocation)) {
+      return bundleLocation;
+    }
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    if (file == null || !file.exists()) {
+      return bundleLocation;
+    }
+    return REFERENCE_PREFIX + file.getAbsoluteFile().toURI().toString();
+  }
+
+  private static void updateDigestWithDirectory(final MessageDigest digest, final File directory,
+      final String prefix, final byte[] buffer) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files);
+    Charset utf8 = Charset.forName("UTF-8");
+    for (File file : files) {
+      String relativePath = prefix + file.getName();
+      if (file.isDirectory()) {
+        BundleLocationUtil.updateDigestWithDirectory(digest, file, relativePath + "/", buffer);
+      } else {
+        digest.update(relativePath.getBytes(utf8));
+        digest.update((byte) 0);
+        BundleLocationUtil.updateDigestWithFile(digest, file, buffer);
+      }
+    }
+  }
+
+  private static void updateDigestWithFile(final MessageDigest digest, final File file,
+      final byte[] buffer) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      int r = in.read(buffer);
+      while (r > -1) {
+        digest.update(buffer, 0, r);
+        r = in.read(buffer);
+      }
+    }
+  }
+
+  private BundleLocationUtil() {
+  }
+}
@@ -77,4 +77,10 @@ public class BundleWithAttributes {
     return result;
   }
 
+  @Override
+  public String toString() {
+    return ((bundle == null) ? "null" : bundle.getSymbolicName() + "_" + bundle.getVersion())
+        + attributes;
+  }
+
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+
+/**
+ * Index of capabilities by namespace and by the value of their primary attribute. The primary
+ * attribute is the one that has the same name as the namespace, e.g. the package name in the
+ * <code>osgi.wiring.package</code>, the symbolic name in the <code>osgi.wiring.bundle</code> and
+ * the changelog name in the <code>liquibase.changelog</code> namespace. If the filter of a
+ * requirement contains an equality check for the primary attribute, only the capabilities with
+ * that value are matched against the requirement, otherwise all capabilities of the namespace.
+ */
+public class CapabilityIndex {
+
+  /**
+   * The {@link Logger} instance for logging.
+   */
+  private static final Logger LOGGER = Logger.getLogger(CapabilityIndex.class.getName());
+
+  private static void addToList(final Map<String, List<BundleCapability>> map, final String key,
+      final BundleCapability capability) {
+    List<BundleCapability> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<BundleCapability>();
+      map.put(key, list);
+    }
+    list.add(capability);
+  }
+
+  /**
+   * Finds the value of a top level equality check in a filter expression. Only the
+   * <code>(name=value)</code> and the <code>(&amp;...(name=value)...)</code> forms are supported.
+   * The value is not returned if it contains wildcards, escaped characters or surrounding
+   * whitespace.
+   *
+   * @param filter
+   *          The filter expression.
+   * @param attributeName
+   *          The name of the attribute.
+   * @return The value of the equality check or <code>null</code> if the filter does not have a
+   *         simple equality check for the attribute at the top level.
+   */
+  public static String findEqualityValue(final String filter, final String attributeName) {
+    if (filter == null) {
+      return null;
+    }
+    String prefix = "(" + attributeName + "=";
+    if (filter.startsWith(prefix)) {
+      return CapabilityIndex.readSimpleValue(filter, prefix.length());
+    }
+    if (!filter.startsWith("(&")) {
+      return null;
+    }
+
+    int depth = 0;
+    for (int i = 2, n = filter.length(); i < n; i++) {
+      char c = filter.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '(') {
+        if ((depth == 0) && filter.startsWith(prefix, i)) {
+          String value = CapabilityIndex.readSimpleValue(filter, i + prefix.length());
+          if (value != null) {
+            return value;
+          }
+        }
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth < 0) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static String readSimpleValue(final String filter, final int start) {
+    int end = filter.indexOf(')', start);
+    if (end < 0) {
+      return null;
+    }
+    String value = filter.substring(start, end);
+    if ((value.length() == 0) || (value.indexOf('*') >= 0) || (value.indexOf('\\') >= 0)
+        || (value.indexOf('(') >= 0) || !value.trim().equals(value)) {
+      return null;
+    }
+    return value;
+  }
+
+  private final Map<String, List<BundleCapability>> capabilitiesByNamespace =
+      new HashMap<String, List<BundleCapability>>();
+
+  private final Map<String, Map<String, List<BundleCapability>>> capabilitiesByPrimaryValue =
+      new HashMap<String, Map<String, List<BundleCapability>>>();
+
+  /**
+   * Capabilities whose primary attribute is not a string or a list of strings. They are candidates
+   * of every requirement in their namespace.
+   */
+  private final Map<String, List<BundleCapability>> unindexedCapabilities =
+      new HashMap<String, List<BundleCapability>>();
+
+  /**
+   * Constructor.
+   *
+   * @param capabilities
+   *          The capabilities to index.
+   */
+  public CapabilityIndex(final Collection<BundleCapability> capabilities) {
+    for (BundleCapability capability : capabilities) {
+      add(capability);
+    }
+  }
+
+  private void add(final BundleCapability capability) {
+    String namespace = capability.getNamespace();
+    CapabilityIndex.addToList(capabilitiesByNamespace, namespace, capability);
+
+    Object primaryValue = capability.getAttributes().get(namespace);
+    if (primaryValue == null) {
+      // Cannot match an equality check on the primary attribute
+      return;
+    }
+
+    Map<String, List<BundleCapability>> capabilitiesByValue =
+        capabilitiesByPrimaryValue.get(namespace);
+    if (capabilitiesByValue == null) {
+      capabilitiesByValue = new HashMap<String, List<BundleCapability>>();
+      capabilitiesByPrimaryValue.put(namespace, capabilitiesByValue);
+    }
+
+    if (primaryValue instanceof String) {
+      CapabilityIndex.addToList(capabilitiesByValue, (String) primaryValue, capability);
+    } else if (isStringList(primaryValue)) {
+      for (Object value : (List<?>) primaryValue) {
+        CapabilityIndex.addToList(capabilitiesByValue, (String) value, capability);
+      }
+    } else {
+      CapabilityIndex.addToList(unindexedCapabilities, namespace, capability);
+    }
+  }
+
+  /**
+   * Finds the capabilities that might satisfy the requirement. The returned capabilities are not
+   * matched against the requirement.
+   *
+   * @param requirement
+   *          The requirement.
+   * @return The candidates. The list must not be modified.
+   */
+  public List<BundleCapability> findCandidates(final BundleRequirement requirement) {
+    String namespace = requirement.getNamespace();
+    String filter = requirement.getDirectives().get(Constants.FILTER_DIRECTIVE);
+    String primaryValue = CapabilityIndex.findEqualityValue(filter, namespace);
+    if (primaryValue == null) {
+      return getList(capabilitiesByNamespace, namespace);
+    }
+
+    Map<String, List<BundleCapability>> capabilitiesByValue =
+        capabilitiesByPrimaryValue.get(namespace);
+    List<BundleCapability> indexed = (capabilitiesByValue == null)
+        ? Collections.<BundleCapability> emptyList()
+        : getList(capabilitiesByValue, primaryValue);
+    List<BundleCapability> unindexed = getList(unindexedCapabilities, namespace);
+    if (unindexed.size() == 0) {
+      return indexed;
+    }
+    List<BundleCapability> result = new ArrayList<BundleCapability>(indexed);
+    result.addAll(unindexed);
+    return result;
+  }
+
+  /**
+   * Finds the indexed capabilities that satisfy the requirement.
+   *
+   * @param requirement
+   *          The requirement.
+   * @return The matching capabilities.
+   */
+  public List<BundleCapability> findMatchingCapabilities(final BundleRequirement requirement) {
+    List<BundleCapability> result = new ArrayList<BundleCapability>();
+    for (BundleCapability capability : findCandidates(requirement)) {
+      if (matches(requirement, capability)) {
+        result.add(capability);
+      }
+    }
+    return result;
+  }
+
+  private List<BundleCapability> getList(final Map<String, List<BundleCapability>> map,
+      final String key) {
+    List<BundleCapability> list = map.get(key);
+    if (list == null) {
+      return Collections.emptyList();
+    }
+    return list;
+  }
+
+  private boolean isStringList(final Object value) {
+    if (!(value instanceof List)) {
+      return false;
+    }
+    for (Object element : (List<?>) value) {
+      if (!(element instanceof String)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks whether any of the indexed capabilities satisfies the requirement.
+   *
+   * @param requirement
+   *          The requirement.
+   * @return <code>true</code> if there is at least one matching capability.
+   */
+  public boolean isSatisfiable(final BundleRequirement requirement) {
+    for (BundleCapability capability : findCandidates(requirement)) {
+      if (matches(requirement, capability)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matches(final BundleRequirement requirement,
+      final BundleCapability capability) {
+    try {
+      return requirement.matches(capability);
+    } catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "Capability does not match the requirement.", e);
+      return false;
+    }
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.everit.persistence.lqmg.internal.manifest.DependencyClosure;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+
+/**
+ * Index of the <code>liquibase.changelog</code> capabilities of the resolved bundles of an
+ * embedded OSGi container. The capabilities are collected from the wirings once and grouped by
+ * their name, so looking up a schema expression does not scan the bundles again. The filters of
+ * the schema expressions are compiled only once, even if the same expression is looked up by
+ * multiple jobs of a batch.
+ */
+public class ChangelogCapabilityIndex {
+
+  /**
+   * A parsed schema expression.
+   */
+  private static class SchemaExpression {
+
+    /**
+     * The filter of the expression or <code>null</code> if the expression does not have one.
+     */
+    private final Filter filter;
+
+    private final String name;
+
+    SchemaExpression(final String name, final Filter filter) {
+      this.name = name;
+      this.filter = filter;
+    }
+  }
+
+  private static final Logger LOGGER = Logger.getLogger(ChangelogCapabilityIndex.class.getName());
+
+  private final Map<String, List<BundleWithAttributes>> capabilitiesByName =
+      new HashMap<String, List<BundleWithAttributes>>();
+
+  /**
+   * The locations of the bundles that provide at least one changelog capability.
+   */
+  private final Set<String> providerLocations = new TreeSet<String>();
+
+  /**
+   * The parsed schema expressions. <code>null</code> values mark the invalid expressions.
+   */
+  private final Map<String, SchemaExpression> schemaExpressions =
+      new HashMap<String, SchemaExpression>();
+
+  /**
+   * Constructor.
+   *
+   * @param bundles
+   *          The bundles of the container.
+   * @param stateMask
+   *          The bundles are indexed only if their state matches the mask, e.g.
+   *          {@link Bundle#RESOLVED}.
+   */
+  public ChangelogCapabilityIndex(final Bundle[] bundles, final int stateMask) {
+    for (Bundle bundle : bundles) {
+      if ((bundle.getState() & stateMask) == 0) {
+        continue;
+      }
+      BundleWiring wiring = bundle.adapt(BundleWiring.class);
+      if (wiring == null) {
+        continue;
+      }
+      for (BundleCapability capability : wiring
+          .getCapabilities(DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG)) {
+        Map<String, Object> attributes = capability.getAttributes();
+        Object name = attributes.get(DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG);
+        if (name == null) {
+          continue;
+        }
+        List<BundleWithAttributes> capabilities = capabilitiesByName.get(name.toString());
+        if (capabilities == null) {
+          capabilities = new ArrayList<BundleWithAttributes>();
+          capabilitiesByName.put(name.toString(), capabilities);
+        }
+        capabilities.add(new BundleWithAttributes(bundle, attributes));
+        providerLocations.add(bundle.getLocation());
+      }
+    }
+  }
+
+  /**
+   * Finds the capabilities that match a schema expression.
+   *
+   * @param capabilityExpression
+   *          A schema name with optional filter expression. E.g.: userMgmt;filter:="(version=2)"
+   * @return The matching capabilities with their bundles in the order of the bundles. Empty if
+   *         there is no matching capability or the expression is invalid.
+   */
+  public List<BundleWithAttributes> findBySchemaExpression(final String capabilityExpression) {
+    SchemaExpression schemaExpression = parseSchemaExpression(capabilityExpression);
+    if (schemaExpression == null) {
+      return Collections.emptyList();
+    }
+    List<BundleWithAttributes> capabilities = capabilitiesByName.get(schemaExpression.name);
+    if (capabilities == null) {
+      return Collections.emptyList();
+    }
+    if (schemaExpression.filter == null) {
+      return new ArrayList<BundleWithAttributes>(capabilities);
+    }
+    List<BundleWithAttributes> result = new ArrayList<BundleWithAttributes>();
+    for (BundleWithAttributes capability : capabilities) {
+      if (schemaExpression.filter.matches(capability.attributes)) {
+        result.add(capability);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the locations of the bundles that provide changelogs. The changelogs of a generation
+   * can be included only from these bundles.
+   */
+  public Set<String> getProviderLocations() {
+    return Collections.unmodifiableSet(providerLocations);
+  }
+
+  private SchemaExpression parseSchemaExpression(final String capabilityExpression) {
+    if (schemaExpressions.containsKey(capabilityExpression)) {
+      return schemaExpressions.get(capabilityExpression);
+    }
+    SchemaExpression schemaExpression = null;
+    try {
+      Clause[] clauses = Parser.parseHeader(capabilityExpression);
+      if (clauses.length > 0) {
+        String filterString = clauses[0].getDirective(Constants.FILTER_DIRECTIVE);
+        Filter filter = null;
+        if (filterString != null) {
+          filter = FrameworkUtil.createFilter(filterString);
+        }
+        schemaExpression = new SchemaExpression(clauses[0].getName(), filter);
+      }
+    } catch (IllegalArgumentException e) {
+      LOGGER.warning("Invalid schema expression: " + capabilityExpression);
+    } catch (InvalidSyntaxException e) {
+      LOGGER.warning("Invalid filter in schema expression: " + capabilityExpression);
+    }
+    schemaExpressions.put(capabilityExpression, schemaExpression);
+    return schemaExpression;
+  }
+
+}
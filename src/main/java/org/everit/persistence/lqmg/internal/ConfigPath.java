@@ -17,6 +17,7 @@ package org.everit.persistence.lqmg.internal;
 
 import javax.annotation.Generated;
 
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
 import org.osgi.framework.Bundle;
 
 /**
@@ -24,11 +25,15 @@ import org.osgi.framework.Bundle;
  */
 public class ConfigPath {
 
-  public final Bundle bundle;
+  /**
+   * The {@link Bundle} or the {@link BundleDescriptor} that contains the configuration resource or
+   * <code>null</code> if the resource is a path on the filesystem.
+   */
+  public final Object bundle;
 
   public final String resource;
 
-  public ConfigPath(final Bundle bundle, final String resource) {
+  public ConfigPath(final Object bundle, final String resource) {
     this.bundle = bundle;
     this.resource = resource;
   }
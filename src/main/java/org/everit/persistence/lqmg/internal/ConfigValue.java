@@ -15,6 +15,7 @@
  */
 package org.everit.persistence.lqmg.internal;
 
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
 import org.everit.persistence.lqmg.internal.schema.xml.AbstractNamingRuleType;
 import org.osgi.framework.Bundle;
 
@@ -26,7 +27,11 @@ import org.osgi.framework.Bundle;
  */
 public class ConfigValue<T extends AbstractNamingRuleType> {
 
-  public final Bundle bundle;
+  /**
+   * The {@link Bundle} or the {@link BundleDescriptor} of the configuration or <code>null</code> in
+   * case of the main configuration.
+   */
+  public final Object bundle;
 
   public final String configurationXMLPath;
 
@@ -35,7 +40,7 @@ public class ConfigValue<T extends AbstractNamingRuleType> {
   /**
    * Constructor.
    */
-  public ConfigValue(final T namingRule, final Bundle bundle, final String configurationXMLPath) {
+  public ConfigValue(final T namingRule, final Object bundle, final String configurationXMLPath) {
     this.namingRule = namingRule;
     this.bundle = bundle;
     this.configurationXMLPath = configurationXMLPath;
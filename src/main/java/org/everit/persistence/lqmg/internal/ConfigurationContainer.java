@@ -16,6 +16,7 @@
 package org.everit.persistence.lqmg.internal;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -34,6 +35,7 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Unmarshaller;
 
 import org.everit.persistence.lqmg.LQMGException;
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
 import org.everit.persistence.lqmg.internal.schema.xml.AbstractNamingRuleType;
 import org.everit.persistence.lqmg.internal.schema.xml.ClassNameRuleType;
 import org.everit.persistence.lqmg.internal.schema.xml.LQMGType;
@@ -101,7 +103,7 @@ public class ConfigurationContainer {
       // If the config file is already processed, just return
       return;
     }
-    Bundle bundle = configPath.bundle;
+    Object bundle = configPath.bundle;
     String resource = configPath.resource;
     URL configurationURL;
     if (bundle == null) {
@@ -111,8 +113,16 @@ public class ConfigurationContainer {
         throw new LQMGException(
             "Could not read configuration from path " + configPath.resource, e);
       }
+    } else if (bundle instanceof BundleDescriptor) {
+      String bundleLocation = ((BundleDescriptor) bundle).location;
+      try {
+        configurationURL = BundleLocationUtil.getEntry(bundleLocation, resource);
+      } catch (IOException e) {
+        throw new LQMGException("Could not read configuration " + resource + " from bundle "
+            + bundleLocation, e);
+      }
     } else {
-      BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+      BundleWiring bundleWiring = ((Bundle) bundle).adapt(BundleWiring.class);
       ClassLoader classLoader = bundleWiring.getClassLoader();
       configurationURL = classLoader.getResource(resource);
     }
@@ -142,13 +152,13 @@ public class ConfigurationContainer {
       StringBuilder sb = new StringBuilder("Configuration is defined more than once: ").append(
           schemaAndTable.toString()).append("\n");
 
-      Bundle bundle = configValue.bundle;
+      Object bundle = configValue.bundle;
       if (bundle != null) {
         sb.append("  Bundle: ").append(bundle.toString()).append("; ");
       }
       sb.append("Path: ").append(configValue.configurationXMLPath).append("\n");
 
-      Bundle existingValueBundle = existingValue.bundle;
+      Object existingValueBundle = existingValue.bundle;
       if (existingValueBundle != null) {
         sb.append("  Bundle: ").append(existingValueBundle.toString()).append("; ");
       }
@@ -262,7 +272,7 @@ public class ConfigurationContainer {
     return matcher.matches();
   }
 
-  private void processClassNameRuleType(final String xmlConfigurationPath, final Bundle bundle,
+  private void processClassNameRuleType(final String xmlConfigurationPath, final Object bundle,
       final AbstractNamingRuleType lqmgAbstractEntity) {
     ClassNameRuleType lqmgEntity = (ClassNameRuleType) lqmgAbstractEntity;
     SchemaAndTable schemaAndTable = new SchemaAndTable(
@@ -280,7 +290,7 @@ public class ConfigurationContainer {
   }
 
   private void processLQMGType(final LQMGType lqmgType, final String xmlConfigurationPath,
-      final Bundle bundle) {
+      final Object bundle) {
     String defaultPackageName = lqmgType.getDefaultPackage();
     String defaultSchemaName = lqmgType.getDefaultSchema();
 
@@ -318,7 +328,7 @@ public class ConfigurationContainer {
     }
   }
 
-  private void processRegexRuleType(final String xmlConfigurationPath, final Bundle bundle,
+  private void processRegexRuleType(final String xmlConfigurationPath, final Object bundle,
       final AbstractNamingRuleType lqmgAbstractEntity) {
     RegexRuleType lqmgEntitySet = (RegexRuleType) lqmgAbstractEntity;
     SchemaAndTable configKey = new SchemaAndTable(
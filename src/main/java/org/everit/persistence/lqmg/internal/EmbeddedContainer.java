@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+
+import org.osgi.framework.launch.Framework;
+
+/**
+ * An OSGi framework implementation that can be embedded by LQMG to resolve the bundles. Every
+ * session creates its own instance. The frameworks of some implementations keep state in static
+ * fields that is shared by all sessions of the JVM; such state is handled via
+ * {@link #captureGlobalState()} and {@link #restoreGlobalState(Object)}.
+ */
+public interface EmbeddedContainer {
+
+  /**
+   * Returns the state that the framework keeps in static fields and that has to be activated again
+   * before the framework is used after another framework was created or used in the same JVM.
+   * Called right after the framework is started.
+   *
+   * @return The state or <code>null</code> if the framework does not keep any state in static
+   *         fields.
+   */
+  Object captureGlobalState();
+
+  /**
+   * Creates a new framework instance that is not started yet.
+   *
+   * @param storageDirectory
+   *          The directory where the framework keeps the installed bundles.
+   * @return The framework.
+   */
+  Framework createFramework(File storageDirectory);
+
+  /**
+   * Returns the hack utility that knows how to rewrite the bundles of this framework.
+   */
+  HackUtil getHackUtil();
+
+  /**
+   * Returns the name of the container as it is configured in the generation properties.
+   */
+  String getName();
+
+  /**
+   * Activates the state that was returned by {@link #captureGlobalState()}.
+   *
+   * @param globalState
+   *          The state of the framework that should be used.
+   */
+  void restoreGlobalState(Object globalState);
+
+}
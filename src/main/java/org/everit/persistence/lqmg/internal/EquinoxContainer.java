@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.osgi.framework.internal.core.FrameworkProperties;
+import org.eclipse.osgi.launch.EquinoxFactory;
+import org.everit.persistence.lqmg.GenerationProperties;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * The Eclipse Equinox framework. Equinox keeps the properties of the launched framework in a
+ * static field, so the field is saved after the start of every framework and written back before
+ * the framework is used again.
+ */
+public class EquinoxContainer implements EmbeddedContainer {
+
+  private static Field getFrameworkPropertiesField() {
+    // FIXME avoid having to do this hack!!! equinox internal classes should be available via the
+    // jvm classloader
+    Class<FrameworkProperties> clazz = FrameworkProperties.class;
+    try {
+      Field propertiesField = clazz.getDeclaredField("properties");
+      propertiesField.setAccessible(true);
+      return propertiesField;
+    } catch (NoSuchFieldException e) {
+      throw new RuntimeException(e);
+    } catch (SecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * HACK to make Equinox using the classloader of the system even if LQMG is called multiple times
+   * and to make Equinox using the properties of the right framework if multiple embedded OSGi
+   * containers are running in the same JVM.
+   */
+  private static void writeFrameworkProperties(final Object properties) {
+    try {
+      EquinoxContainer.getFrameworkPropertiesField().set(null, properties);
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private final HackUtil hackUtil = new EquinoxHackUtilImpl();
+
+  @Override
+  public Object captureGlobalState() {
+    try {
+      return EquinoxContainer.getFrameworkPropertiesField().get(null);
+    } catch (IllegalArgumentException e) {
+      throw new RuntimeException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public Framework createFramework(final File storageDirectory) {
+    String tempDirPath = storageDirectory.getAbsolutePath();
+
+    Map<String, String> config = new HashMap<String, String>();
+    config.put("osgi.configuration.area", tempDirPath);
+    config.put("osgi.baseConfiguration.area", tempDirPath);
+    config.put("osgi.sharedConfiguration.area", tempDirPath);
+    config.put("osgi.instance.area", tempDirPath);
+    config.put("osgi.user.area", tempDirPath);
+    config.put("osgi.hook.configurators.exclude",
+        "org.eclipse.core.runtime.internal.adaptor.EclipseLogHook");
+
+    EquinoxContainer.writeFrameworkProperties(null);
+    return new EquinoxFactory().newFramework(config);
+  }
+
+  @Override
+  public HackUtil getHackUtil() {
+    return hackUtil;
+  }
+
+  @Override
+  public String getName() {
+    return GenerationProperties.CONTAINER_EQUINOX;
+  }
+
+  @Override
+  public void restoreGlobalState(final Object globalState) {
+    if (globalState != null) {
+      EquinoxContainer.writeFrameworkProperties(globalState);
+    }
+  }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import org.everit.persistence.lqmg.GenerationProperties;
+import org.everit.persistence.lqmg.LQMGException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.launch.FrameworkFactory;
+
+/**
+ * The Apache Felix framework. Felix is not a compile time dependency of LQMG, so its factory is
+ * looked up with the {@link ServiceLoader} and it must be on the classpath if it is selected.
+ */
+public class FelixContainer implements EmbeddedContainer {
+
+  private static final String FRAMEWORK_FACTORY_CLASS_NAME =
+      "org.apache.felix.framework.FrameworkFactory";
+
+  /**
+   * Equinox registers the JVM wide URL stream handler factory, so Felix must not try to register
+   * its own one if both frameworks are used in the same JVM.
+   */
+  private static final String URL_HANDLERS_PROPERTY = "felix.service.urlhandlers";
+
+  private final HackUtil hackUtil = new FelixHackUtilImpl();
+
+  @Override
+  public Object captureGlobalState() {
+    return null;
+  }
+
+  @Override
+  public Framework createFramework(final File storageDirectory) {
+    FrameworkFactory frameworkFactory = null;
+    for (FrameworkFactory availableFactory : ServiceLoader.load(FrameworkFactory.class)) {
+      if (FRAMEWORK_FACTORY_CLASS_NAME.equals(availableFactory.getClass().getName())) {
+        frameworkFactory = availableFactory;
+      }
+    }
+    if (frameworkFactory == null) {
+      throw new LQMGException("Apache Felix is selected as embedded OSGi container but "
+          + FRAMEWORK_FACTORY_CLASS_NAME + " is not available on the classpath", null);
+    }
+
+    Map<String, String> config = new HashMap<String, String>();
+    config.put(Constants.FRAMEWORK_STORAGE, storageDirectory.getAbsolutePath());
+    config.put(URL_HANDLERS_PROPERTY, Boolean.FALSE.toString());
+    return frameworkFactory.newFramework(config);
+  }
+
+  @Override
+  public HackUtil getHackUtil() {
+    return hackUtil;
+  }
+
+  @Override
+  public String getName() {
+    return GenerationProperties.CONTAINER_FELIX;
+  }
+
+  @Override
+  public void restoreGlobalState(final Object globalState) {
+    // Felix does not keep the state of the framework in static fields
+  }
+
+}
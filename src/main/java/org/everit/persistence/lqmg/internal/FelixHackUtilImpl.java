@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.logging.Logger;
+
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Directive;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Apache Felix specific implementation of the {@link HackUtil}. Felix does not have a public
+ * resolver state API, so the <code>Import-Package</code> and <code>Require-Bundle</code> headers
+ * are parsed from the manifest and the clauses are matched to the declared requirements of the
+ * bundle by their package or bundle name. Felix copies the content of the updated bundles into its
+ * storage area, so the hacked files are deleted right after the update.
+ */
+public class FelixHackUtilImpl extends AbstractHackUtil {
+
+  private static final Logger LOGGER = Logger.getLogger(FelixHackUtilImpl.class.getName());
+
+  private void appendClauseField(final StringBuilder sb, final String name, final String assignment,
+      final String value) {
+    sb.append(';').append(name).append(assignment).append('"').append(escapeClauseValue(value))
+        .append('"');
+  }
+
+  /**
+   * Collects the package or bundle names of the mandatory requirements that none of the bundles
+   * can satisfy.
+   */
+  private Set<String> findUnsatisfiableNames(final BundleRevision revision, final String namespace,
+      final CapabilityIndex capabilityIndex) {
+    Set<String> result = new HashSet<String>();
+    for (BundleRequirement requirement : revision.getDeclaredRequirements(namespace)) {
+      if (SyntheticProviderBuilder.isMandatory(requirement)
+          && !capabilityIndex.isSatisfiable(requirement)) {
+        String name = CapabilityIndex.findEqualityValue(
+            requirement.getDirectives().get(Constants.FILTER_DIRECTIVE), namespace);
+        if (name != null) {
+          result.add(name);
+        }
+      }
+    }
+    return result;
+  }
+
+  private void hackNameRequirementManifestHeader(final BundleRevision revision,
+      final String headerName, final String namespace, final CapabilityIndex capabilityIndex,
+      final Attributes mainAttributes) {
+    String headerValue = mainAttributes.getValue(headerName);
+    if ((headerValue == null) || (headerValue.trim().length() == 0)) {
+      return;
+    }
+    Set<String> unsatisfiableNames = findUnsatisfiableNames(revision, namespace, capabilityIndex);
+    if (unsatisfiableNames.isEmpty()) {
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    for (Clause clause : Parser.parseHeader(headerValue)) {
+      if (sb.length() > 0) {
+        sb.append(",");
+      }
+      sb.append(clause.getName());
+      for (Attribute attribute : clause.getAttributes()) {
+        appendClauseField(sb, attribute.getName(), "=", attribute.getValue());
+      }
+      boolean optional = false;
+      for (Directive directive : clause.getDirectives()) {
+        if (Constants.RESOLUTION_DIRECTIVE.equals(directive.getName())) {
+          optional = Constants.RESOLUTION_OPTIONAL.equals(directive.getValue());
+          if (!optional && unsatisfiableNames.contains(clause.getName())) {
+            continue;
+          }
+        }
+        appendClauseField(sb, directive.getName(), ":=", directive.getValue());
+      }
+      if (!optional && unsatisfiableNames.contains(clause.getName())) {
+        LOGGER.info("[HACK]: Making " + headerName + " optional in bundle "
+            + revision.getSymbolicName() + ": " + clause.getName());
+        appendClauseField(sb, Constants.RESOLUTION_DIRECTIVE, ":=",
+            Constants.RESOLUTION_OPTIONAL);
+      }
+    }
+    mainAttributes.putValue(headerName, sb.toString());
+  }
+
+  @Override
+  protected void hackWiringManifestHeaders(final BundleRevision revision,
+      final CapabilityIndex capabilityIndex, final Attributes mainAttributes) {
+    hackNameRequirementManifestHeader(revision, Constants.IMPORT_PACKAGE,
+        BundleRevision.PACKAGE_NAMESPACE, capabilityIndex, mainAttributes);
+    hackNameRequirementManifestHeader(revision, Constants.REQUIRE_BUNDLE,
+        BundleRevision.BUNDLE_NAMESPACE, capabilityIndex, mainAttributes);
+  }
+
+  @Override
+  protected File resolveBundleJarFile(final Bundle bundle) {
+    return BundleLocationUtil.resolveFile(bundle.getLocation());
+  }
+
+  @Override
+  protected void updateBundle(final Bundle bundle, final File hackedFile) {
+    try (InputStream in = new FileInputStream(hackedFile)) {
+      bundle.update(in);
+    } catch (BundleException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    if (!hackedFile.delete()) {
+      LOGGER.fine("Could not delete hacked bundle file " + hackedFile);
+    }
+  }
+}
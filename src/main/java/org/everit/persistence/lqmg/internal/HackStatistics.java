@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+/**
+ * Statistics of a {@link HackUtil#hackBundles(org.osgi.framework.launch.Framework, java.io.File,
+ * java.util.Map, HackedBundleCache, java.util.Collection)} call.
+ */
+public class HackStatistics {
+
+  /**
+   * The elapsed time of preparing the hacked bundles in nanoseconds, without updating the bundles
+   * of the container.
+   */
+  public final long elapsedDuration;
+
+  public final int hackedBundleCount;
+
+  /**
+   * The number of threads that prepared the hacked bundles.
+   */
+  public final int threadCount;
+
+  /**
+   * The sum of the time that was spent on preparing each hacked bundle in nanoseconds. This is how
+   * long preparing the bundles would have taken on a single thread.
+   */
+  public final long workDuration;
+
+  /**
+   * Constructor.
+   */
+  public HackStatistics(final int hackedBundleCount, final int threadCount,
+      final long workDuration, final long elapsedDuration) {
+    this.hackedBundleCount = hackedBundleCount;
+    this.threadCount = threadCount;
+    this.workDuration = workDuration;
+    this.elapsedDuration = elapsedDuration;
+  }
+
+  /**
+   * The time that was saved by preparing the hacked bundles in parallel in nanoseconds.
+   */
+  public long getSavedDuration() {
+    return Math.max(0, workDuration - elapsedDuration);
+  }
+
+}
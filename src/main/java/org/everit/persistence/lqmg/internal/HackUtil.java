@@ -16,14 +16,71 @@
 package org.everit.persistence.lqmg.internal;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Manifest;
 
+import org.osgi.framework.Bundle;
 import org.osgi.framework.launch.Framework;
 
 /**
- * Interface to hack the bundle wiring.
+ * Interface to hack the bundle wiring. The hacked bundles may be prepared on multiple threads,
+ * so implementations must be stateless or thread-safe.
  */
 public interface HackUtil {
 
-  void hackBundles(Framework osgiContainer, File tempDirectory);
+  /**
+   * Describes why the providers of a capability could not be resolved. The unsatisfied
+   * requirements are queried from the resolver state of the container, so no bundle is started
+   * or resolved. The result is a tree of the providers, their unsatisfied requirements and the
+   * unresolved bundles that could satisfy those requirements. Requirements that none of the bundles
+   * can satisfy are marked as missing.
+   *
+   * @param osgiContainer
+   *          The embedded OSGi container.
+   * @param capabilityExpression
+   *          The schema expression of the job.
+   * @return The diagnostics in a human readable, multi-line form.
+   */
+  String createResolutionDiagnostics(Framework osgiContainer, String capabilityExpression);
+
+  /**
+   * Updates the unresolved bundles of the container in the way that their unsatisfied
+   * requirements become optional. Only the bundles that provide the requested capabilities and the
+   * bundles that they depend on transitively are updated. The hacked bundles may be prepared on
+   * multiple threads, but the bundles of the container are updated one by one on the calling
+   * thread.
+   *
+   * @param osgiContainer
+   *          The embedded OSGi container.
+   * @param tempDirectory
+   *          The storage directory of the container.
+   * @param originalManifests
+   *          The manifests of the bundles by their install location that were already read before
+   *          the installation. Bundles that are not in the map are read from the container.
+   * @param hackedBundleCache
+   *          The cache where the hacked bundles are looked up and stored or <code>null</code> if
+   *          every bundle should be hacked.
+   * @param capabilityExpressions
+   *          The schema expressions of the jobs that need the hacked bundles.
+   * @return The statistics of the hacking.
+   */
+  HackStatistics hackBundles(Framework osgiContainer, File tempDirectory,
+      Map<String, Manifest> originalManifests, HackedBundleCache hackedBundleCache,
+      Collection<String> capabilityExpressions);
+
+  /**
+   * Installs manifest-only bundles that provide the mandatory requirements of the unresolved
+   * bundles that none of the installed bundles can satisfy. The bundles are not resolved by this
+   * method, so the next resolve operation of the container can wire all bundles in one pass. The
+   * requirements that cannot be provided synthetically are left as they are.
+   *
+   * @param osgiContainer
+   *          The embedded OSGi container.
+   * @return The installed synthetic bundles.
+   * @see SyntheticProviderBuilder
+   */
+  List<Bundle> installSyntheticProviders(Framework osgiContainer);
 
 }
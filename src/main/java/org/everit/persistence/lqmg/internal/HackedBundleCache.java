@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.wiring.BundleCapability;
+
+/**
+ * Cache of hacked bundles. The hacked manifest of a bundle depends only on the content of the
+ * bundle and on the capabilities that are available in the container, so the hacked jars are
+ * stored in files whose name is the hash of the content of the original bundle and the fingerprint
+ * of the available capabilities. A bundle is taken from the cache if the same third-party bundle
+ * is hacked again next to bundles that provide the same capabilities, even if the content of the
+ * other bundles changed and a new storage area had to be created. The least recently used files
+ * are deleted if the size of the cache exceeds the configured limit.
+ */
+public class HackedBundleCache {
+
+  /**
+   * Changes if the way of hacking the bundles changes, so the files of older versions are not
+   * used.
+   */
+  private static final String FORMAT_VERSION = "1";
+
+  private static final String JAR_SUFFIX = ".jar";
+
+  private static final Logger LOGGER = Logger.getLogger(HackedBundleCache.class.getName());
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Calculates the fingerprint of a set of capabilities. The order of the capabilities does not
+   * matter.
+   *
+   * @param capabilities
+   *          The available capabilities.
+   * @return The fingerprint in hexadecimal format.
+   */
+  public static String calculateCapabilityFingerprint(
+      final Collection<BundleCapability> capabilities) {
+    List<String> capabilityStrings = new ArrayList<String>(capabilities.size());
+    for (BundleCapability capability : capabilities) {
+      StringBuilder sb = new StringBuilder(capability.getNamespace());
+      Map<String, Object> attributes = new TreeMap<String, Object>(capability.getAttributes());
+      for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+        sb.append(';').append(attribute.getKey()).append('=')
+            .append(String.valueOf(attribute.getValue()));
+      }
+      Map<String, String> directives = new TreeMap<String, String>(capability.getDirectives());
+      for (Map.Entry<String, String> directive : directives.entrySet()) {
+        sb.append(';').append(directive.getKey()).append(":=").append(directive.getValue());
+      }
+      capabilityStrings.add(sb.toString());
+    }
+    Collections.sort(capabilityStrings);
+
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    for (String capabilityString : capabilityStrings) {
+      digest.update(capabilityString.getBytes(UTF8));
+      digest.update((byte) '\n');
+    }
+    return BundleLocationUtil.toHex(digest.digest());
+  }
+
+  private final File cacheFolder;
+
+  private final long maxSize;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheFolder
+   *          The folder where the hacked bundles are kept.
+   * @param maxSize
+   *          The maximum size of all hacked bundles in bytes.
+   */
+  public HackedBundleCache(final File cacheFolder, final long maxSize) {
+    this.cacheFolder = cacheFolder;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Calculates the key of the hacked version of a bundle.
+   *
+   * @param bundle
+   *          The original bundle.
+   * @param capabilityFingerprint
+   *          The fingerprint of the available capabilities calculated by
+   *          {@link #calculateCapabilityFingerprint(Collection)}.
+   * @return The key or <code>null</code> if the bundle does not come from the local filesystem and
+   *         cannot be cached.
+   */
+  public String calculateKey(final Bundle bundle, final String capabilityFingerprint) {
+    String contentHash;
+    try {
+      contentHash = BundleLocationUtil.contentHash(bundle.getLocation());
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Could not calculate content hash of " + bundle.getLocation(), e);
+      return null;
+    }
+    if (contentHash == null) {
+      return null;
+    }
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    digest.update((FORMAT_VERSION + "|" + contentHash + "|" + capabilityFingerprint)
+        .getBytes(UTF8));
+    return BundleLocationUtil.toHex(digest.digest());
+  }
+
+  /**
+   * Copies a hacked bundle from the cache.
+   *
+   * @param key
+   *          The key calculated by {@link #calculateKey(Bundle, String)}.
+   * @param target
+   *          The file where the hacked bundle should be copied.
+   * @return <code>true</code> if the bundle was found in the cache and copied.
+   */
+  public boolean copyTo(final String key, final File target) {
+    File cachedFile = new File(cacheFolder, key + JAR_SUFFIX);
+    if (!cachedFile.isFile()) {
+      return false;
+    }
+    try {
+      Files.copy(cachedFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      // The file might have been evicted by another process in the meantime
+      LOGGER.log(Level.FINE, "Could not copy hacked bundle from cache: " + cachedFile, e);
+      return false;
+    }
+    if (!cachedFile.setLastModified(System.currentTimeMillis())) {
+      LOGGER.fine("Could not update last modification time of " + cachedFile);
+    }
+    return true;
+  }
+
+  /**
+   * Deletes the least recently used hacked bundles until the size of the cache gets below the
+   * limit.
+   */
+  public void evict() {
+    File[] files = cacheFolder.listFiles(new FileFilter() {
+
+      @Override
+      public boolean accept(final File pathname) {
+        return pathname.isFile() && pathname.getName().endsWith(JAR_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+
+    List<File> cachedFiles = new ArrayList<File>(Arrays.asList(files));
+    Collections.sort(cachedFiles, new Comparator<File>() {
+
+      @Override
+      public int compare(final File o1, final File o2) {
+        long lastModified1 = o1.lastModified();
+        long lastModified2 = o2.lastModified();
+        return (lastModified1 < lastModified2) ? 1 : ((lastModified1 == lastModified2) ? 0 : -1);
+      }
+    });
+
+    long size = 0;
+    for (File cachedFile : cachedFiles) {
+      size += cachedFile.length();
+      if ((size > maxSize) && !cachedFile.delete()) {
+        LOGGER.fine("Could not delete hacked bundle from cache: " + cachedFile);
+      }
+    }
+  }
+
+  /**
+   * Stores a copy of a hacked bundle in the cache. The file is copied to a temporary name first
+   * and renamed afterwards, so other processes never see a partially written file.
+   *
+   * @param key
+   *          The key calculated by {@link #calculateKey(Bundle, String)}.
+   * @param hackedFile
+   *          The hacked bundle.
+   */
+  public void store(final String key, final File hackedFile) {
+    if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+      LOGGER.warning("Could not create cache folder: " + cacheFolder.getAbsolutePath());
+      return;
+    }
+    File tempFile = new File(cacheFolder, key + "-" + System.nanoTime() + TEMP_FILE_SUFFIX);
+    File cachedFile = new File(cacheFolder, key + JAR_SUFFIX);
+    try {
+      Files.copy(hackedFile.toPath(), tempFile.toPath());
+      try {
+        Files.move(tempFile.toPath(), cachedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile.toPath(), cachedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not store hacked bundle in cache: " + cachedFile, e);
+      if (tempFile.exists() && !tempFile.delete()) {
+        LOGGER.fine("Could not delete temporary file " + tempFile);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
+import org.h2.engine.Constants;
+import org.osgi.framework.Bundle;
+
+/**
+ * A file based H2 database that is kept between the runs, so Liquibase applies only the changesets
+ * that were added since the previous run. There is one database for each combination of
+ * capability, contexts and default schema. The configuration resources that the changelogs
+ * referenced are stored next to the database, as the changes of the previous runs are not
+ * executed again. A database is used by one job at the same time within the JVM. Other processes
+ * are kept away by the file lock of H2. The database is rebuilt by dropping all of its objects, so
+ * the files of the database are never deleted while H2 might use them.
+ */
+public class IncrementalDatabase implements Closeable {
+
+  private static final String CONFIG_SUFFIX = ".lqmg.properties";
+
+  /**
+   * The absolute paths of the databases that are used by a job of this JVM.
+   */
+  private static final Set<String> DATABASES_IN_USE =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+  private static final Logger LOGGER = Logger.getLogger(IncrementalDatabase.class.getName());
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static String getConfigPathKey(final ConfigPath configPath) {
+    String location = null;
+    if (configPath.bundle instanceof Bundle) {
+      location = ((Bundle) configPath.bundle).getLocation();
+    } else if (configPath.bundle instanceof BundleDescriptor) {
+      location = ((BundleDescriptor) configPath.bundle).location;
+    }
+    if (location != null) {
+      location = BundleLocationUtil.toInstallLocation(location);
+    }
+    return location + "|" + configPath.resource;
+  }
+
+  /**
+   * Finds the configuration resources of the previous runs that were not referenced by the changes
+   * of the current run.
+   *
+   * @param previousConfigPaths
+   *          The configuration resources of the previous runs.
+   * @param currentConfigPaths
+   *          The configuration resources that were referenced by the changes of the current run.
+   * @return The configuration resources that should be added to the configuration of the
+   *         current run.
+   */
+  public static List<ConfigPath> findUnreferencedConfigPaths(
+      final Collection<ConfigPath> previousConfigPaths,
+      final Collection<ConfigPath> currentConfigPaths) {
+    Set<String> currentKeys = new HashSet<String>();
+    for (ConfigPath configPath : currentConfigPaths) {
+      currentKeys.add(IncrementalDatabase.getConfigPathKey(configPath));
+    }
+    List<ConfigPath> result = new ArrayList<ConfigPath>();
+    for (ConfigPath configPath : previousConfigPaths) {
+      if (!currentKeys.contains(IncrementalDatabase.getConfigPathKey(configPath))) {
+        result.add(configPath);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Opens the database of a capability if it is not used by another job of the JVM.
+   *
+   * @param databaseFolder
+   *          The folder where the databases are kept.
+   * @param capability
+   *          The schema expression of the generation.
+   * @param contexts
+   *          The Liquibase contexts of the update.
+   * @param defaultSchema
+   *          The default schema of the database or <code>null</code>.
+   * @return The database or <code>null</code> if another job of the JVM uses it.
+   */
+  public static IncrementalDatabase open(final File databaseFolder, final String capability,
+      final String contexts, final String defaultSchema) {
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    digest.update((Constants.getVersion() + "|" + capability + "|" + contexts + "|"
+        + defaultSchema).getBytes(UTF8));
+    File databaseFile =
+        new File(databaseFolder, BundleLocationUtil.toHex(digest.digest())).getAbsoluteFile();
+    if (!DATABASES_IN_USE.add(databaseFile.getPath())) {
+      return null;
+    }
+    return new IncrementalDatabase(databaseFile);
+  }
+
+  /**
+   * The path of the database without the extensions that H2 appends.
+   */
+  private final File databaseFile;
+
+  private IncrementalDatabase(final File databaseFile) {
+    this.databaseFile = databaseFile;
+  }
+
+  /**
+   * Releases the database, so other jobs of the JVM can use it.
+   */
+  @Override
+  public void close() {
+    DATABASES_IN_USE.remove(databaseFile.getPath());
+  }
+
+  /**
+   * The name of the database that can be used in the H2 JDBC URL.
+   */
+  public String getDatabaseName() {
+    return "file:" + databaseFile.getPath();
+  }
+
+  /**
+   * Reads the configuration resources that were referenced by the changes of the previous runs.
+   * The stored resources are deleted, so if the current run fails after executing some of the new
+   * changes, the database is rebuilt by the next run.
+   *
+   * @return The configuration resources or <code>null</code> if they were not stored successfully
+   *         by the previous run. The database must be rebuilt in this case.
+   */
+  public List<ConfigPath> readConfigPaths() {
+    File configFile = new File(databaseFile.getPath() + CONFIG_SUFFIX);
+    if (!configFile.isFile()) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(configFile)) {
+      properties.load(in);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not read configuration resources of " + databaseFile, e);
+      return null;
+    }
+    if (!configFile.delete()) {
+      LOGGER.warning("Could not delete configuration resources of " + databaseFile);
+      return null;
+    }
+    return SchemaSnapshotCache.readConfigPaths(properties);
+  }
+
+  /**
+   * Stores the configuration resources that were referenced by the changes of all runs. If they
+   * cannot be stored, the database is rebuilt by the next run.
+   *
+   * @param configPaths
+   *          The configuration resources.
+   */
+  public void storeConfigPaths(final Collection<ConfigPath> configPaths) {
+    File configFile = new File(databaseFile.getPath() + CONFIG_SUFFIX);
+    try {
+      Properties properties = new Properties();
+      if (!SchemaSnapshotCache.writeConfigPaths(configPaths, properties)) {
+        LOGGER.info("A configuration resource of " + databaseFile + " is not available directly"
+            + " in its bundle, the database will be rebuilt by the next run");
+        return;
+      }
+      File tempFile = new File(configFile.getPath() + "-" + System.nanoTime() + TEMP_FILE_SUFFIX);
+      try (OutputStream out = new FileOutputStream(tempFile)) {
+        properties.store(out, null);
+      }
+      if (!tempFile.renameTo(configFile)) {
+        throw new IOException("Could not rename " + tempFile + " to " + configFile);
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not store configuration resources of " + databaseFile
+          + ", the database will be rebuilt by the next run", e);
+    }
+  }
+
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Thread-safe cache that keeps a limited number of entries. If the limit is reached, the least
+ * recently used entry is evicted, so the caches that live as long as the JVM do not grow without
+ * bounds when LQMG is called many times with different bundles.
+ *
+ * @param <K>
+ *          The type of the keys.
+ * @param <V>
+ *          The type of the values.
+ */
+public final class LRUCache<K, V> {
+
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final Map<K, V> entries;
+
+  /**
+   * Constructor.
+   *
+   * @param maxSize
+   *          The maximum number of entries that are kept in the cache.
+   */
+  public LRUCache(final int maxSize) {
+    entries = new LinkedHashMap<K, V>(16, LOAD_FACTOR, true) {
+
+      private static final long serialVersionUID = 3914628467436419527L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the cached value of a key.
+   *
+   * @return The value or <code>null</code> if the key is not cached.
+   */
+  public synchronized V get(final K key) {
+    return entries.get(key);
+  }
+
+  public synchronized void put(final K key, final V value) {
+    entries.put(key, value);
+  }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
+import org.h2.engine.Constants;
+import org.osgi.framework.Bundle;
+
+/**
+ * Cache of the database schemas that the changelogs create. After a successful Liquibase update
+ * the schema of the in-memory database is dumped with the H2 <code>SCRIPT</code> command. The
+ * rows of the tables are left out, as they do not affect the generated classes. If the same
+ * changelogs are applied again with the same contexts and default schema, the dump is loaded
+ * with one <code>RUNSCRIPT</code> command instead of running Liquibase. The snapshots are
+ * identified by the location and the content hash of the bundles that provide the changelogs, so
+ * any change in the bundles leads to a new snapshot. The configuration resources that the
+ * changelogs referenced are stored next to the dump, as they are needed by the meta data export.
+ * The least recently used snapshots are deleted if the size of the cache exceeds the configured
+ * limit.
+ */
+public class SchemaSnapshotCache {
+
+  private static final String CONFIG_PATH_COUNT = "configPath.count";
+
+  private static final String CONFIG_PATH_PREFIX = "configPath.";
+
+  /**
+   * Changes if the content of the snapshots changes, so the files of older versions are not used.
+   */
+  private static final String FORMAT_VERSION = "2";
+
+  private static final Logger LOGGER = Logger.getLogger(SchemaSnapshotCache.class.getName());
+
+  private static final String PROPERTIES_SUFFIX = ".properties";
+
+  private static final String SCRIPT_SUFFIX = ".sql";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * Calculates the key of a snapshot.
+   *
+   * @param sourceHash
+   *          The hash of the bundles calculated by {@link #calculateSourceHash(Collection)}.
+   * @param capability
+   *          The schema expression of the generation.
+   * @param schemaResource
+   *          The changelog that is applied.
+   * @param contexts
+   *          The Liquibase contexts of the update.
+   * @param defaultSchema
+   *          The default schema of the database or <code>null</code>.
+   * @return The key in hexadecimal format.
+   */
+  public static String calculateKey(final String sourceHash, final String capability,
+      final String schemaResource, final String contexts, final String defaultSchema) {
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    digest.update((FORMAT_VERSION + "|" + Constants.getVersion() + "|" + sourceHash + "|"
+        + capability + "|" + schemaResource + "|" + contexts + "|" + defaultSchema)
+            .getBytes(UTF8));
+    return BundleLocationUtil.toHex(digest.digest());
+  }
+
+  /**
+   * Calculates the hash of the bundles that provide the changelogs of a generation. The order of
+   * the locations does not matter.
+   *
+   * @param bundleLocations
+   *          The locations of the bundles.
+   * @return The hash in hexadecimal format or <code>null</code> if one of the bundles does not
+   *         come from the local filesystem and the schema cannot be cached.
+   */
+  public static String calculateSourceHash(final Collection<String> bundleLocations) {
+    Map<String, String> contentHashes = new TreeMap<String, String>();
+    for (String bundleLocation : bundleLocations) {
+      String contentHash;
+      try {
+        contentHash = BundleLocationUtil.contentHash(bundleLocation);
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Could not calculate content hash of " + bundleLocation, e);
+        return null;
+      }
+      if (contentHash == null) {
+        return null;
+      }
+      contentHashes.put(bundleLocation, contentHash);
+    }
+
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    for (Map.Entry<String, String> contentHash : contentHashes.entrySet()) {
+      digest.update((contentHash.getKey() + "|" + contentHash.getValue() + "\n").getBytes(UTF8));
+    }
+    return BundleLocationUtil.toHex(digest.digest());
+  }
+
+  private static void deleteFile(final File file) {
+    if (file.exists() && !file.delete()) {
+      LOGGER.fine("Could not delete file " + file);
+    }
+  }
+
+  private static void moveFile(final File source, final File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static String quoteFileName(final File file) {
+    return "'" + file.getAbsolutePath().replace("'", "''") + "'";
+  }
+
+  static List<ConfigPath> readConfigPaths(final Properties properties) {
+    int count = Integer.parseInt(properties.getProperty(CONFIG_PATH_COUNT, "0"));
+    List<ConfigPath> result = new ArrayList<ConfigPath>(count);
+    for (int i = 0; i < count; i++) {
+      String prefix = CONFIG_PATH_PREFIX + i + ".";
+      String resource = properties.getProperty(prefix + "resource");
+      String location = properties.getProperty(prefix + "location");
+      BundleDescriptor descriptor = null;
+      if (location != null) {
+        descriptor = new BundleDescriptor(location);
+        descriptor.symbolicName = properties.getProperty(prefix + "symbolicName");
+        descriptor.version = properties.getProperty(prefix + "version");
+      }
+      result.add(new ConfigPath(descriptor, resource));
+    }
+    return result;
+  }
+
+  /**
+   * Writes the configuration paths into the properties. The configuration resources of the
+   * bundles are read by the location of the bundle when the snapshot is restored.
+   *
+   * @return <code>false</code> if a configuration resource cannot be read directly from the jar
+   *         or directory of its bundle.
+   */
+  static boolean writeConfigPaths(final Collection<ConfigPath> configPaths,
+      final Properties properties) throws IOException {
+    int i = 0;
+    for (ConfigPath configPath : configPaths) {
+      String prefix = CONFIG_PATH_PREFIX + i + ".";
+      properties.setProperty(prefix + "resource", configPath.resource);
+      String location;
+      if (configPath.bundle instanceof Bundle) {
+        Bundle bundle = (Bundle) configPath.bundle;
+        location = bundle.getLocation();
+        properties.setProperty(prefix + "symbolicName", String.valueOf(bundle.getSymbolicName()));
+        properties.setProperty(prefix + "version", bundle.getVersion().toString());
+      } else if (configPath.bundle instanceof BundleDescriptor) {
+        BundleDescriptor descriptor = (BundleDescriptor) configPath.bundle;
+        location = descriptor.location;
+        properties.setProperty(prefix + "symbolicName", String.valueOf(descriptor.symbolicName));
+        properties.setProperty(prefix + "version", String.valueOf(descriptor.version));
+      } else {
+        location = null;
+      }
+      if (location != null) {
+        if (BundleLocationUtil.getEntry(location, configPath.resource) == null) {
+          return false;
+        }
+        properties.setProperty(prefix + "location", location);
+      }
+      i++;
+    }
+    properties.setProperty(CONFIG_PATH_COUNT, String.valueOf(i));
+    return true;
+  }
+
+  private final File cacheFolder;
+
+  private final long maxSize;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheFolder
+   *          The folder where the snapshots are kept.
+   * @param maxSize
+   *          The maximum size of all snapshots in bytes.
+   */
+  public SchemaSnapshotCache(final File cacheFolder, final long maxSize) {
+    this.cacheFolder = cacheFolder;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Deletes the least recently used snapshots until the size of the cache gets below the limit.
+   */
+  public void evict() {
+    File[] files = cacheFolder.listFiles(new FileFilter() {
+
+      @Override
+      public boolean accept(final File pathname) {
+        return pathname.isFile() && pathname.getName().endsWith(SCRIPT_SUFFIX);
+      }
+    });
+    if (files == null) {
+      return;
+    }
+
+    List<File> scriptFiles = new ArrayList<File>(Arrays.asList(files));
+    Collections.sort(scriptFiles, new Comparator<File>() {
+
+      @Override
+      public int compare(final File o1, final File o2) {
+        long lastModified1 = o1.lastModified();
+        long lastModified2 = o2.lastModified();
+        return (lastModified1 < lastModified2) ? 1 : ((lastModified1 == lastModified2) ? 0 : -1);
+      }
+    });
+
+    long size = 0;
+    for (File scriptFile : scriptFiles) {
+      String fileName = scriptFile.getName();
+      File propertiesFile = new File(cacheFolder,
+          fileName.substring(0, fileName.length() - SCRIPT_SUFFIX.length()) + PROPERTIES_SUFFIX);
+      size += scriptFile.length() + propertiesFile.length();
+      if (size > maxSize) {
+        // The properties file is deleted first, so the snapshot is not found anymore
+        SchemaSnapshotCache.deleteFile(propertiesFile);
+        SchemaSnapshotCache.deleteFile(scriptFile);
+      }
+    }
+  }
+
+  /**
+   * Deletes a snapshot from the cache, e.g. because it could not be restored.
+   *
+   * @param key
+   *          The key calculated by
+   *          {@link #calculateKey(String, String, String, String, String)}.
+   */
+  public void remove(final String key) {
+    SchemaSnapshotCache.deleteFile(new File(cacheFolder, key + PROPERTIES_SUFFIX));
+    SchemaSnapshotCache.deleteFile(new File(cacheFolder, key + SCRIPT_SUFFIX));
+  }
+
+  /**
+   * Restores a snapshot into an empty database.
+   *
+   * @param key
+   *          The key calculated by
+   *          {@link #calculateKey(String, String, String, String, String)}.
+   * @param connection
+   *          The connection of the empty database.
+   * @return The configuration resources that were referenced by the changelogs or
+   *         <code>null</code> if the snapshot is not in the cache.
+   * @throws SQLException
+   *           if the snapshot could not be loaded. The database might contain a part of the
+   *           schema in this case.
+   */
+  public List<ConfigPath> restore(final String key, final Connection connection)
+      throws SQLException {
+    File propertiesFile = new File(cacheFolder, key + PROPERTIES_SUFFIX);
+    File scriptFile = new File(cacheFolder, key + SCRIPT_SUFFIX);
+    if (!propertiesFile.isFile() || !scriptFile.isFile()) {
+      return null;
+    }
+
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(propertiesFile)) {
+      properties.load(in);
+    } catch (IOException e) {
+      // The snapshot might have been evicted by another process in the meantime
+      LOGGER.log(Level.FINE, "Could not read schema snapshot: " + propertiesFile, e);
+      return null;
+    }
+    List<ConfigPath> configPaths = SchemaSnapshotCache.readConfigPaths(properties);
+
+    try (Statement statement = connection.createStatement()) {
+      statement.execute("RUNSCRIPT FROM " + SchemaSnapshotCache.quoteFileName(scriptFile)
+          + " CHARSET 'UTF-8'");
+    }
+
+    long now = System.currentTimeMillis();
+    if (!scriptFile.setLastModified(now) || !propertiesFile.setLastModified(now)) {
+      LOGGER.fine("Could not update last modification time of " + scriptFile);
+    }
+    return configPaths;
+  }
+
+  /**
+   * Stores the schema of a database in the cache. The files are written with temporary names
+   * first and renamed afterwards, so other processes never see a partially written snapshot.
+   *
+   * @param key
+   *          The key calculated by
+   *          {@link #calculateKey(String, String, String, String, String)}.
+   * @param connection
+   *          The connection of the database that the changelogs were applied on.
+   * @param configPaths
+   *          The configuration resources that were referenced by the changelogs.
+   */
+  public void store(final String key, final Connection connection,
+      final Collection<ConfigPath> configPaths) {
+    if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+      LOGGER.warning("Could not create cache folder: " + cacheFolder.getAbsolutePath());
+      return;
+    }
+    String tempPrefix = key + "-" + System.nanoTime();
+    File tempScriptFile = new File(cacheFolder, tempPrefix + SCRIPT_SUFFIX + TEMP_FILE_SUFFIX);
+    File tempPropertiesFile =
+        new File(cacheFolder, tempPrefix + PROPERTIES_SUFFIX + TEMP_FILE_SUFFIX);
+    try {
+      Properties properties = new Properties();
+      if (!SchemaSnapshotCache.writeConfigPaths(configPaths, properties)) {
+        LOGGER.fine("Schema of " + key + " is not cached as a configuration resource is not"
+            + " available directly in its bundle");
+        return;
+      }
+      try (OutputStream out = new FileOutputStream(tempPropertiesFile)) {
+        properties.store(out, null);
+      }
+      try (Statement statement = connection.createStatement()) {
+        statement.execute("SCRIPT NODATA NOPASSWORDS NOSETTINGS TO "
+            + SchemaSnapshotCache.quoteFileName(tempScriptFile) + " CHARSET 'UTF-8'");
+      }
+      // The properties file is moved last as a snapshot is looked up by that file
+      SchemaSnapshotCache.moveFile(tempScriptFile, new File(cacheFolder, key + SCRIPT_SUFFIX));
+      SchemaSnapshotCache.moveFile(tempPropertiesFile,
+          new File(cacheFolder, key + PROPERTIES_SUFFIX));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not store schema snapshot in cache: " + key, e);
+    } catch (SQLException e) {
+      LOGGER.log(Level.WARNING, "Could not store schema snapshot in cache: " + key, e);
+    } finally {
+      SchemaSnapshotCache.deleteFile(tempScriptFile);
+      SchemaSnapshotCache.deleteFile(tempPropertiesFile);
+    }
+  }
+
+}
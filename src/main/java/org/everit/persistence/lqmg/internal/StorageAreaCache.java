@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cache of OSGi storage areas. The areas are stored in sub-folders whose name is the fingerprint
+ * of the bundle locations and the size, modification time and content hash of the bundles. An
+ * embedded OSGi container that is started on an area of the cache finds the bundles already
+ * installed and resolved by the previous run. The least recently used areas are deleted if the
+ * size of the cache exceeds the configured limit.
+ */
+public class StorageAreaCache {
+
+  /**
+   * A storage area that is locked by the current process.
+   */
+  public static class Area {
+
+    public final File directory;
+
+    private final FileLock lock;
+
+    private final RandomAccessFile lockFile;
+
+    /**
+     * <code>true</code> if the area was created by a previous run.
+     */
+    public final boolean reused;
+
+    Area(final File directory, final boolean reused, final RandomAccessFile lockFile,
+        final FileLock lock) {
+      this.directory = directory;
+      this.reused = reused;
+      this.lockFile = lockFile;
+      this.lock = lock;
+    }
+  }
+
+  private static final String LOCK_FILE_SUFFIX = ".lock";
+
+  private static final Logger LOGGER = Logger.getLogger(StorageAreaCache.class.getName());
+
+  private static long calculateSize(final File file) {
+    if (!file.isDirectory()) {
+      return file.length();
+    }
+    long result = 0;
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        result += StorageAreaCache.calculateSize(child);
+      }
+    }
+    return result;
+  }
+
+  private static void closeQuietly(final RandomAccessFile file) {
+    try {
+      file.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not close lock file", e);
+    }
+  }
+
+  /**
+   * Deletes a file or a folder recursively.
+   *
+   * @return <code>true</code> if the file or the folder could be deleted.
+   */
+  public static boolean deleteRecursively(final File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File child : files) {
+        StorageAreaCache.deleteRecursively(child);
+      }
+    }
+    return file.delete();
+  }
+
+  private final File cacheFolder;
+
+  private final long maxSize;
+
+  /**
+   * Constructor.
+   *
+   * @param cacheFolder
+   *          The folder where the storage areas are kept.
+   * @param maxSize
+   *          The maximum size of all storage areas in bytes.
+   */
+  public StorageAreaCache(final File cacheFolder, final long maxSize) {
+    this.cacheFolder = cacheFolder;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Calculates the fingerprint of the bundle locations and the bundles they point to.
+   */
+  public String calculateFingerprint(final String[] bundleLocations) throws IOException {
+    MessageDigest digest = BundleLocationUtil.createDigest();
+    Charset utf8 = Charset.forName("UTF-8");
+    for (String bundleLocation : bundleLocations) {
+      StringBuilder sb = new StringBuilder(bundleLocation).append('|')
+          .append(BundleLocationUtil.fingerprint(bundleLocation)).append('|')
+          .append(BundleLocationUtil.contentHash(bundleLocation)).append('\n');
+      digest.update(sb.toString().getBytes(utf8));
+    }
+    return BundleLocationUtil.toHex(digest.digest());
+  }
+
+  /**
+   * Deletes the least recently used storage areas until the size of the cache gets below the
+   * limit. Areas that are locked by other sessions or processes are not deleted.
+   */
+  public void evict() {
+    File[] areaDirectories = cacheFolder.listFiles(new FileFilter() {
+
+      @Override
+      public boolean accept(final File pathname) {
+        return pathname.isDirectory();
+      }
+    });
+    if (areaDirectories == null) {
+      return;
+    }
+
+    List<File> areas = new ArrayList<File>(Arrays.asList(areaDirectories));
+    Collections.sort(areas, new Comparator<File>() {
+
+      @Override
+      public int compare(final File o1, final File o2) {
+        long lastModified1 = o1.lastModified();
+        long lastModified2 = o2.lastModified();
+        return (lastModified1 < lastModified2) ? 1 : ((lastModified1 == lastModified2) ? 0 : -1);
+      }
+    });
+
+    long size = 0;
+    for (File area : areas) {
+      size += StorageAreaCache.calculateSize(area);
+      if (size > maxSize) {
+        evictArea(area);
+      }
+    }
+  }
+
+  private void evictArea(final File areaDirectory) {
+    Area area = tryLock(areaDirectory.getName());
+    if (area == null) {
+      return;
+    }
+    try {
+      LOGGER.info("Evicting storage area from cache: " + areaDirectory.getAbsolutePath());
+      if (!StorageAreaCache.deleteRecursively(areaDirectory)) {
+        LOGGER.warning("Could not delete storage area " + areaDirectory.getAbsolutePath());
+      }
+    } finally {
+      release(area);
+      if (!new File(cacheFolder, areaDirectory.getName() + LOCK_FILE_SUFFIX).delete()) {
+        LOGGER.fine("Could not delete lock file of evicted area " + areaDirectory.getName());
+      }
+    }
+  }
+
+  /**
+   * Locks the storage area that belongs to the specified bundle locations.
+   *
+   * @return The locked area or <code>null</code> if the area is used by another session or
+   *         process at the moment.
+   * @throws IOException
+   *           if the fingerprint of the bundles cannot be calculated or the area cannot be
+   *           created.
+   */
+  public Area lock(final String[] bundleLocations) throws IOException {
+    if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+      throw new IOException("Could not create cache folder: " + cacheFolder.getAbsolutePath());
+    }
+    String fingerprint = calculateFingerprint(bundleLocations);
+    Area area = tryLock(fingerprint);
+    if (area == null) {
+      LOGGER.info("Storage area " + fingerprint
+          + " is used by another session. Using a temporary storage area instead.");
+    }
+    return area;
+  }
+
+  /**
+   * Releases the lock of a storage area and marks it as recently used.
+   */
+  public void release(final Area area) {
+    if (area.directory.exists() && !area.directory.setLastModified(System.currentTimeMillis())) {
+      LOGGER.fine("Could not update last modification time of " + area.directory);
+    }
+    try {
+      area.lock.release();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not release lock of " + area.directory, e);
+    } finally {
+      StorageAreaCache.closeQuietly(area.lockFile);
+    }
+  }
+
+  private Area tryLock(final String areaName) {
+    File directory = new File(cacheFolder, areaName);
+    RandomAccessFile lockFile = null;
+    try {
+      lockFile = new RandomAccessFile(new File(cacheFolder, areaName + LOCK_FILE_SUFFIX), "rw");
+      FileLock lock = lockFile.getChannel().tryLock();
+      if (lock == null) {
+        StorageAreaCache.closeQuietly(lockFile);
+        return null;
+      }
+      boolean reused = directory.exists();
+      if (!reused && !directory.mkdirs()) {
+        lock.release();
+        StorageAreaCache.closeQuietly(lockFile);
+        return null;
+      }
+      return new Area(directory, reused, lockFile, lock);
+    } catch (OverlappingFileLockException e) {
+      StorageAreaCache.closeQuietly(lockFile);
+      return null;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not lock storage area " + directory.getAbsolutePath(), e);
+      if (lockFile != null) {
+        StorageAreaCache.closeQuietly(lockFile);
+      }
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Collects the requirements that none of the installed bundles can satisfy and creates the
+ * manifests of bundles that provide matching capabilities. The synthetic bundles contain only a
+ * manifest, so the bundles that depend on them resolve without copying and updating the bundles.
+ * The classes of the synthetic packages cannot be loaded, in the same way as if the requirements
+ * were optional and not wired. Only the requirements whose filter is a conjunction of simple
+ * comparisons are supported.
+ */
+public class SyntheticProviderBuilder {
+
+  /**
+   * The prefix of the location of the synthetic bundles.
+   */
+  public static final String LOCATION_PREFIX = "lqmg:synthetic:";
+
+  private static final String NAMESPACE_EXECUTION_ENVIRONMENT = "osgi.ee";
+
+  private static final String NAMESPACE_IDENTITY = "osgi.identity";
+
+  private static final String NAMESPACE_WIRING_PREFIX = "osgi.wiring.";
+
+  /**
+   * The value of the attributes whose presence is required by the filter.
+   */
+  private static final String PRESENT_VALUE = "lqmg";
+
+  /**
+   * The symbolic name of the bundle that provides the synthetic packages and capabilities.
+   */
+  public static final String PROVIDER_SYMBOLIC_NAME = "org.everit.persistence.lqmg.synthetic";
+
+  private static boolean addOperand(final String operand, final Map<String, Object> attributes) {
+    String content = operand.substring(1, operand.length() - 1);
+    int equalsIndex = content.indexOf('=');
+    if (equalsIndex <= 0) {
+      return false;
+    }
+    char operator = content.charAt(equalsIndex - 1);
+    int nameEnd = equalsIndex;
+    if ((operator == '<') || (operator == '>') || (operator == '~')) {
+      nameEnd--;
+    } else {
+      operator = '=';
+    }
+    String name = content.substring(0, nameEnd).trim();
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = equalsIndex + 1, n = content.length(); i < n; i++) {
+      char c = content.charAt(i);
+      if (c == '\\') {
+        i++;
+        if (i < n) {
+          sb.append(content.charAt(i));
+        }
+      } else if (c != '*') {
+        sb.append(c);
+      }
+    }
+    String stringValue = (sb.length() > 0) ? sb.toString() : PRESENT_VALUE;
+
+    Object value = stringValue;
+    if (Constants.VERSION_ATTRIBUTE.equalsIgnoreCase(name)
+        || Constants.BUNDLE_VERSION_ATTRIBUTE.equalsIgnoreCase(name)) {
+      try {
+        value = Version.parseVersion(stringValue);
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+    }
+
+    if ((operator != '<') || !attributes.containsKey(name)) {
+      attributes.put(name, value);
+    }
+    return true;
+  }
+
+  /**
+   * Creates attributes that match the filter. The lower bound is used from the ranges and the
+   * negated expressions are only checked at the end.
+   *
+   * @param filterString
+   *          The filter of a requirement.
+   * @return The attributes or <code>null</code> if the filter is not supported or the created
+   *         attributes do not match it.
+   */
+  static Map<String, Object> createMatchingAttributes(final String filterString) {
+    Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+    if (filterString == null) {
+      return attributes;
+    }
+
+    Filter filter;
+    try {
+      filter = FrameworkUtil.createFilter(filterString);
+    } catch (InvalidSyntaxException e) {
+      return null;
+    }
+
+    List<String> operands;
+    if (filterString.startsWith("(&")) {
+      operands = SyntheticProviderBuilder.splitOperands(filterString);
+    } else {
+      operands = Collections.singletonList(filterString);
+    }
+
+    for (String operand : operands) {
+      if (operand.startsWith("(|") || operand.startsWith("(&")) {
+        return null;
+      }
+      if (!operand.startsWith("(!") && !SyntheticProviderBuilder.addOperand(operand, attributes)) {
+        return null;
+      }
+    }
+
+    if (!filter.matches(attributes)) {
+      return null;
+    }
+    return attributes;
+  }
+
+  private static String escapeClauseValue(final Object value) {
+    return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+
+  /**
+   * Checks whether the requirement has to be satisfied to resolve its bundle.
+   */
+  public static boolean isMandatory(final BundleRequirement requirement) {
+    Map<String, String> directives = requirement.getDirectives();
+    String resolution = directives.get(Constants.RESOLUTION_DIRECTIVE);
+    String effective = directives.get(Constants.EFFECTIVE_DIRECTIVE);
+    return ((resolution == null) || Constants.RESOLUTION_MANDATORY.equals(resolution))
+        && ((effective == null) || Constants.EFFECTIVE_RESOLVE.equals(effective))
+        && !BundleRevision.HOST_NAMESPACE.equals(requirement.getNamespace());
+  }
+
+  /**
+   * Checks whether the bundle was installed from a manifest created by this class.
+   */
+  public static boolean isSynthetic(final Bundle bundle) {
+    return (bundle != null) && bundle.getLocation().startsWith(LOCATION_PREFIX);
+  }
+
+  private static List<String> splitOperands(final String filterString) {
+    List<String> result = new ArrayList<String>();
+    int depth = 0;
+    int start = -1;
+    for (int i = 2, n = filterString.length() - 1; i < n; i++) {
+      char c = filterString.charAt(i);
+      if (c == '\\') {
+        i++;
+      } else if (c == '(') {
+        if (depth == 0) {
+          start = i;
+        }
+        depth++;
+      } else if (c == ')') {
+        depth--;
+        if (depth == 0) {
+          result.add(filterString.substring(start, i + 1));
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates a jar that contains only the manifest.
+   *
+   * @param manifest
+   *          The manifest of the jar.
+   * @return The content of the jar.
+   */
+  public static byte[] toJar(final Manifest manifest) {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    try {
+      JarOutputStream jarOut = new JarOutputStream(bout, manifest);
+      jarOut.close();
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return bout.toByteArray();
+  }
+
+  private final Set<String> exportedPackages = new LinkedHashSet<String>();
+
+  private final Set<String> providedCapabilities = new LinkedHashSet<String>();
+
+  private final Map<String, Version> requiredBundles = new LinkedHashMap<String, Version>();
+
+  /**
+   * Adds a requirement that should be satisfied by a synthetic bundle.
+   *
+   * @param requirement
+   *          The requirement.
+   * @return <code>true</code> if a matching capability will be provided, <code>false</code> if the
+   *         requirement is not supported.
+   */
+  public boolean add(final BundleRequirement requirement) {
+    String namespace = requirement.getNamespace();
+    Map<String, Object> attributes = SyntheticProviderBuilder
+        .createMatchingAttributes(requirement.getDirectives().get(Constants.FILTER_DIRECTIVE));
+    if (attributes == null) {
+      return false;
+    }
+
+    if (BundleRevision.PACKAGE_NAMESPACE.equals(namespace)) {
+      return addPackage(attributes);
+    }
+    if (BundleRevision.BUNDLE_NAMESPACE.equals(namespace)) {
+      return addBundle(attributes);
+    }
+    if (namespace.startsWith(NAMESPACE_WIRING_PREFIX)
+        || NAMESPACE_EXECUTION_ENVIRONMENT.equals(namespace)
+        || NAMESPACE_IDENTITY.equals(namespace)) {
+      return false;
+    }
+
+    StringBuilder sb = new StringBuilder(namespace);
+    for (Entry<String, Object> attribute : attributes.entrySet()) {
+      sb.append(';').append(attribute.getKey());
+      if (attribute.getValue() instanceof Version) {
+        sb.append(":Version");
+      }
+      sb.append("=\"").append(SyntheticProviderBuilder.escapeClauseValue(attribute.getValue()))
+          .append('"');
+    }
+    providedCapabilities.add(sb.toString());
+    return true;
+  }
+
+  private boolean addBundle(final Map<String, Object> attributes) {
+    Object symbolicName = attributes.remove(BundleRevision.BUNDLE_NAMESPACE);
+    Object version = attributes.remove(Constants.BUNDLE_VERSION_ATTRIBUTE);
+    if (!(symbolicName instanceof String) || (attributes.size() > 0)) {
+      return false;
+    }
+    if (requiredBundles.containsKey(symbolicName)) {
+      return version == null || version.equals(requiredBundles.get(symbolicName));
+    }
+    requiredBundles.put((String) symbolicName,
+        (version == null) ? Version.emptyVersion : (Version) version);
+    return true;
+  }
+
+  private boolean addPackage(final Map<String, Object> attributes) {
+    Object packageName = attributes.remove(BundleRevision.PACKAGE_NAMESPACE);
+    if (!(packageName instanceof String) || ((String) packageName).startsWith("java.")
+        || attributes.containsKey(Constants.BUNDLE_SYMBOLICNAME_ATTRIBUTE)
+        || attributes.containsKey(Constants.BUNDLE_VERSION_ATTRIBUTE)) {
+      return false;
+    }
+    StringBuilder sb = new StringBuilder((String) packageName);
+    for (Entry<String, Object> attribute : attributes.entrySet()) {
+      sb.append(';').append(attribute.getKey()).append("=\"")
+          .append(SyntheticProviderBuilder.escapeClauseValue(attribute.getValue())).append('"');
+    }
+    exportedPackages.add(sb.toString());
+    return true;
+  }
+
+  /**
+   * Creates the manifests of the synthetic bundles. Required bundles are provided by separate
+   * bundles with the required symbolic name, the packages and the generic capabilities are provided
+   * by one bundle.
+   *
+   * @return The manifests by the location where the bundles should be installed.
+   */
+  public Map<String, Manifest> createManifests() {
+    Map<String, Manifest> result = new LinkedHashMap<String, Manifest>();
+    if ((exportedPackages.size() > 0) || (providedCapabilities.size() > 0)) {
+      Manifest manifest = createManifest(PROVIDER_SYMBOLIC_NAME, Version.emptyVersion);
+      Attributes mainAttributes = manifest.getMainAttributes();
+      if (exportedPackages.size() > 0) {
+        mainAttributes.putValue(Constants.EXPORT_PACKAGE, join(exportedPackages));
+      }
+      if (providedCapabilities.size() > 0) {
+        mainAttributes.putValue(Constants.PROVIDE_CAPABILITY, join(providedCapabilities));
+      }
+      result.put(LOCATION_PREFIX + PROVIDER_SYMBOLIC_NAME, manifest);
+    }
+    for (Entry<String, Version> requiredBundle : requiredBundles.entrySet()) {
+      result.put(LOCATION_PREFIX + requiredBundle.getKey(),
+          createManifest(requiredBundle.getKey(), requiredBundle.getValue()));
+    }
+    return result;
+  }
+
+  private Manifest createManifest(final String symbolicName, final Version version) {
+    Manifest manifest = new Manifest();
+    Attributes mainAttributes = manifest.getMainAttributes();
+    mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+    mainAttributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+    mainAttributes.putValue(Constants.BUNDLE_SYMBOLICNAME, symbolicName);
+    mainAttributes.putValue(Constants.BUNDLE_VERSION, version.toString());
+    return manifest;
+  }
+
+  private String join(final Set<String> clauses) {
+    StringBuilder sb = new StringBuilder();
+    for (String clause : clauses) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(clause);
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.osgi.framework.hooks.resolver.ResolverHook;
+import org.osgi.framework.hooks.resolver.ResolverHookFactory;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Resolver hook that hides the capabilities of the synthetic bundles from the requirements that
+ * can be satisfied by a real bundle. The synthetic bundles created by
+ * {@link SyntheticProviderBuilder} are used only if there is no other candidate, so they never
+ * shadow the packages of the system bundle or of another installed bundle.
+ */
+public class SyntheticProviderResolverHookFactory implements ResolverHookFactory {
+
+  /**
+   * The hook instance. It does not have any state.
+   */
+  private static final ResolverHook RESOLVER_HOOK = new ResolverHook() {
+
+    @Override
+    public void end() {
+      // Nothing to do
+    }
+
+    @Override
+    public void filterMatches(final BundleRequirement requirement,
+        final Collection<BundleCapability> candidates) {
+
+      boolean realCandidateFound = false;
+      for (BundleCapability candidate : candidates) {
+        if (!SyntheticProviderResolverHookFactory.isSynthetic(candidate)) {
+          realCandidateFound = true;
+          break;
+        }
+      }
+      if (!realCandidateFound) {
+        return;
+      }
+
+      Iterator<BundleCapability> iterator = candidates.iterator();
+      while (iterator.hasNext()) {
+        if (SyntheticProviderResolverHookFactory.isSynthetic(iterator.next())) {
+          iterator.remove();
+        }
+      }
+    }
+
+    @Override
+    public void filterResolvable(final Collection<BundleRevision> candidates) {
+      // All bundles are resolvable
+    }
+
+    @Override
+    public void filterSingletonCollisions(final BundleCapability singleton,
+        final Collection<BundleCapability> collisionCandidates) {
+      // Singletons are handled by the framework
+    }
+  };
+
+  private static boolean isSynthetic(final BundleCapability capability) {
+    BundleRevision revision = capability.getRevision();
+    return (revision != null) && SyntheticProviderBuilder.isSynthetic(revision.getBundle());
+  }
+
+  @Override
+  public ResolverHook begin(final Collection<BundleRevision> triggers) {
+    return RESOLVER_HOOK;
+  }
+
+}
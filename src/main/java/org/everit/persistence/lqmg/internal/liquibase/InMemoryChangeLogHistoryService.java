@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import liquibase.changelog.AbstractChangeLogHistoryService;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.RanChangeSet;
+import liquibase.database.Database;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LiquibaseException;
+
+/**
+ * History service that keeps the executed changesets of an {@link LQMGH2Database} in memory
+ * instead of the <code>DATABASECHANGELOG</code> table. The database is thrown away after the
+ * generation, so the history does not have to survive it. The changesets are stored in the
+ * database instance, so every service instance that the {@link ChangeLogHistoryServiceFactory}
+ * creates for the same database sees the same history.
+ */
+public class InMemoryChangeLogHistoryService extends AbstractChangeLogHistoryService {
+
+  /**
+   * The factory instance that the service was registered to. Liquibase creates a new factory
+   * instance after each update, so the service has to be registered again.
+   */
+  private static ChangeLogHistoryServiceFactory registeredFactory = null;
+
+  /**
+   * Registers the service in the {@link ChangeLogHistoryServiceFactory} if it is not registered
+   * yet.
+   */
+  public static synchronized void registerIfNecessary() {
+    ChangeLogHistoryServiceFactory factory = ChangeLogHistoryServiceFactory.getInstance();
+    if (factory != registeredFactory) {
+      factory.register(new InMemoryChangeLogHistoryService());
+      registeredFactory = factory;
+    }
+  }
+
+  @Override
+  public void clearAllCheckSums() throws LiquibaseException {
+    for (RanChangeSet ranChangeSet : getHistory()) {
+      ranChangeSet.setLastCheckSum(null);
+    }
+  }
+
+  @Override
+  public void destroy() throws DatabaseException {
+    getHistory().clear();
+  }
+
+  private List<RanChangeSet> getHistory() {
+    return ((LQMGH2Database) getDatabase()).getInMemoryHistory();
+  }
+
+  @Override
+  public int getNextSequenceValue() throws LiquibaseException {
+    return getHistory().size() + 1;
+  }
+
+  /**
+   * The service supports only the databases of LQMG that keep their history in memory, so it can
+   * have a higher priority than the standard service without replacing it for other databases.
+   */
+  @Override
+  public int getPriority() {
+    return PRIORITY_DATABASE;
+  }
+
+  @Override
+  public List<RanChangeSet> getRanChangeSets() throws DatabaseException {
+    return new ArrayList<RanChangeSet>(getHistory());
+  }
+
+  @Override
+  public void init() throws DatabaseException {
+    // There is no table to create
+  }
+
+  @Override
+  public void removeFromHistory(final ChangeSet changeSet) throws DatabaseException {
+    Iterator<RanChangeSet> iterator = getHistory().iterator();
+    while (iterator.hasNext()) {
+      if (iterator.next().isSameAs(changeSet)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  @Override
+  protected void replaceChecksum(final ChangeSet changeSet) throws DatabaseException {
+    for (RanChangeSet ranChangeSet : getHistory()) {
+      if (ranChangeSet.isSameAs(changeSet)) {
+        ranChangeSet.setLastCheckSum(changeSet.generateCheckSum());
+      }
+    }
+  }
+
+  @Override
+  public void setExecType(final ChangeSet changeSet, final ChangeSet.ExecType execType)
+      throws DatabaseException {
+    if ((execType == ChangeSet.ExecType.FAILED) || (execType == ChangeSet.ExecType.SKIPPED)) {
+      // Not marked as ran, the same way as in the standard service
+      return;
+    }
+    removeFromHistory(changeSet);
+    getHistory().add(
+        new RanChangeSet(changeSet, execType, changeSet.getContexts(), changeSet.getLabels()));
+  }
+
+  @Override
+  public boolean supports(final Database database) {
+    return (database instanceof LQMGH2Database)
+        && (((LQMGH2Database) database).getInMemoryHistory() != null);
+  }
+
+  @Override
+  public void tag(final String tagString) throws DatabaseException {
+    List<RanChangeSet> history = getHistory();
+    if (!history.isEmpty()) {
+      history.get(history.size() - 1).setTag(tagString);
+    }
+  }
+
+  @Override
+  public boolean tagExists(final String tag) throws DatabaseException {
+    for (RanChangeSet ranChangeSet : getHistory()) {
+      if (tag.equals(ranChangeSet.getTag())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+}
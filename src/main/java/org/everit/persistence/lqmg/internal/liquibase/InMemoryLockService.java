@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import liquibase.database.Database;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.LockException;
+import liquibase.lockservice.DatabaseChangeLogLock;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+
+/**
+ * Lock service of the {@link LQMGH2Database} instances that keep their history in memory. Such a
+ * database is created for one generation and nobody else updates it, so the lock is only
+ * remembered in memory and the <code>DATABASECHANGELOGLOCK</code> table is never created or
+ * queried.
+ */
+public class InMemoryLockService implements LockService {
+
+  /**
+   * The factory instance that the service was registered to. Liquibase creates a new factory
+   * instance after each update, so the service has to be registered again.
+   */
+  private static LockServiceFactory registeredFactory = null;
+
+  /**
+   * Registers the service in the {@link LockServiceFactory} if it is not registered yet.
+   */
+  public static synchronized void registerIfNecessary() {
+    LockServiceFactory factory = LockServiceFactory.getInstance();
+    if (factory != registeredFactory) {
+      factory.register(new InMemoryLockService());
+      registeredFactory = factory;
+    }
+  }
+
+  private boolean hasChangeLogLock = false;
+
+  @Override
+  public boolean acquireLock() throws LockException {
+    hasChangeLogLock = true;
+    return true;
+  }
+
+  @Override
+  public void destroy() throws DatabaseException {
+    hasChangeLogLock = false;
+  }
+
+  @Override
+  public void forceReleaseLock() throws LockException, DatabaseException {
+    hasChangeLogLock = false;
+  }
+
+  /**
+   * The service supports only the databases of LQMG that keep their history in memory, so it can
+   * have a higher priority than the standard service without replacing it for other databases.
+   */
+  @Override
+  public int getPriority() {
+    return PRIORITY_DATABASE;
+  }
+
+  @Override
+  public boolean hasChangeLogLock() {
+    return hasChangeLogLock;
+  }
+
+  @Override
+  public void init() throws DatabaseException {
+    // There is no table to create
+  }
+
+  @Override
+  public DatabaseChangeLogLock[] listLocks() throws LockException {
+    return new DatabaseChangeLogLock[0];
+  }
+
+  @Override
+  public void releaseLock() throws LockException {
+    hasChangeLogLock = false;
+  }
+
+  @Override
+  public void reset() {
+    hasChangeLogLock = false;
+  }
+
+  @Override
+  public void setChangeLogLockRecheckTime(final long changeLogLocRecheckTime) {
+    // The lock is never waited for
+  }
+
+  @Override
+  public void setChangeLogLockWaitTime(final long changeLogLockWaitTime) {
+    // The lock is never waited for
+  }
+
+  @Override
+  public void setDatabase(final Database database) {
+    // The lock does not depend on the database
+  }
+
+  @Override
+  public boolean supports(final Database database) {
+    return (database instanceof LQMGH2Database)
+        && (((LQMGH2Database) database).getInMemoryHistory() != null);
+  }
+
+  @Override
+  public void waitForLock() throws LockException {
+    hasChangeLogLock = true;
+  }
+
+}
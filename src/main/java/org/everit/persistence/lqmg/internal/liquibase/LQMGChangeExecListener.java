@@ -15,6 +15,9 @@
  */
 package org.everit.persistence.lqmg.internal.liquibase;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import org.everit.persistence.liquibase.ext.osgi.EOSGiResourceAccessor;
@@ -22,7 +25,6 @@ import org.everit.persistence.lqmg.LQMG;
 import org.everit.persistence.lqmg.LQMGException;
 import org.everit.persistence.lqmg.internal.ConfigPath;
 import org.everit.persistence.lqmg.internal.ConfigurationContainer;
-import org.osgi.framework.Bundle;
 
 import liquibase.change.AbstractChange;
 import liquibase.change.Change;
@@ -41,12 +43,33 @@ import liquibase.resource.ResourceAccessor;
 
 public class LQMGChangeExecListener implements ChangeExecListener {
 
+  private int changeSetCount = 0;
+
   private final ConfigurationContainer configurationContainer;
 
+  /**
+   * The configuration resources that were added to the container in the order of their addition.
+   */
+  private final List<ConfigPath> configPaths = new ArrayList<ConfigPath>();
+
   public LQMGChangeExecListener(final ConfigurationContainer configurationContainer) {
     this.configurationContainer = configurationContainer;
   }
 
+  /**
+   * The number of changesets that were executed with this listener.
+   */
+  public int getChangeSetCount() {
+    return changeSetCount;
+  }
+
+  /**
+   * The configuration resources that were referenced by the executed changes.
+   */
+  public List<ConfigPath> getConfigPaths() {
+    return Collections.unmodifiableList(configPaths);
+  }
+
   @Override
   public void preconditionErrored(final PreconditionErrorException error,
       final ErrorOption onError) {
@@ -66,19 +89,29 @@ public class LQMGChangeExecListener implements ChangeExecListener {
     }
     AbstractChange abstractChange = (AbstractChange) change;
     ResourceAccessor resourceAccessor = abstractChange.getResourceAccessor();
-    if (!(resourceAccessor instanceof OSGiResourceAccessor)) {
+    Object bundle;
+    Map<String, Object> attributes;
+    if (resourceAccessor instanceof LocalBundleResourceAccessor) {
+      LocalBundleResourceAccessor localBundleResourceAccessor =
+          (LocalBundleResourceAccessor) resourceAccessor;
+      bundle = localBundleResourceAccessor.bundle;
+      attributes = localBundleResourceAccessor.attributes;
+    } else if (resourceAccessor instanceof OSGiResourceAccessor) {
+      EOSGiResourceAccessor osgiResourceAccessor = (EOSGiResourceAccessor) resourceAccessor;
+      bundle = osgiResourceAccessor.getBundle();
+      attributes = osgiResourceAccessor.getAttributes();
+    } else {
       throw new LQMGException("Resource accessor must have type OSGiResourceAccessor: "
           + resourceAccessor.getClass().getName(), null);
     }
 
-    EOSGiResourceAccessor osgiResourceAccessor = (EOSGiResourceAccessor) resourceAccessor;
-
-    Bundle bundle = osgiResourceAccessor.getBundle();
-    Map<String, Object> attributes = osgiResourceAccessor.getAttributes();
-
     String configPath = (String) attributes.get(LQMG.CAPABILITY_LQMG_CONFIG_RESOURCE);
     if (configPath != null) {
-      configurationContainer.addConfiguration(new ConfigPath(bundle, configPath));
+      ConfigPath config = new ConfigPath(bundle, configPath);
+      configurationContainer.addConfiguration(config);
+      if (!configPaths.contains(config)) {
+        configPaths.add(config);
+      }
     }
   }
 
@@ -86,6 +119,7 @@ public class LQMGChangeExecListener implements ChangeExecListener {
   public void ran(final ChangeSet changeSet, final DatabaseChangeLog databaseChangeLog,
       final Database database,
       final ExecType execType) {
+    changeSetCount++;
   }
 
   @Override
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import liquibase.change.Change;
+import liquibase.change.core.DeleteDataChange;
+import liquibase.change.core.InsertDataChange;
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.TagDatabaseChange;
+import liquibase.change.core.UpdateDataChange;
+import liquibase.changelog.ChangeLogHistoryService;
+import liquibase.changelog.ChangeLogHistoryServiceFactory;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.RanChangeSet;
+import liquibase.database.core.H2Database;
+import liquibase.exception.DatabaseException;
+import liquibase.exception.DatabaseHistoryException;
+import liquibase.exception.LiquibaseException;
+import liquibase.lockservice.LockService;
+import liquibase.lockservice.LockServiceFactory;
+import liquibase.sql.visitor.SqlVisitor;
+
+/**
+ * H2 database of LQMG. The database can skip the changes that only manipulate data, like the ones
+ * that insert seed data or load CSV files, as the data of the tables does not affect the generated
+ * classes. The changesets of the skipped changes are marked as executed as usual.
+ *
+ * <p>
+ * If the database is thrown away after the generation, the history of the executed changesets can
+ * be kept in memory by {@link InMemoryChangeLogHistoryService} and the lock of the changelog can
+ * be handled by {@link InMemoryLockService}, so Liquibase does not create, query and insert into
+ * the <code>DATABASECHANGELOG</code> and <code>DATABASECHANGELOGLOCK</code> tables. The history
+ * methods of the database call its own history service directly, as Liquibase drops the services
+ * of all databases from its factories at the end of each update, even if other generations are
+ * running in parallel.
+ */
+public class LQMGH2Database extends H2Database {
+
+  private static final Logger LOGGER = Logger.getLogger(LQMGH2Database.class.getName());
+
+  /**
+   * Checks whether a change manipulates only the data of the tables without altering their
+   * structure.
+   */
+  public static boolean isDataChange(final Change change) {
+    // LoadUpdateDataChange is a subclass of LoadDataChange
+    return (change instanceof InsertDataChange) || (change instanceof UpdateDataChange)
+        || (change instanceof DeleteDataChange) || (change instanceof LoadDataChange);
+  }
+
+  /**
+   * The executed changesets if the history is kept in memory, otherwise <code>null</code>.
+   */
+  private final List<RanChangeSet> inMemoryHistory;
+
+  private final InMemoryChangeLogHistoryService inMemoryHistoryService;
+
+  private final boolean schemaOnly;
+
+  private int skippedChangeCount = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param schemaOnly
+   *          Whether the changes that only manipulate data should be skipped.
+   * @param inMemoryHistory
+   *          Whether the history of the executed changesets should be kept in memory instead of
+   *          the tables of Liquibase.
+   */
+  public LQMGH2Database(final boolean schemaOnly, final boolean inMemoryHistory) {
+    this.schemaOnly = schemaOnly;
+    if (inMemoryHistory) {
+      InMemoryChangeLogHistoryService.registerIfNecessary();
+      InMemoryLockService.registerIfNecessary();
+      this.inMemoryHistory = new ArrayList<RanChangeSet>();
+      inMemoryHistoryService = new InMemoryChangeLogHistoryService();
+      inMemoryHistoryService.setDatabase(this);
+    } else {
+      this.inMemoryHistory = null;
+      inMemoryHistoryService = null;
+    }
+  }
+
+  /**
+   * Registers the in-memory services again if Liquibase replaced its factories since the database
+   * was created, e.g. because a job running in parallel finished its update. If the standard
+   * services are still picked for the database, they create their tables, which is logged.
+   */
+  public void checkInMemoryServices() {
+    if (inMemoryHistoryService == null) {
+      return;
+    }
+    InMemoryChangeLogHistoryService.registerIfNecessary();
+    InMemoryLockService.registerIfNecessary();
+    ChangeLogHistoryService historyService =
+        ChangeLogHistoryServiceFactory.getInstance().getChangeLogService(this);
+    if (!(historyService instanceof InMemoryChangeLogHistoryService)) {
+      LOGGER.fine("Changelog history service " + historyService.getClass().getName()
+          + " is used instead of the in-memory one");
+    }
+    LockService lockService = LockServiceFactory.getInstance().getLockService(this);
+    if (!(lockService instanceof InMemoryLockService)) {
+      LOGGER.fine("Lock service " + lockService.getClass().getName()
+          + " is used instead of the in-memory one");
+    }
+  }
+
+  @Override
+  public boolean doesTagExist(final String tag) throws DatabaseException {
+    if (inMemoryHistoryService == null) {
+      return super.doesTagExist(tag);
+    }
+    return inMemoryHistoryService.tagExists(tag);
+  }
+
+  @Override
+  public void executeStatements(final Change change, final DatabaseChangeLog changeLog,
+      final List<SqlVisitor> sqlVisitors) throws LiquibaseException {
+    if (schemaOnly && LQMGH2Database.isDataChange(change)) {
+      skippedChangeCount++;
+      return;
+    }
+    if ((inMemoryHistoryService != null) && (change instanceof TagDatabaseChange)) {
+      // The statement of the change would update the DATABASECHANGELOG table
+      inMemoryHistoryService.tag(((TagDatabaseChange) change).getTag());
+      return;
+    }
+    super.executeStatements(change, changeLog, sqlVisitors);
+  }
+
+  /**
+   * The executed changesets that are shared by the history services of the database.
+   *
+   * @return The modifiable list of the executed changesets or <code>null</code> if the history is
+   *         stored in the tables of Liquibase.
+   */
+  List<RanChangeSet> getInMemoryHistory() {
+    return inMemoryHistory;
+  }
+
+  @Override
+  public RanChangeSet getRanChangeSet(final ChangeSet changeSet)
+      throws DatabaseException, DatabaseHistoryException {
+    if (inMemoryHistoryService == null) {
+      return super.getRanChangeSet(changeSet);
+    }
+    return inMemoryHistoryService.getRanChangeSet(changeSet);
+  }
+
+  @Override
+  public List<RanChangeSet> getRanChangeSetList() throws DatabaseException {
+    if (inMemoryHistoryService == null) {
+      return super.getRanChangeSetList();
+    }
+    return inMemoryHistoryService.getRanChangeSets();
+  }
+
+  @Override
+  public Date getRanDate(final ChangeSet changeSet)
+      throws DatabaseException, DatabaseHistoryException {
+    if (inMemoryHistoryService == null) {
+      return super.getRanDate(changeSet);
+    }
+    return inMemoryHistoryService.getRanDate(changeSet);
+  }
+
+  @Override
+  public ChangeSet.RunStatus getRunStatus(final ChangeSet changeSet)
+      throws DatabaseException, DatabaseHistoryException {
+    if (inMemoryHistoryService == null) {
+      return super.getRunStatus(changeSet);
+    }
+    return inMemoryHistoryService.getRunStatus(changeSet);
+  }
+
+  /**
+   * The number of data changes that were not executed.
+   */
+  public int getSkippedChangeCount() {
+    return skippedChangeCount;
+  }
+
+  @Override
+  public void markChangeSetExecStatus(final ChangeSet changeSet,
+      final ChangeSet.ExecType execType) throws DatabaseException {
+    if (inMemoryHistoryService == null) {
+      super.markChangeSetExecStatus(changeSet, execType);
+    } else {
+      inMemoryHistoryService.setExecType(changeSet, execType);
+    }
+  }
+
+  @Override
+  public void removeRanStatus(final ChangeSet changeSet) throws DatabaseException {
+    if (inMemoryHistoryService == null) {
+      super.removeRanStatus(changeSet);
+    } else {
+      inMemoryHistoryService.removeFromHistory(changeSet);
+    }
+  }
+
+  @Override
+  public void tag(final String tagString) throws DatabaseException {
+    if (inMemoryHistoryService == null) {
+      super.tag(tagString);
+    } else {
+      inMemoryHistoryService.tag(tagString);
+    }
+  }
+
+}
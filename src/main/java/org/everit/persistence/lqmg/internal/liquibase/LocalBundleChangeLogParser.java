@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import org.everit.persistence.liquibase.ext.osgi.LiquibaseEOSGiConstants;
+import org.everit.persistence.lqmg.internal.manifest.CapabilityDescriptor;
+
+import liquibase.changelog.ChangeLogParameters;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.exception.ChangeLogParseException;
+import liquibase.exception.LiquibaseException;
+import liquibase.parser.ChangeLogParser;
+import liquibase.parser.ChangeLogParserFactory;
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * Parses the changelogs that are included from other bundles with the <code>.osgi</code> extension
+ * if the including changelog is processed by a {@link LocalBundleResourceAccessor}. The provider of
+ * the included changelog is selected based on the <code>liquibase.changelog</code> requirements of
+ * the including bundle, in the same way as the OSGi resolver would wire them.
+ */
+public class LocalBundleChangeLogParser implements ChangeLogParser {
+
+  private static final String OSGI_EXTENSION = ".osgi";
+
+  private static boolean registered = false;
+
+  /**
+   * Registers the parser in the {@link ChangeLogParserFactory} if it is not registered yet.
+   */
+  public static synchronized void registerIfNecessary() {
+    if (!registered) {
+      ChangeLogParserFactory.getInstance().register(new LocalBundleChangeLogParser());
+      registered = true;
+    }
+  }
+
+  /**
+   * The parser supports only the resource accessors of LQMG, so it can have the highest priority
+   * without overriding other parsers.
+   */
+  @Override
+  public int getPriority() {
+    return Integer.MAX_VALUE;
+  }
+
+  @Override
+  public DatabaseChangeLog parse(final String physicalChangeLogLocation,
+      final ChangeLogParameters changeLogParameters, final ResourceAccessor resourceAccessor)
+      throws ChangeLogParseException {
+
+    LocalBundleResourceAccessor includingResourceAccessor =
+        (LocalBundleResourceAccessor) resourceAccessor;
+
+    String changelogName = physicalChangeLogLocation.substring(0,
+        physicalChangeLogLocation.length() - OSGI_EXTENSION.length());
+    while (changelogName.startsWith("/")) {
+      changelogName = changelogName.substring(1);
+    }
+
+    CapabilityDescriptor capability = includingResourceAccessor.dependencyClosure
+        .findWiredChangelog(includingResourceAccessor.bundle, changelogName);
+    if (capability == null) {
+      throw new UnresolvedLocalBundleException(
+          "No wired changelog capability found with the name '" + changelogName + "' for bundle "
+              + includingResourceAccessor.bundle);
+    }
+
+    String resource =
+        (String) capability.attributes.get(LiquibaseEOSGiConstants.CAPABILITY_ATTR_RESOURCE);
+    if (resource == null) {
+      throw new UnresolvedLocalBundleException("Changelog capability has no resource attribute: "
+          + capability + " in bundle " + capability.bundle);
+    }
+
+    LocalBundleResourceAccessor includedResourceAccessor = new LocalBundleResourceAccessor(
+        capability.bundle, capability.attributes, includingResourceAccessor.dependencyClosure);
+    try {
+      ChangeLogParser parser =
+          ChangeLogParserFactory.getInstance().getParser(resource, includedResourceAccessor);
+      return parser.parse(resource, changeLogParameters, includedResourceAccessor);
+    } catch (ChangeLogParseException e) {
+      throw e;
+    } catch (LiquibaseException e) {
+      throw new ChangeLogParseException(e);
+    }
+  }
+
+  @Override
+  public boolean supports(final String changeLogFile, final ResourceAccessor resourceAccessor) {
+    return (resourceAccessor instanceof LocalBundleResourceAccessor)
+        && changeLogFile.endsWith(OSGI_EXTENSION);
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLConnection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.everit.persistence.lqmg.internal.BundleLocationUtil;
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
+import org.everit.persistence.lqmg.internal.manifest.DependencyClosure;
+
+import liquibase.resource.ResourceAccessor;
+
+/**
+ * {@link ResourceAccessor} that reads the resources of a bundle directly from its jar or directory
+ * without installing the bundle into an OSGi container. Changelogs of other bundles that are
+ * included with the <code>.osgi</code> extension are handled by {@link LocalBundleChangeLogParser}
+ * based on the manifest headers of the bundles.
+ */
+public class LocalBundleResourceAccessor implements ResourceAccessor {
+
+  /**
+   * The attributes of the changelog capability that is processed with this resource accessor.
+   */
+  public final Map<String, Object> attributes;
+
+  /**
+   * The bundle whose resources are accessed.
+   */
+  public final BundleDescriptor bundle;
+
+  private ClassLoader classLoader;
+
+  /**
+   * Used to find the bundles of the included changelogs.
+   */
+  public final DependencyClosure dependencyClosure;
+
+  private Set<String> entryNames;
+
+  /**
+   * Constructor.
+   */
+  public LocalBundleResourceAccessor(final BundleDescriptor bundle,
+      final Map<String, Object> attributes, final DependencyClosure dependencyClosure) {
+    this.bundle = bundle;
+    this.attributes = attributes;
+    this.dependencyClosure = dependencyClosure;
+  }
+
+  /**
+   * Checks whether a resource that the bundle does not contain is provided by one of its fragments.
+   * The fragments are attached to the bundle only in an OSGi container.
+   */
+  private void checkFragments(final String path) throws IOException {
+    for (BundleDescriptor fragment : dependencyClosure.findFragments(bundle)) {
+      if (BundleLocationUtil.getEntry(fragment.location, path) != null) {
+        throw new UnresolvedLocalBundleException("Resource " + path + " of bundle " + bundle
+            + " is provided by the fragment " + fragment);
+      }
+    }
+  }
+
+  /**
+   * Finds an entry of the bundle. If the entries of the bundle jar are known from the manifest
+   * scanning, the jar is not opened to check whether the entry exists.
+   */
+  private URL findEntry(final String path) throws IOException {
+    if (bundle.entries == null) {
+      return BundleLocationUtil.getEntry(bundle.location, path);
+    }
+    String entryName = path;
+    while (entryName.startsWith("/")) {
+      entryName = entryName.substring(1);
+    }
+    if (!getEntryNames().contains(entryName)) {
+      return null;
+    }
+    File file = BundleLocationUtil.resolveFile(bundle.location);
+    return new URL("jar:" + file.toURI().toString() + "!/" + entryName);
+  }
+
+  private synchronized Set<String> getEntryNames() {
+    if (entryNames == null) {
+      entryNames = new HashSet<String>(bundle.entries);
+    }
+    return entryNames;
+  }
+
+  @Override
+  public Set<InputStream> getResourcesAsStream(final String path) throws IOException {
+    URL entry = findEntry(path);
+    if (entry == null) {
+      checkFragments(path);
+      return null;
+    }
+    URLConnection connection = entry.openConnection();
+    // Avoid keeping the jar file open after the stream is closed
+    connection.setUseCaches(false);
+    Set<InputStream> result = new HashSet<InputStream>();
+    result.add(connection.getInputStream());
+    return result;
+  }
+
+  @Override
+  public Set<String> list(final String relativeTo, final String path, final boolean includeFiles,
+      final boolean includeDirectories, final boolean recursive) throws IOException {
+
+    String directory = path.replace('\\', '/');
+    if (relativeTo != null) {
+      String relativeToPath = relativeTo.replace('\\', '/');
+      int lastSlashIndex = relativeToPath.lastIndexOf('/');
+      if (lastSlashIndex >= 0) {
+        directory = relativeToPath.substring(0, lastSlashIndex + 1) + directory;
+      }
+    }
+    while (directory.startsWith("/")) {
+      directory = directory.substring(1);
+    }
+    if ((directory.length() > 0) && !directory.endsWith("/")) {
+      directory = directory + "/";
+    }
+
+    List<String> entries = bundle.entries;
+    if (entries == null) {
+      entries = BundleLocationUtil.listEntries(bundle.location);
+    }
+    Set<String> result = new LinkedHashSet<String>();
+    for (String entry : entries) {
+      if (!entry.startsWith(directory) || entry.equals(directory)) {
+        continue;
+      }
+      String relativeEntry = entry.substring(directory.length());
+      boolean directoryEntry = relativeEntry.endsWith("/");
+      int slashIndex = relativeEntry.indexOf('/');
+      boolean direct = (slashIndex < 0) || (slashIndex == relativeEntry.length() - 1);
+      if ((recursive || direct)
+          && ((directoryEntry && includeDirectories) || (!directoryEntry && includeFiles))) {
+        result.add(entry);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized ClassLoader toClassLoader() {
+    if (classLoader == null) {
+      File file = BundleLocationUtil.resolveFile(bundle.location);
+      try {
+        classLoader = new URLClassLoader(new URL[] { file.toURI().toURL() },
+            LocalBundleResourceAccessor.class.getClassLoader());
+      } catch (MalformedURLException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return classLoader;
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getName() + "(" + bundle + ")";
+  }
+
+}
@@ -0,0 +1,797 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import java.sql.DatabaseMetaData;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.everit.persistence.lqmg.internal.schemamodel.ColumnModel;
+import org.everit.persistence.lqmg.internal.schemamodel.ForeignKeyModel;
+import org.everit.persistence.lqmg.internal.schemamodel.SchemaModel;
+import org.everit.persistence.lqmg.internal.schemamodel.TableModel;
+import org.h2.value.DataType;
+
+import liquibase.Contexts;
+import liquibase.change.AddColumnConfig;
+import liquibase.change.Change;
+import liquibase.change.ColumnConfig;
+import liquibase.change.ConstraintsConfig;
+import liquibase.change.core.AddColumnChange;
+import liquibase.change.core.AddDefaultValueChange;
+import liquibase.change.core.AddForeignKeyConstraintChange;
+import liquibase.change.core.AddNotNullConstraintChange;
+import liquibase.change.core.AddPrimaryKeyChange;
+import liquibase.change.core.AddUniqueConstraintChange;
+import liquibase.change.core.AlterSequenceChange;
+import liquibase.change.core.CreateIndexChange;
+import liquibase.change.core.CreateSequenceChange;
+import liquibase.change.core.CreateTableChange;
+import liquibase.change.core.DeleteDataChange;
+import liquibase.change.core.DropColumnChange;
+import liquibase.change.core.DropDefaultValueChange;
+import liquibase.change.core.DropForeignKeyConstraintChange;
+import liquibase.change.core.DropIndexChange;
+import liquibase.change.core.DropNotNullConstraintChange;
+import liquibase.change.core.DropPrimaryKeyChange;
+import liquibase.change.core.DropSequenceChange;
+import liquibase.change.core.DropTableChange;
+import liquibase.change.core.DropUniqueConstraintChange;
+import liquibase.change.core.EmptyChange;
+import liquibase.change.core.InsertDataChange;
+import liquibase.change.core.LoadDataChange;
+import liquibase.change.core.ModifyDataTypeChange;
+import liquibase.change.core.RenameColumnChange;
+import liquibase.change.core.RenameTableChange;
+import liquibase.change.core.TagDatabaseChange;
+import liquibase.change.core.UpdateDataChange;
+import liquibase.changelog.ChangeSet;
+import liquibase.changelog.ChangeSet.ExecType;
+import liquibase.changelog.DatabaseChangeLog;
+import liquibase.changelog.filter.ContextChangeSetFilter;
+import liquibase.changelog.filter.DbmsChangeSetFilter;
+import liquibase.changelog.visitor.ChangeExecListener;
+import liquibase.database.Database;
+import liquibase.datatype.DataTypeFactory;
+import liquibase.precondition.core.PreconditionContainer;
+
+/**
+ * Builds a {@link SchemaModel} by interpreting the structural changes of the changelogs instead of
+ * executing them on the database. The changes that modify only the data are skipped. The
+ * interpretation stops if a changeset contains a change that cannot be interpreted, like raw SQL,
+ * a view or a precondition, or a change that would fail on the database. In that case the
+ * changelogs must be executed on the database, so the result is the same as without the model.
+ */
+public class SchemaModelInterpreter {
+
+  private static final String DEFAULT_SCHEMA = "PUBLIC";
+
+  private static final Set<Integer> INTEGER_TYPES = new HashSet<Integer>(
+      Arrays.asList(Types.BIGINT, Types.INTEGER, Types.SMALLINT, Types.TINYINT));
+
+  private static final Logger LOGGER = Logger.getLogger(SchemaModelInterpreter.class.getName());
+
+  /**
+   * The types whose integer parameters are the precision and the scale. H2 ignores the parameter
+   * of the integer types, e.g. <code>INT(11)</code>. Parameters of other types are not
+   * interpreted.
+   */
+  private static final Set<Integer> PARAMETERIZED_TYPES = new HashSet<Integer>(
+      Arrays.asList(Types.BINARY, Types.BLOB, Types.CHAR, Types.CLOB, Types.DECIMAL,
+          Types.LONGVARBINARY, Types.LONGVARCHAR, Types.NCHAR, Types.NUMERIC, Types.NVARCHAR,
+          Types.VARBINARY, Types.VARCHAR));
+
+  private static boolean hasPreconditions(final PreconditionContainer preconditions) {
+    return (preconditions != null) && !preconditions.getNestedPreconditions().isEmpty();
+  }
+
+  /**
+   * Converts the referential action of a foreign key to the value that
+   * {@link DatabaseMetaData#getImportedKeys} returns. H2 handles <code>NO ACTION</code> as
+   * <code>RESTRICT</code>.
+   *
+   * @return The rule or <code>-1</code> if the action is not known.
+   */
+  private static int resolveRule(final String action, final Boolean cascade) {
+    if (Boolean.TRUE.equals(cascade)) {
+      return DatabaseMetaData.importedKeyCascade;
+    }
+    if (action == null) {
+      return DatabaseMetaData.importedKeyRestrict;
+    }
+    String normalizedAction = action.trim().toUpperCase(Locale.ENGLISH);
+    if ("CASCADE".equals(normalizedAction)) {
+      return DatabaseMetaData.importedKeyCascade;
+    } else if ("SET NULL".equals(normalizedAction)) {
+      return DatabaseMetaData.importedKeySetNull;
+    } else if ("SET DEFAULT".equals(normalizedAction)) {
+      return DatabaseMetaData.importedKeySetDefault;
+    } else if ("RESTRICT".equals(normalizedAction) || "NO ACTION".equals(normalizedAction)) {
+      return DatabaseMetaData.importedKeyRestrict;
+    }
+    return -1;
+  }
+
+  /**
+   * Splits a comma separated list of names.
+   *
+   * @return The names or <code>null</code> if the list is empty.
+   */
+  private static List<String> splitNames(final String names) {
+    if (names == null) {
+      return null;
+    }
+    List<String> result = new ArrayList<String>();
+    for (String name : names.split(",")) {
+      String trimmedName = SchemaModelInterpreter.unquote(name.trim());
+      if (trimmedName.length() > 0) {
+        result.add(trimmedName);
+      }
+    }
+    return result.isEmpty() ? null : result;
+  }
+
+  private static String unquote(final String name) {
+    if ((name.length() > 1) && name.startsWith("\"") && name.endsWith("\"")) {
+      return name.substring(1, name.length() - 1);
+    }
+    return name;
+  }
+
+  private final Database database;
+
+  private final String defaultSchema;
+
+  private final SchemaModel schemaModel = new SchemaModel();
+
+  private int skippedDataChangeCount = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param database
+   *          The database that the changelogs would be executed on. It is used to filter the
+   *          changesets by dbms and to translate the column types.
+   * @param defaultSchema
+   *          The schema of the tables whose schema is not specified or <code>null</code> if the
+   *          default schema of the database is used.
+   */
+  public SchemaModelInterpreter(final Database database, final String defaultSchema) {
+    this.database = database;
+    this.defaultSchema = defaultSchema;
+  }
+
+  private boolean addUniqueConstraint(final TableModel table, final String constraintName,
+      final List<String> columnNames) {
+    String name = constraintName;
+    if (name == null) {
+      name = schemaModel.reserveGeneratedConstraintName(table.schema, table.name);
+    } else if (!schemaModel.reserveConstraintName(table.schema, name)) {
+      return false;
+    }
+    table.uniqueConstraints.put(name, columnNames);
+    return true;
+  }
+
+  private boolean columnsExist(final TableModel table, final List<String> columnNames) {
+    if (columnNames == null) {
+      return false;
+    }
+    for (String columnName : columnNames) {
+      if (table.findColumn(columnName) == null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Creates the foreign key of a column that is defined in a <code>createTable</code> change. The
+   * referenced table is either specified by its name and columns or by the references in the form
+   * of <code>[schema.]table(column)</code>.
+   */
+  private ForeignKeyModel createColumnForeignKey(final TableModel table, final String columnName,
+      final ConstraintsConfig constraints) {
+    if (constraints.getForeignKeyName() == null) {
+      return null;
+    }
+    String referencedSchema = table.schema;
+    String referencedTableName = constraints.getReferencedTableName();
+    List<String> referencedColumns =
+        SchemaModelInterpreter.splitNames(constraints.getReferencedColumnNames());
+    String references = constraints.getReferences();
+    if (references != null) {
+      String trimmedReferences = references.trim();
+      int openingIndex = trimmedReferences.indexOf('(');
+      if ((openingIndex < 0) || !trimmedReferences.endsWith(")")) {
+        return null;
+      }
+      referencedTableName = trimmedReferences.substring(0, openingIndex).trim();
+      int dotIndex = referencedTableName.lastIndexOf('.');
+      if (dotIndex >= 0) {
+        referencedSchema = resolveSchema(null,
+            SchemaModelInterpreter.unquote(referencedTableName.substring(0, dotIndex)));
+        referencedTableName = referencedTableName.substring(dotIndex + 1);
+      }
+      referencedTableName = SchemaModelInterpreter.unquote(referencedTableName);
+      referencedColumns = SchemaModelInterpreter.splitNames(
+          trimmedReferences.substring(openingIndex + 1, trimmedReferences.length() - 1));
+    }
+    if ((referencedSchema == null) || (referencedTableName == null)) {
+      return null;
+    }
+    TableModel referencedTable = schemaModel.findTable(referencedSchema, referencedTableName);
+    if ((referencedTable == null) || !columnsExist(referencedTable, referencedColumns)
+        || (referencedColumns.size() != 1)) {
+      return null;
+    }
+    List<String> columns = new ArrayList<String>();
+    columns.add(columnName);
+    return new ForeignKeyModel(constraints.getForeignKeyName(), columns, referencedTable.schema,
+        referencedTable.name, referencedColumns, DatabaseMetaData.importedKeyRestrict,
+        SchemaModelInterpreter.resolveRule(null, constraints.isDeleteCascade()));
+  }
+
+  private ColumnModel findColumn(final String catalogName, final String schemaName,
+      final String tableName, final String columnName) {
+    TableModel table = findTable(catalogName, schemaName, tableName);
+    return (table == null) ? null : table.findColumn(columnName);
+  }
+
+  private TableModel findTable(final String catalogName, final String schemaName,
+      final String tableName) {
+    String schema = resolveSchema(catalogName, schemaName);
+    if ((schema == null) || (tableName == null)) {
+      return null;
+    }
+    return schemaModel.findTable(schema, tableName);
+  }
+
+  /**
+   * The number of changes that manipulate only data and were skipped by the interpretation.
+   */
+  public int getSkippedDataChangeCount() {
+    return skippedDataChangeCount;
+  }
+
+  /**
+   * Interprets the changesets of a changelog.
+   *
+   * @param changeLog
+   *          The parsed changelog.
+   * @param contexts
+   *          The contexts that the changesets are filtered by.
+   * @param changeExecListener
+   *          The listener that is notified about the interpreted changes and changesets in the
+   *          same way as if they were executed. It is notified only if all changes could be
+   *          interpreted.
+   * @return The model or <code>null</code> if the changelog must be executed on the database.
+   */
+  public SchemaModel interpret(final DatabaseChangeLog changeLog, final String contexts,
+      final ChangeExecListener changeExecListener) {
+    if (SchemaModelInterpreter.hasPreconditions(changeLog.getPreconditions())) {
+      LOGGER.log(Level.INFO, "Cannot interpret the preconditions of the changelog "
+          + changeLog.getPhysicalFilePath() + ".");
+      return null;
+    }
+    ContextChangeSetFilter contextFilter = new ContextChangeSetFilter(new Contexts(contexts));
+    DbmsChangeSetFilter dbmsFilter = new DbmsChangeSetFilter(database);
+    List<ChangeSet> interpretedChangeSets = new ArrayList<ChangeSet>();
+    for (ChangeSet changeSet : changeLog.getChangeSets()) {
+      if (!contextFilter.accepts(changeSet).isAccepted()
+          || !dbmsFilter.accepts(changeSet).isAccepted()) {
+        continue;
+      }
+      if (SchemaModelInterpreter.hasPreconditions(changeSet.getPreconditions())) {
+        LOGGER.log(Level.INFO,
+            "Cannot interpret the preconditions of the changeset " + changeSet + ".");
+        return null;
+      }
+      for (Change change : changeSet.getChanges()) {
+        if (!interpretChange(change)) {
+          LOGGER.log(Level.INFO, "Cannot interpret change " + change.getClass().getSimpleName()
+              + " of the changeset " + changeSet + ".");
+          return null;
+        }
+      }
+      interpretedChangeSets.add(changeSet);
+    }
+
+    for (ChangeSet changeSet : interpretedChangeSets) {
+      for (Change change : changeSet.getChanges()) {
+        changeExecListener.ran(change, changeSet, changeSet.getChangeLog(), database);
+      }
+      changeExecListener.ran(changeSet, changeSet.getChangeLog(), database, ExecType.EXECUTED);
+    }
+    return schemaModel;
+  }
+
+  private boolean interpretAddColumn(final AddColumnChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    if (table == null) {
+      return false;
+    }
+    for (AddColumnConfig columnConfig : change.getColumns()) {
+      String columnName = columnConfig.getName();
+      if ((columnName == null) || (table.findColumn(columnName) != null)
+          || (columnConfig.getPosition() != null)) {
+        return false;
+      }
+      ColumnModel column = new ColumnModel(columnName);
+      boolean autoIncrement = Boolean.TRUE.equals(columnConfig.isAutoIncrement());
+      if (!resolveType(column, columnConfig.getType(), autoIncrement)) {
+        return false;
+      }
+      column.nullable = !autoIncrement;
+      ConstraintsConfig constraints = columnConfig.getConstraints();
+      if (constraints != null) {
+        // Constraints that are added together with the column are executed on the database
+        if (Boolean.TRUE.equals(constraints.isPrimaryKey())
+            || Boolean.TRUE.equals(constraints.isUnique()) || (constraints.getReferences() != null)
+            || (constraints.getReferencedTableName() != null)
+            || (constraints.getForeignKeyName() != null)
+            || (constraints.getCheckConstraint() != null)) {
+          return false;
+        }
+        if (Boolean.FALSE.equals(constraints.isNullable())) {
+          column.nullable = false;
+        }
+      }
+
+      int index = table.columns.size();
+      if (columnConfig.getAfterColumn() != null) {
+        index = table.indexOfColumn(columnConfig.getAfterColumn()) + 1;
+      } else if (columnConfig.getBeforeColumn() != null) {
+        index = table.indexOfColumn(columnConfig.getBeforeColumn());
+      }
+      if (index < 0) {
+        return false;
+      }
+      table.columns.add(index, column);
+    }
+    return true;
+  }
+
+  private boolean interpretAddForeignKeyConstraint(final AddForeignKeyConstraintChange change) {
+    TableModel table = findTable(change.getBaseTableCatalogName(),
+        change.getBaseTableSchemaName(), change.getBaseTableName());
+    TableModel referencedTable = findTable(change.getReferencedTableCatalogName(),
+        change.getReferencedTableSchemaName(), change.getReferencedTableName());
+    List<String> columns = SchemaModelInterpreter.splitNames(change.getBaseColumnNames());
+    List<String> referencedColumns =
+        SchemaModelInterpreter.splitNames(change.getReferencedColumnNames());
+    if ((table == null) || (referencedTable == null) || (change.getConstraintName() == null)
+        || !columnsExist(table, columns) || !columnsExist(referencedTable, referencedColumns)
+        || (columns.size() != referencedColumns.size())
+        || Boolean.TRUE.equals(change.getDeferrable())
+        || Boolean.TRUE.equals(change.getInitiallyDeferred())) {
+      return false;
+    }
+    int updateRule = SchemaModelInterpreter.resolveRule(change.getOnUpdate(), null);
+    int deleteRule =
+        SchemaModelInterpreter.resolveRule(change.getOnDelete(), change.getDeleteCascade());
+    if ((updateRule < 0) || (deleteRule < 0)
+        || !schemaModel.reserveConstraintName(table.schema, change.getConstraintName())) {
+      return false;
+    }
+    table.foreignKeys.add(new ForeignKeyModel(change.getConstraintName(), columns,
+        referencedTable.schema, referencedTable.name, referencedColumns, updateRule, deleteRule));
+    return true;
+  }
+
+  private boolean interpretAddPrimaryKey(final AddPrimaryKeyChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    if (table == null) {
+      return false;
+    }
+    List<String> columnNames = SchemaModelInterpreter.splitNames(change.getColumnNames());
+    return setPrimaryKey(table, change.getConstraintName(), columnNames);
+  }
+
+  private boolean interpretChange(final Change change) {
+    if (change instanceof CreateTableChange) {
+      return interpretCreateTable((CreateTableChange) change);
+    } else if (change instanceof AddColumnChange) {
+      return interpretAddColumn((AddColumnChange) change);
+    } else if (change instanceof DropColumnChange) {
+      return interpretDropColumn((DropColumnChange) change);
+    } else if (change instanceof RenameColumnChange) {
+      return interpretRenameColumn((RenameColumnChange) change);
+    } else if (change instanceof ModifyDataTypeChange) {
+      return interpretModifyDataType((ModifyDataTypeChange) change);
+    } else if (change instanceof RenameTableChange) {
+      return interpretRenameTable((RenameTableChange) change);
+    } else if (change instanceof DropTableChange) {
+      return interpretDropTable((DropTableChange) change);
+    } else if (change instanceof AddPrimaryKeyChange) {
+      return interpretAddPrimaryKey((AddPrimaryKeyChange) change);
+    } else if (change instanceof DropPrimaryKeyChange) {
+      return interpretDropPrimaryKey((DropPrimaryKeyChange) change);
+    } else if (change instanceof AddForeignKeyConstraintChange) {
+      return interpretAddForeignKeyConstraint((AddForeignKeyConstraintChange) change);
+    } else if (change instanceof DropForeignKeyConstraintChange) {
+      return interpretDropForeignKeyConstraint((DropForeignKeyConstraintChange) change);
+    } else if (change instanceof AddUniqueConstraintChange) {
+      AddUniqueConstraintChange uniqueChange = (AddUniqueConstraintChange) change;
+      TableModel table = findTable(uniqueChange.getCatalogName(), uniqueChange.getSchemaName(),
+          uniqueChange.getTableName());
+      List<String> columnNames = SchemaModelInterpreter.splitNames(uniqueChange.getColumnNames());
+      return (table != null) && columnsExist(table, columnNames)
+          && addUniqueConstraint(table, uniqueChange.getConstraintName(), columnNames);
+    } else if (change instanceof DropUniqueConstraintChange) {
+      DropUniqueConstraintChange uniqueChange = (DropUniqueConstraintChange) change;
+      TableModel table = findTable(uniqueChange.getCatalogName(), uniqueChange.getSchemaName(),
+          uniqueChange.getTableName());
+      if ((table == null) || (uniqueChange.getConstraintName() == null)
+          || (table.uniqueConstraints.remove(uniqueChange.getConstraintName()) == null)) {
+        return false;
+      }
+      schemaModel.releaseConstraintName(table.schema, uniqueChange.getConstraintName());
+      return true;
+    } else if (change instanceof AddNotNullConstraintChange) {
+      AddNotNullConstraintChange notNullChange = (AddNotNullConstraintChange) change;
+      ColumnModel column = findColumn(notNullChange.getCatalogName(),
+          notNullChange.getSchemaName(), notNullChange.getTableName(),
+          notNullChange.getColumnName());
+      if (column == null) {
+        return false;
+      }
+      column.nullable = false;
+      return true;
+    } else if (change instanceof DropNotNullConstraintChange) {
+      DropNotNullConstraintChange notNullChange = (DropNotNullConstraintChange) change;
+      TableModel table = findTable(notNullChange.getCatalogName(), notNullChange.getSchemaName(),
+          notNullChange.getTableName());
+      ColumnModel column =
+          (table == null) ? null : table.findColumn(notNullChange.getColumnName());
+      if ((column == null) || ((table.primaryKeyColumns != null)
+          && table.primaryKeyColumns.contains(column.name))) {
+        return false;
+      }
+      column.nullable = true;
+      return true;
+    }
+    return interpretDataChange(change);
+  }
+
+  private boolean interpretCreateTable(final CreateTableChange change) {
+    String schema = resolveSchema(change.getCatalogName(), change.getSchemaName());
+    if ((schema == null) || (change.getTableName() == null) || change.getColumns().isEmpty()) {
+      return false;
+    }
+    TableModel table = new TableModel(schema, change.getTableName());
+    if (!schemaModel.addTable(table)) {
+      return false;
+    }
+
+    List<String> primaryKeyColumns = new ArrayList<String>();
+    String primaryKeyName = null;
+    List<ConstraintsConfig> foreignKeyConstraints = new ArrayList<ConstraintsConfig>();
+    List<String> foreignKeyColumns = new ArrayList<String>();
+    List<ConstraintsConfig> uniqueConstraints = new ArrayList<ConstraintsConfig>();
+    List<String> uniqueColumns = new ArrayList<String>();
+    for (ColumnConfig columnConfig : change.getColumns()) {
+      String columnName = columnConfig.getName();
+      if ((columnName == null) || (table.findColumn(columnName) != null)) {
+        return false;
+      }
+      ColumnModel column = new ColumnModel(columnName);
+      boolean autoIncrement = Boolean.TRUE.equals(columnConfig.isAutoIncrement());
+      if (!resolveType(column, columnConfig.getType(), autoIncrement)) {
+        return false;
+      }
+      column.nullable = !autoIncrement;
+      ConstraintsConfig constraints = columnConfig.getConstraints();
+      if (constraints != null) {
+        if (constraints.getCheckConstraint() != null) {
+          return false;
+        }
+        if (Boolean.FALSE.equals(constraints.isNullable())) {
+          column.nullable = false;
+        }
+        if (Boolean.TRUE.equals(constraints.isPrimaryKey())) {
+          primaryKeyColumns.add(columnName);
+          if (constraints.getPrimaryKeyName() != null) {
+            primaryKeyName = constraints.getPrimaryKeyName();
+          }
+        }
+        if ((constraints.getReferences() != null)
+            || (constraints.getReferencedTableName() != null)
+            || (constraints.getForeignKeyName() != null)) {
+          foreignKeyConstraints.add(constraints);
+          foreignKeyColumns.add(columnName);
+        }
+        if (Boolean.TRUE.equals(constraints.isUnique())) {
+          uniqueConstraints.add(constraints);
+          uniqueColumns.add(columnName);
+        }
+      }
+      table.columns.add(column);
+    }
+
+    // The constraints are created in the same order as Liquibase lists them in the statement
+    if (!primaryKeyColumns.isEmpty()) {
+      if (primaryKeyName == null) {
+        primaryKeyName = "PK_" + table.name.toUpperCase(Locale.ENGLISH);
+      }
+      if (!setPrimaryKey(table, primaryKeyName, primaryKeyColumns)) {
+        return false;
+      }
+    }
+    for (int i = 0, n = foreignKeyConstraints.size(); i < n; i++) {
+      ForeignKeyModel foreignKey =
+          createColumnForeignKey(table, foreignKeyColumns.get(i), foreignKeyConstraints.get(i));
+      if ((foreignKey == null) || !schemaModel.reserveConstraintName(schema, foreignKey.name)) {
+        return false;
+      }
+      table.foreignKeys.add(foreignKey);
+    }
+    for (int i = 0, n = uniqueConstraints.size(); i < n; i++) {
+      List<String> columnNames = new ArrayList<String>();
+      columnNames.add(uniqueColumns.get(i));
+      if (!addUniqueConstraint(table, uniqueConstraints.get(i).getUniqueConstraintName(),
+          columnNames)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Checks the changes that do not modify the structure of the tables.
+   *
+   * @return <code>true</code> if the change is known and its table exists.
+   */
+  private boolean interpretDataChange(final Change change) {
+    if (LQMGH2Database.isDataChange(change)) {
+      skippedDataChangeCount++;
+    }
+    if (change instanceof InsertDataChange) {
+      InsertDataChange insertChange = (InsertDataChange) change;
+      return findTable(insertChange.getCatalogName(), insertChange.getSchemaName(),
+          insertChange.getTableName()) != null;
+    } else if (change instanceof UpdateDataChange) {
+      UpdateDataChange updateChange = (UpdateDataChange) change;
+      return findTable(updateChange.getCatalogName(), updateChange.getSchemaName(),
+          updateChange.getTableName()) != null;
+    } else if (change instanceof DeleteDataChange) {
+      DeleteDataChange deleteChange = (DeleteDataChange) change;
+      return findTable(deleteChange.getCatalogName(), deleteChange.getSchemaName(),
+          deleteChange.getTableName()) != null;
+    } else if (change instanceof LoadDataChange) {
+      LoadDataChange loadChange = (LoadDataChange) change;
+      return findTable(loadChange.getCatalogName(), loadChange.getSchemaName(),
+          loadChange.getTableName()) != null;
+    } else if (change instanceof AddDefaultValueChange) {
+      AddDefaultValueChange defaultValueChange = (AddDefaultValueChange) change;
+      return findColumn(defaultValueChange.getCatalogName(), defaultValueChange.getSchemaName(),
+          defaultValueChange.getTableName(), defaultValueChange.getColumnName()) != null;
+    } else if (change instanceof DropDefaultValueChange) {
+      DropDefaultValueChange defaultValueChange = (DropDefaultValueChange) change;
+      return findColumn(defaultValueChange.getCatalogName(), defaultValueChange.getSchemaName(),
+          defaultValueChange.getTableName(), defaultValueChange.getColumnName()) != null;
+    } else if (change instanceof CreateIndexChange) {
+      CreateIndexChange indexChange = (CreateIndexChange) change;
+      return findTable(indexChange.getCatalogName(), indexChange.getSchemaName(),
+          indexChange.getTableName()) != null;
+    }
+    // Indexes and sequences are not part of the exported meta data
+    return (change instanceof DropIndexChange) || (change instanceof CreateSequenceChange)
+        || (change instanceof AlterSequenceChange) || (change instanceof DropSequenceChange)
+        || (change instanceof TagDatabaseChange) || (change instanceof EmptyChange);
+  }
+
+  private boolean interpretDropColumn(final DropColumnChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    ColumnModel column = (table == null) ? null : table.findColumn(change.getColumnName());
+    // The database handles the constraints of a dropped column in its own way
+    if ((column == null) || (table.columns.size() == 1) || table.isConstrained(column.name)
+        || schemaModel.isReferenced(table)) {
+      return false;
+    }
+    table.columns.remove(column);
+    return true;
+  }
+
+  private boolean interpretDropForeignKeyConstraint(final DropForeignKeyConstraintChange change) {
+    TableModel table = findTable(change.getBaseTableCatalogName(),
+        change.getBaseTableSchemaName(), change.getBaseTableName());
+    if (table == null) {
+      return false;
+    }
+    for (ForeignKeyModel foreignKey : table.foreignKeys) {
+      if (foreignKey.name.equals(change.getConstraintName())) {
+        table.foreignKeys.remove(foreignKey);
+        schemaModel.releaseConstraintName(table.schema, foreignKey.name);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean interpretDropPrimaryKey(final DropPrimaryKeyChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    if ((table == null) || (table.primaryKeyColumns == null)
+        || ((change.getConstraintName() != null)
+            && !change.getConstraintName().equals(table.primaryKeyName))
+        || schemaModel.isReferenced(table)) {
+      return false;
+    }
+    schemaModel.releaseConstraintName(table.schema, table.primaryKeyName);
+    table.primaryKeyName = null;
+    table.primaryKeyColumns = null;
+    return true;
+  }
+
+  private boolean interpretDropTable(final DropTableChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    if (table == null) {
+      return false;
+    }
+    if (Boolean.TRUE.equals(change.isCascadeConstraints())) {
+      schemaModel.removeReferencingForeignKeys(table);
+    } else if (schemaModel.isReferencedByOtherTables(table)) {
+      return false;
+    }
+    schemaModel.removeTable(table);
+    return true;
+  }
+
+  private boolean interpretModifyDataType(final ModifyDataTypeChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    ColumnModel column = (table == null) ? null : table.findColumn(change.getColumnName());
+    // H2 redefines the whole column, so only the type of the simple nullable columns is modified
+    if ((column == null) || !column.nullable || table.isConstrained(column.name)
+        || schemaModel.isReferenced(table)) {
+      return false;
+    }
+    return resolveType(column, change.getNewDataType(), false);
+  }
+
+  private boolean interpretRenameColumn(final RenameColumnChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getTableName());
+    ColumnModel column = (table == null) ? null : table.findColumn(change.getOldColumnName());
+    if ((column == null) || (change.getNewColumnName() == null)
+        || (table.findColumn(change.getNewColumnName()) != null)) {
+      return false;
+    }
+    schemaModel.renameColumn(table, column, change.getNewColumnName());
+    return true;
+  }
+
+  private boolean interpretRenameTable(final RenameTableChange change) {
+    TableModel table =
+        findTable(change.getCatalogName(), change.getSchemaName(), change.getOldTableName());
+    return (table != null) && (change.getNewTableName() != null)
+        && schemaModel.renameTable(table, change.getNewTableName());
+  }
+
+  /**
+   * Resolves the schema of a change. Only the default schema and the <code>PUBLIC</code> schema
+   * exist in the database.
+   *
+   * @return The schema or <code>null</code> if the schema does not exist or a catalog is
+   *         specified.
+   */
+  private String resolveSchema(final String catalogName, final String schemaName) {
+    if (catalogName != null) {
+      return null;
+    }
+    if (schemaName == null) {
+      return (defaultSchema != null) ? defaultSchema : DEFAULT_SCHEMA;
+    }
+    if (DEFAULT_SCHEMA.equals(schemaName) || schemaName.equals(defaultSchema)) {
+      return schemaName;
+    }
+    return null;
+  }
+
+  /**
+   * Resolves the type of a column in the same way as Liquibase translates it to H2 and H2 reports
+   * it in its meta data.
+   *
+   * @return <code>false</code> if the type cannot be interpreted.
+   */
+  private boolean resolveType(final ColumnModel column, final String type,
+      final boolean autoIncrement) {
+    if (type == null) {
+      return false;
+    }
+    String typeName = DataTypeFactory.getInstance()
+        .fromDescription(type + (autoIncrement ? "{autoIncrement:true}" : ""), database)
+        .toDatabaseDataType(database).toString().trim();
+
+    List<Long> parameters = new ArrayList<Long>();
+    int openingIndex = typeName.indexOf('(');
+    if (openingIndex >= 0) {
+      if (!typeName.endsWith(")")) {
+        return false;
+      }
+      for (String parameter : typeName.substring(openingIndex + 1, typeName.length() - 1)
+          .split(",")) {
+        try {
+          parameters.add(Long.valueOf(parameter.trim()));
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+      typeName = typeName.substring(0, openingIndex).trim();
+    }
+    typeName = typeName.toUpperCase(Locale.ENGLISH);
+    if ("DOUBLE PRECISION".equals(typeName)) {
+      typeName = "DOUBLE";
+    }
+    DataType dataType = DataType.getTypeByName(typeName);
+    if (dataType == null) {
+      return false;
+    }
+
+    long precision = dataType.defaultPrecision;
+    int scale = dataType.defaultScale;
+    if (!parameters.isEmpty() && !INTEGER_TYPES.contains(dataType.sqlType)) {
+      if (!dataType.supportsPrecision || !PARAMETERIZED_TYPES.contains(dataType.sqlType)
+          || (parameters.size() > (dataType.supportsScale ? 2 : 1))) {
+        return false;
+      }
+      precision = parameters.get(0);
+      if (dataType.supportsScale) {
+        scale = (parameters.size() > 1) ? parameters.get(1).intValue() : 0;
+      }
+    }
+    column.sqlType = dataType.sqlType;
+    column.typeName = DataType.getDataType(dataType.type).name;
+    column.size = (int) Math.min(precision, Integer.MAX_VALUE);
+    column.decimalDigits = scale;
+    return true;
+  }
+
+  /**
+   * Sets the primary key of a table. The columns of the primary key become not nullable.
+   */
+  private boolean setPrimaryKey(final TableModel table, final String constraintName,
+      final List<String> columnNames) {
+    if ((table.primaryKeyColumns != null) || !columnsExist(table, columnNames)) {
+      return false;
+    }
+    String name = constraintName;
+    if (name == null) {
+      name = schemaModel.reserveGeneratedConstraintName(table.schema, table.name);
+    } else if (!schemaModel.reserveConstraintName(table.schema, name)) {
+      return false;
+    }
+    for (String columnName : columnNames) {
+      table.findColumn(columnName).nullable = false;
+    }
+    table.primaryKeyName = name;
+    table.primaryKeyColumns = columnNames;
+    return true;
+  }
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.liquibase;
+
+import org.everit.persistence.lqmg.LQMGException;
+
+/**
+ * Thrown if an included changelog or a resource cannot be resolved from the jars and directories
+ * of the bundles, but the embedded OSGi container might be able to resolve it. Only the generations
+ * that fail with this exception are repeated in the container.
+ */
+public class UnresolvedLocalBundleException extends LQMGException {
+
+  private static final long serialVersionUID = -2739511326817246593L;
+
+  /**
+   * Checks whether the exception or one of its causes is an {@link UnresolvedLocalBundleException}.
+   * Liquibase wraps the exceptions that are thrown while a changelog is parsed.
+   */
+  public static boolean isCauseOf(final Throwable exception) {
+    Throwable cause = exception;
+    while (cause != null) {
+      if (cause instanceof UnresolvedLocalBundleException) {
+        return true;
+      }
+      if (cause.getCause() == cause) {
+        return false;
+      }
+      cause = cause.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param msg
+   *          The error message.
+   */
+  public UnresolvedLocalBundleException(final String msg) {
+    super(msg, null);
+  }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Manifest;
+
+/**
+ * The headers of a bundle manifest that are necessary to find out which bundles are needed to
+ * resolve a capability without installing the bundles into an OSGi container.
+ */
+public class BundleDescriptor {
+
+  public final List<CapabilityDescriptor> capabilities = new ArrayList<CapabilityDescriptor>();
+
+  /**
+   * The names of the entries of the bundle jar as they are listed in the ZIP central directory or
+   * <code>null</code> if the bundle is a directory or the entries are not known.
+   */
+  public List<String> entries;
+
+  /**
+   * The symbolic name of the host bundle if this is a fragment, otherwise <code>null</code>.
+   */
+  public String fragmentHost;
+
+  /**
+   * The location of the bundle as it was passed to LQMG.
+   */
+  public final String location;
+
+  /**
+   * The original manifest of the bundle. It must not be modified.
+   */
+  public Manifest manifest;
+
+  public final List<RequirementDescriptor> requirements = new ArrayList<RequirementDescriptor>();
+
+  public String symbolicName;
+
+  public String version;
+
+  public BundleDescriptor(final String location) {
+    this.location = location;
+  }
+
+  @Override
+  public String toString() {
+    return symbolicName + "_" + version + " [" + location + "]";
+  }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.felix.utils.manifest.Attribute;
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.everit.persistence.lqmg.internal.BundleLocationUtil;
+import org.everit.persistence.lqmg.internal.LRUCache;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Reads the {@link BundleDescriptor} of bundles directly from their manifest without installing
+ * them into an OSGi container.
+ */
+public final class BundleManifestReader {
+
+  /**
+   * The descriptors by the location and fingerprint of the bundles, so unchanged bundles that were
+   * used recently are not read again. The location is part of the key, as the descriptor holds
+   * the location that it was read from.
+   */
+  private static final LRUCache<String, BundleDescriptor> DESCRIPTOR_CACHE =
+      new LRUCache<String, BundleDescriptor>(BundleManifestReader.MAX_CACHED_DESCRIPTORS);
+
+  private static final Logger LOGGER = Logger.getLogger(BundleManifestReader.class.getName());
+
+  private static final int MAX_CACHED_DESCRIPTORS = 1024;
+
+  private static final String NAMESPACE_EXECUTION_ENVIRONMENT = "osgi.ee";
+
+  /**
+   * Reading the manifests is I/O bound, so more threads are used than the number of processors.
+   */
+  private static final int THREADS_PER_PROCESSOR = 2;
+
+  private static void addCapabilities(final BundleDescriptor descriptor,
+      final Attributes mainAttributes) {
+
+    String exportPackage = mainAttributes.getValue(Constants.EXPORT_PACKAGE);
+    for (Clause clause : BundleManifestReader.parseHeader(exportPackage)) {
+      Map<String, Object> attributes = BundleManifestReader.convertAttributes(clause);
+      attributes.put(BundleRevision.PACKAGE_NAMESPACE, clause.getName());
+      attributes.put(Constants.VERSION_ATTRIBUTE,
+          BundleManifestReader.parseVersion(clause.getAttribute(Constants.VERSION_ATTRIBUTE)));
+      descriptor.capabilities.add(
+          new CapabilityDescriptor(descriptor, BundleRevision.PACKAGE_NAMESPACE, attributes));
+    }
+
+    String provideCapability = mainAttributes.getValue(Constants.PROVIDE_CAPABILITY);
+    for (Clause clause : BundleManifestReader.parseHeader(provideCapability)) {
+      descriptor.capabilities.add(new CapabilityDescriptor(descriptor, clause.getName(),
+          BundleManifestReader.convertAttributes(clause)));
+    }
+  }
+
+  private static void addIdentityCapabilities(final BundleDescriptor descriptor) {
+    if (descriptor.symbolicName == null) {
+      return;
+    }
+    Version version = BundleManifestReader.parseVersion(descriptor.version);
+    String[] namespaces = new String[] { BundleRevision.BUNDLE_NAMESPACE,
+        BundleRevision.HOST_NAMESPACE };
+    for (String namespace : namespaces) {
+      Map<String, Object> attributes = new HashMap<String, Object>();
+      attributes.put(namespace, descriptor.symbolicName);
+      attributes.put(Constants.BUNDLE_VERSION_ATTRIBUTE, version);
+      descriptor.capabilities.add(new CapabilityDescriptor(descriptor, namespace, attributes));
+    }
+  }
+
+  private static void addNameRequirements(final BundleDescriptor descriptor,
+      final String namespace, final String headerValue) {
+    for (Clause clause : BundleManifestReader.parseHeader(headerValue)) {
+      boolean optional = Constants.RESOLUTION_OPTIONAL.equals(
+          clause.getDirective(Constants.RESOLUTION_DIRECTIVE));
+      String filter = "(" + namespace + "=" + BundleManifestReader.escapeFilterValue(
+          clause.getName()) + ")";
+      descriptor.requirements.add(
+          new RequirementDescriptor(descriptor, namespace, filter, optional));
+    }
+  }
+
+  private static void addRequirements(final BundleDescriptor descriptor,
+      final Attributes mainAttributes) {
+
+    BundleManifestReader.addNameRequirements(descriptor, BundleRevision.PACKAGE_NAMESPACE,
+        mainAttributes.getValue(Constants.IMPORT_PACKAGE));
+    BundleManifestReader.addNameRequirements(descriptor, BundleRevision.BUNDLE_NAMESPACE,
+        mainAttributes.getValue(Constants.REQUIRE_BUNDLE));
+    BundleManifestReader.addNameRequirements(descriptor, BundleRevision.HOST_NAMESPACE,
+        descriptor.fragmentHost);
+
+    String requireCapability = mainAttributes.getValue(Constants.REQUIRE_CAPABILITY);
+    for (Clause clause : BundleManifestReader.parseHeader(requireCapability)) {
+      String namespace = clause.getName();
+      String effective = clause.getDirective(Constants.EFFECTIVE_DIRECTIVE);
+      if (NAMESPACE_EXECUTION_ENVIRONMENT.equals(namespace)
+          || ((effective != null) && !Constants.EFFECTIVE_RESOLVE.equals(effective))) {
+        continue;
+      }
+      boolean optional = Constants.RESOLUTION_OPTIONAL.equals(
+          clause.getDirective(Constants.RESOLUTION_DIRECTIVE));
+      descriptor.requirements.add(new RequirementDescriptor(descriptor, namespace,
+          clause.getDirective(Constants.FILTER_DIRECTIVE), optional));
+    }
+  }
+
+  private static Object convertAttributeValue(final String type, final String value) {
+    if (type == null || "String".equals(type)) {
+      return value;
+    }
+    if ("Version".equals(type)) {
+      return BundleManifestReader.parseVersion(value);
+    }
+    if ("Long".equals(type)) {
+      return Long.valueOf(value.trim());
+    }
+    if ("Double".equals(type)) {
+      return Double.valueOf(value.trim());
+    }
+    if (type.startsWith("List")) {
+      List<String> result = new ArrayList<String>();
+      for (String element : value.split(",")) {
+        result.add(element.trim());
+      }
+      return result;
+    }
+    return value;
+  }
+
+  private static Map<String, Object> convertAttributes(final Clause clause) {
+    Map<String, Object> result = new HashMap<String, Object>();
+    for (Attribute attribute : clause.getAttributes()) {
+      String name = attribute.getName();
+      String type = null;
+      int typeSeparatorIndex = name.indexOf(':');
+      if (typeSeparatorIndex > 0) {
+        type = name.substring(typeSeparatorIndex + 1).trim();
+        name = name.substring(0, typeSeparatorIndex).trim();
+      }
+      try {
+        result.put(name, BundleManifestReader.convertAttributeValue(type, attribute.getValue()));
+      } catch (IllegalArgumentException e) {
+        result.put(name, attribute.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates the descriptor of a bundle based on its manifest.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @param manifest
+   *          The manifest of the bundle.
+   * @return The descriptor of the bundle.
+   * @throws IllegalArgumentException
+   *           if one of the headers of the manifest has an invalid syntax.
+   */
+  public static BundleDescriptor createDescriptor(final String bundleLocation,
+      final Manifest manifest) {
+
+    Attributes mainAttributes = manifest.getMainAttributes();
+    BundleDescriptor descriptor = new BundleDescriptor(bundleLocation);
+    descriptor.manifest = manifest;
+
+    Clause[] symbolicNameClauses =
+        BundleManifestReader.parseHeader(mainAttributes.getValue(Constants.BUNDLE_SYMBOLICNAME));
+    if (symbolicNameClauses.length > 0) {
+      descriptor.symbolicName = symbolicNameClauses[0].getName();
+    }
+    descriptor.version = mainAttributes.getValue(Constants.BUNDLE_VERSION);
+
+    Clause[] fragmentHostClauses =
+        BundleManifestReader.parseHeader(mainAttributes.getValue(Constants.FRAGMENT_HOST));
+    if (fragmentHostClauses.length > 0) {
+      descriptor.fragmentHost = fragmentHostClauses[0].getName();
+    }
+
+    BundleManifestReader.addIdentityCapabilities(descriptor);
+    BundleManifestReader.addCapabilities(descriptor, mainAttributes);
+    BundleManifestReader.addRequirements(descriptor, mainAttributes);
+    return descriptor;
+  }
+
+  private static String escapeFilterValue(final String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if (c == '\\' || c == '(' || c == ')' || c == '*') {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  private static Clause[] parseHeader(final String headerValue) {
+    if (headerValue == null || headerValue.trim().length() == 0) {
+      return new Clause[0];
+    }
+    return Parser.parseHeader(headerValue);
+  }
+
+  private static Version parseVersion(final String version) {
+    if (version == null) {
+      return Version.emptyVersion;
+    }
+    try {
+      return Version.parseVersion(version.trim());
+    } catch (IllegalArgumentException e) {
+      return Version.emptyVersion;
+    }
+  }
+
+  /**
+   * Reads the descriptor of a bundle from its manifest.
+   *
+   * @param bundleLocation
+   *          The location of the bundle.
+   * @return The descriptor of the bundle or <code>null</code> if the location does not point to a
+   *         jar or directory on the local filesystem or the manifest of the bundle cannot be read.
+   */
+  public static BundleDescriptor read(final String bundleLocation) {
+    String fingerprint = BundleLocationUtil.fingerprint(bundleLocation);
+    if (fingerprint == null) {
+      return null;
+    }
+    File file = BundleLocationUtil.resolveFile(bundleLocation);
+    String cacheKey = bundleLocation + "|" + fingerprint;
+    BundleDescriptor descriptor = DESCRIPTOR_CACHE.get(cacheKey);
+    if (descriptor != null) {
+      return descriptor;
+    }
+
+    try {
+      if (file.isDirectory()) {
+        Manifest manifest = BundleManifestReader.readDirectoryManifest(file);
+        if (manifest == null) {
+          return null;
+        }
+        descriptor = BundleManifestReader.createDescriptor(bundleLocation, manifest);
+      } else {
+        JarCentralDirectory jarFile = BundleManifestReader.readJar(file);
+        if (jarFile.manifest == null) {
+          return null;
+        }
+        descriptor = BundleManifestReader.createDescriptor(bundleLocation, jarFile.manifest);
+        descriptor.entries = jarFile.entries;
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Could not read manifest of bundle " + bundleLocation, e);
+      return null;
+    } catch (IllegalArgumentException e) {
+      LOGGER.log(Level.WARNING, "Could not parse manifest of bundle " + bundleLocation, e);
+      return null;
+    }
+    DESCRIPTOR_CACHE.put(cacheKey, descriptor);
+    return descriptor;
+  }
+
+  /**
+   * Reads the descriptors of multiple bundles. The manifests are read on a thread pool, as reading
+   * them is bound by the I/O operations.
+   *
+   * @return The descriptors in the order of the locations. The element is <code>null</code> if
+   *         the descriptor of a bundle could not be read.
+   * @see #read(String)
+   */
+  public static List<BundleDescriptor> readAll(final String[] bundleLocations) {
+    List<BundleDescriptor> result = new ArrayList<BundleDescriptor>(bundleLocations.length);
+    int threadCount = Math.min(bundleLocations.length,
+        Runtime.getRuntime().availableProcessors() * THREADS_PER_PROCESSOR);
+    if (threadCount <= 1) {
+      for (String bundleLocation : bundleLocations) {
+        result.add(BundleManifestReader.read(bundleLocation));
+      }
+      return result;
+    }
+
+    ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<BundleDescriptor>> futures =
+          new ArrayList<Future<BundleDescriptor>>(bundleLocations.length);
+      for (final String bundleLocation : bundleLocations) {
+        futures.add(executorService.submit(new Callable<BundleDescriptor>() {
+
+          @Override
+          public BundleDescriptor call() {
+            return BundleManifestReader.read(bundleLocation);
+          }
+        }));
+      }
+      for (Future<BundleDescriptor> future : futures) {
+        result.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Reading the bundle manifests was interrupted", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    } finally {
+      executorService.shutdownNow();
+    }
+    return result;
+  }
+
+  private static Manifest readDirectoryManifest(final File directory) throws IOException {
+    File manifestFile = new File(directory, JarFile.MANIFEST_NAME);
+    if (!manifestFile.exists()) {
+      return null;
+    }
+    try (InputStream in = new FileInputStream(manifestFile)) {
+      return new Manifest(in);
+    }
+  }
+
+  private static JarCentralDirectory readJar(final File file) throws IOException {
+    try {
+      return JarCentralDirectory.read(file);
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Could not read central directory of " + file.getAbsolutePath()
+          + ". Falling back to JarFile.", e);
+    }
+    try (JarFile jarFile = new JarFile(file, false)) {
+      return new JarCentralDirectory(null, jarFile.getManifest());
+    }
+  }
+
+  private BundleManifestReader() {
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.util.Map;
+
+/**
+ * A capability that is declared in the manifest of a bundle. Exported packages and the symbolic
+ * name of the bundle are represented in the generic form, as it is done in OSGi R5.
+ */
+public class CapabilityDescriptor {
+
+  public final Map<String, Object> attributes;
+
+  public final BundleDescriptor bundle;
+
+  public final String namespace;
+
+  /**
+   * Constructor.
+   */
+  public CapabilityDescriptor(final BundleDescriptor bundle, final String namespace,
+      final Map<String, Object> attributes) {
+    this.bundle = bundle;
+    this.namespace = namespace;
+    this.attributes = attributes;
+  }
+
+  @Override
+  public String toString() {
+    return namespace + attributes;
+  }
+
+}
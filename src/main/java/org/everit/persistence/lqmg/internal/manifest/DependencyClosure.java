@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.felix.utils.manifest.Clause;
+import org.apache.felix.utils.manifest.Parser;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Calculates the bundles that are necessary to resolve the bundles providing the requested
+ * changelog capabilities. The calculation is based on the manifest headers of the bundles, so it
+ * can be done before installing anything into the OSGi container. The result is a superset of the
+ * bundles the OSGi resolver would wire together, as version ranges and uses constraints are not
+ * taken into account.
+ */
+public class DependencyClosure {
+
+  /**
+   * The namespace of the capabilities that point to Liquibase changelogs.
+   */
+  public static final String NAMESPACE_LIQUIBASE_CHANGELOG = "liquibase.changelog";
+
+  private final Map<String, List<CapabilityDescriptor>> capabilitiesByNamespace =
+      new HashMap<String, List<CapabilityDescriptor>>();
+
+  private final Map<String, List<BundleDescriptor>> fragmentsByHost =
+      new HashMap<String, List<BundleDescriptor>>();
+
+  /**
+   * Constructor.
+   *
+   * @param descriptors
+   *          The descriptors of all bundles that are available.
+   */
+  public DependencyClosure(final Collection<BundleDescriptor> descriptors) {
+    for (BundleDescriptor descriptor : descriptors) {
+      for (CapabilityDescriptor capability : descriptor.capabilities) {
+        List<CapabilityDescriptor> capabilities = capabilitiesByNamespace.get(capability.namespace);
+        if (capabilities == null) {
+          capabilities = new ArrayList<CapabilityDescriptor>();
+          capabilitiesByNamespace.put(capability.namespace, capabilities);
+        }
+        capabilities.add(capability);
+      }
+      if (descriptor.fragmentHost != null) {
+        List<BundleDescriptor> fragments = fragmentsByHost.get(descriptor.fragmentHost);
+        if (fragments == null) {
+          fragments = new ArrayList<BundleDescriptor>();
+          fragmentsByHost.put(descriptor.fragmentHost, fragments);
+        }
+        fragments.add(descriptor);
+      }
+    }
+  }
+
+  /**
+   * Creates a filter from a schema expression that matches the attributes of the changelog
+   * capabilities the expression points to.
+   *
+   * @param capabilityExpression
+   *          A schema name with optional filter expression. E.g.: userMgmt;filter:="(version=2)"
+   * @return The filter or <code>null</code> if the expression is invalid.
+   */
+  public static Filter createChangelogFilter(final String capabilityExpression) {
+    try {
+      Clause[] clauses = Parser.parseHeader(capabilityExpression);
+      if (clauses.length == 0) {
+        return null;
+      }
+      StringBuilder sb = new StringBuilder("(&(").append(NAMESPACE_LIQUIBASE_CHANGELOG)
+          .append('=').append(DependencyClosure.escapeFilterValue(clauses[0].getName()))
+          .append(')');
+      String filterString = clauses[0].getDirective(Constants.FILTER_DIRECTIVE);
+      if (filterString != null) {
+        sb.append(filterString);
+      }
+      sb.append(')');
+      return FrameworkUtil.createFilter(sb.toString());
+    } catch (IllegalArgumentException e) {
+      return null;
+    } catch (InvalidSyntaxException e) {
+      return null;
+    }
+  }
+
+  private static String escapeFilterValue(final String value) {
+    StringBuilder sb = new StringBuilder(value.length());
+    for (int i = 0, n = value.length(); i < n; i++) {
+      char c = value.charAt(i);
+      if ((c == '\\') || (c == '*') || (c == '(') || (c == ')')) {
+        sb.append('\\');
+      }
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Finds the changelog capabilities that match the schema expression.
+   *
+   * @param capabilityExpression
+   *          A schema name with optional filter expression. E.g.: userMgmt;filter:="(version=2)"
+   * @return The matching capabilities in the order of the bundles. Empty if there is no matching
+   *         capability or the expression is invalid.
+   */
+  public List<CapabilityDescriptor> findChangelogCapabilities(final String capabilityExpression) {
+    List<CapabilityDescriptor> result = new ArrayList<CapabilityDescriptor>();
+    Filter filter = DependencyClosure.createChangelogFilter(capabilityExpression);
+    if (filter == null) {
+      return result;
+    }
+    for (CapabilityDescriptor capability : getCapabilities(NAMESPACE_LIQUIBASE_CHANGELOG)) {
+      if (filter.matches(capability.attributes)) {
+        result.add(capability);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Finds the bundles that provide a changelog capability matching the schema expression.
+   *
+   * @param capabilityExpression
+   *          A schema name with optional filter expression. E.g.: userMgmt;filter:="(version=2)"
+   * @return The providers of the capability. Empty if there is no provider or the expression is
+   *         invalid.
+   */
+  public Set<BundleDescriptor> findChangelogProviders(final String capabilityExpression) {
+    Set<BundleDescriptor> result = new LinkedHashSet<BundleDescriptor>();
+    for (CapabilityDescriptor capability : findChangelogCapabilities(capabilityExpression)) {
+      result.add(capability.bundle);
+    }
+    return result;
+  }
+
+  /**
+   * Finds the fragments that would be attached to a bundle in an OSGi container.
+   *
+   * @param host
+   *          The host bundle.
+   * @return The fragments whose <code>Fragment-Host</code> header points to the symbolic name of
+   *         the bundle. Empty if there is no such fragment.
+   */
+  public List<BundleDescriptor> findFragments(final BundleDescriptor host) {
+    List<BundleDescriptor> fragments = null;
+    if (host.symbolicName != null) {
+      fragments = fragmentsByHost.get(host.symbolicName);
+    }
+    if (fragments == null) {
+      return Collections.emptyList();
+    }
+    return fragments;
+  }
+
+  /**
+   * Finds the changelog capability that the requirements of a bundle would be wired to if the
+   * bundle includes the changelog with the specified name.
+   *
+   * @param requirer
+   *          The bundle that includes the changelog.
+   * @param changelogName
+   *          The name of the changelog capability.
+   * @return The first capability that satisfies one of the changelog requirements of the bundle
+   *         and has the specified name or <code>null</code> if there is no such capability.
+   */
+  public CapabilityDescriptor findWiredChangelog(final BundleDescriptor requirer,
+      final String changelogName) {
+    for (RequirementDescriptor requirement : requirer.requirements) {
+      if (NAMESPACE_LIQUIBASE_CHANGELOG.equals(requirement.namespace)) {
+        for (CapabilityDescriptor capability : getCapabilities(NAMESPACE_LIQUIBASE_CHANGELOG)) {
+          if (changelogName.equals(capability.attributes.get(NAMESPACE_LIQUIBASE_CHANGELOG))
+              && requirement.matches(capability)) {
+            return capability;
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  private List<CapabilityDescriptor> getCapabilities(final String namespace) {
+    List<CapabilityDescriptor> capabilities = capabilitiesByNamespace.get(namespace);
+    if (capabilities == null) {
+      return Collections.emptyList();
+    }
+    return capabilities;
+  }
+
+  /**
+   * Calculates the transitive closure of the providers of the capability expressions. All
+   * providers of every requirement are part of the closure, including the providers of optional
+   * requirements. The fragments of the bundles in the closure are also added.
+   *
+   * @param capabilityExpressions
+   *          The schema expressions whose providers should be resolved.
+   * @return The descriptors of the bundles in the closure or <code>null</code> if there is a
+   *         capability expression that none of the bundles provides.
+   */
+  public Set<BundleDescriptor> resolve(final Collection<String> capabilityExpressions) {
+    Set<BundleDescriptor> result = new LinkedHashSet<BundleDescriptor>();
+    LinkedList<BundleDescriptor> queue = new LinkedList<BundleDescriptor>();
+    for (String capabilityExpression : capabilityExpressions) {
+      Set<BundleDescriptor> providers = findChangelogProviders(capabilityExpression);
+      if (providers.isEmpty()) {
+        return null;
+      }
+      queue.addAll(providers);
+    }
+
+    while (!queue.isEmpty()) {
+      BundleDescriptor descriptor = queue.removeFirst();
+      if (!result.add(descriptor)) {
+        continue;
+      }
+      for (RequirementDescriptor requirement : descriptor.requirements) {
+        for (CapabilityDescriptor capability : getCapabilities(requirement.namespace)) {
+          if ((requirement.invalidFilter || requirement.matches(capability))
+              && !result.contains(capability.bundle)) {
+            queue.add(capability.bundle);
+          }
+        }
+      }
+      if (descriptor.symbolicName != null) {
+        List<BundleDescriptor> fragments = fragmentsByHost.get(descriptor.symbolicName);
+        if (fragments != null) {
+          queue.addAll(fragments);
+        }
+      }
+    }
+    return result;
+  }
+
+}
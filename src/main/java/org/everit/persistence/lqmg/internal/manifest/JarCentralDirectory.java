@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the entry names and the manifest of a jar file from its ZIP central directory. Only the
+ * end of the file and the manifest entry are read into heap buffers, the other entries are not
+ * touched. The file is not memory mapped, as a mapped file stays locked on Windows until the
+ * mapping is garbage collected. ZIP64 archives and archives spanning multiple disks are not
+ * supported.
+ */
+public final class JarCentralDirectory {
+
+  static final int CEN_COMMENT_LENGTH_OFFSET = 32;
+
+  private static final int CEN_COMPRESSED_SIZE_OFFSET = 20;
+
+  static final int CEN_EXTRA_LENGTH_OFFSET = 30;
+
+  static final int CEN_HEADER_SIZE = 46;
+
+  static final int CEN_LOCAL_HEADER_OFFSET_OFFSET = 42;
+
+  private static final int CEN_METHOD_OFFSET = 10;
+
+  static final int CEN_NAME_LENGTH_OFFSET = 28;
+
+  static final int CEN_SIGNATURE = 0x02014b50;
+
+  private static final int CEN_UNCOMPRESSED_SIZE_OFFSET = 24;
+
+  static final int EOCD_CEN_OFFSET_OFFSET = 16;
+
+  static final int EOCD_CEN_SIZE_OFFSET = 12;
+
+  static final int EOCD_HEADER_SIZE = 22;
+
+  static final int EOCD_SIGNATURE = 0x06054b50;
+
+  private static final int LOC_EXTRA_LENGTH_OFFSET = 28;
+
+  static final int LOC_HEADER_SIZE = 30;
+
+  private static final int LOC_NAME_LENGTH_OFFSET = 26;
+
+  static final int LOC_SIGNATURE = 0x04034b50;
+
+  private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+  private static final int METHOD_DEFLATED = 8;
+
+  static final int METHOD_STORED = 0;
+
+  static final long UNSIGNED_INT_MASK = 0xFFFFFFFFL;
+
+  static final int UNSIGNED_SHORT_MASK = 0xFFFF;
+
+  static final Charset UTF8 = Charset.forName("UTF-8");
+
+  static long findEndOfCentralDirectory(final FileChannel channel, final long fileSize)
+      throws IOException {
+
+    if (fileSize < EOCD_HEADER_SIZE) {
+      throw new IOException("File is too small to be a zip archive");
+    }
+    long searchStart = Math.max(0, fileSize - EOCD_HEADER_SIZE - MAX_COMMENT_LENGTH);
+    ByteBuffer tail =
+        JarCentralDirectory.readRegion(channel, searchStart, fileSize - searchStart);
+    for (int i = tail.limit() - EOCD_HEADER_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == EOCD_SIGNATURE) {
+        return searchStart + i;
+      }
+    }
+    throw new IOException("End of central directory record not found");
+  }
+
+  /**
+   * Reads the entry names and the manifest of a jar file.
+   *
+   * @param file
+   *          The jar file.
+   * @return The content of the central directory and the manifest.
+   * @throws IOException
+   *           if the file cannot be read or it is not a supported zip archive.
+   */
+  public static JarCentralDirectory read(final File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long fileSize = channel.size();
+      long eocdPosition = JarCentralDirectory.findEndOfCentralDirectory(channel, fileSize);
+      ByteBuffer eocd = JarCentralDirectory.readRegion(channel, eocdPosition, EOCD_HEADER_SIZE);
+      long cenSize = eocd.getInt(EOCD_CEN_SIZE_OFFSET) & UNSIGNED_INT_MASK;
+      long cenOffset = eocd.getInt(EOCD_CEN_OFFSET_OFFSET) & UNSIGNED_INT_MASK;
+      if ((cenSize == UNSIGNED_INT_MASK) || (cenOffset == UNSIGNED_INT_MASK)
+          || (cenOffset + cenSize > eocdPosition)) {
+        throw new IOException("ZIP64 or corrupt zip archives are not supported");
+      }
+
+      ByteBuffer cen = JarCentralDirectory.readRegion(channel, cenOffset, cenSize);
+      List<String> entries = new ArrayList<String>();
+      byte[] manifestBytes = null;
+      int position = 0;
+      while (position + CEN_HEADER_SIZE <= cenSize) {
+        if (cen.getInt(position) != CEN_SIGNATURE) {
+          throw new IOException("Invalid central directory header at " + (cenOffset + position));
+        }
+        int nameLength = cen.getShort(position + CEN_NAME_LENGTH_OFFSET) & UNSIGNED_SHORT_MASK;
+        int extraLength = cen.getShort(position + CEN_EXTRA_LENGTH_OFFSET) & UNSIGNED_SHORT_MASK;
+        int commentLength =
+            cen.getShort(position + CEN_COMMENT_LENGTH_OFFSET) & UNSIGNED_SHORT_MASK;
+
+        byte[] nameBytes = new byte[nameLength];
+        cen.position(position + CEN_HEADER_SIZE);
+        cen.get(nameBytes);
+        String name = new String(nameBytes, UTF8);
+        entries.add(name);
+
+        if (JarFile.MANIFEST_NAME.equalsIgnoreCase(name)) {
+          manifestBytes = JarCentralDirectory.readEntry(channel, cen, position);
+        }
+        position += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+      }
+
+      Manifest manifest = null;
+      if (manifestBytes != null) {
+        manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      }
+      return new JarCentralDirectory(Collections.unmodifiableList(entries), manifest);
+    }
+  }
+
+  private static byte[] readEntry(final FileChannel channel, final ByteBuffer cen,
+      final int cenPosition) throws IOException {
+
+    int method = cen.getShort(cenPosition + CEN_METHOD_OFFSET) & UNSIGNED_SHORT_MASK;
+    long compressedSize = cen.getInt(cenPosition + CEN_COMPRESSED_SIZE_OFFSET) & UNSIGNED_INT_MASK;
+    long uncompressedSize =
+        cen.getInt(cenPosition + CEN_UNCOMPRESSED_SIZE_OFFSET) & UNSIGNED_INT_MASK;
+    long localHeaderOffset =
+        cen.getInt(cenPosition + CEN_LOCAL_HEADER_OFFSET_OFFSET) & UNSIGNED_INT_MASK;
+    if (uncompressedSize > Integer.MAX_VALUE || compressedSize > Integer.MAX_VALUE) {
+      throw new IOException("Entry is too big");
+    }
+
+    ByteBuffer localHeader =
+        JarCentralDirectory.readRegion(channel, localHeaderOffset, LOC_HEADER_SIZE);
+    if (localHeader.getInt(0) != LOC_SIGNATURE) {
+      throw new IOException("Invalid local header at " + localHeaderOffset);
+    }
+    int nameLength = localHeader.getShort(LOC_NAME_LENGTH_OFFSET) & UNSIGNED_SHORT_MASK;
+    int extraLength = localHeader.getShort(LOC_EXTRA_LENGTH_OFFSET) & UNSIGNED_SHORT_MASK;
+    long dataOffset = localHeaderOffset + LOC_HEADER_SIZE + nameLength + extraLength;
+
+    ByteBuffer data = JarCentralDirectory.readRegion(channel, dataOffset, compressedSize);
+    byte[] compressed = new byte[(int) compressedSize];
+    data.get(compressed);
+
+    if (method == METHOD_STORED) {
+      return compressed;
+    }
+    if (method != METHOD_DEFLATED) {
+      throw new IOException("Unsupported compression method: " + method);
+    }
+
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(compressed);
+      byte[] result = new byte[(int) uncompressedSize];
+      int length = 0;
+      while (length < result.length && !inflater.finished()) {
+        int inflated = inflater.inflate(result, length, result.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        length += inflated;
+      }
+      if (length != result.length) {
+        throw new IOException("Unexpected size of inflated entry: " + length);
+      }
+      return result;
+    } catch (DataFormatException e) {
+      throw new IOException("Could not inflate entry", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Reads a region of a file into a little endian heap buffer.
+   */
+  static ByteBuffer readRegion(final FileChannel channel, final long position,
+      final long size) throws IOException {
+    if (size > Integer.MAX_VALUE) {
+      throw new IOException("Region is too big: " + size);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file at " + (position + buffer.position()));
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * The names of all entries in the order of the central directory or <code>null</code> if they
+   * are not known.
+   */
+  public final List<String> entries;
+
+  /**
+   * The manifest of the jar or <code>null</code> if the jar does not have a manifest.
+   */
+  public final Manifest manifest;
+
+  JarCentralDirectory(final List<String> entries, final Manifest manifest) {
+    this.entries = entries;
+    this.manifest = manifest;
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+
+/**
+ * Creates a copy of a jar file with a different manifest. The other entries are copied as raw
+ * bytes with channel transfers, so they are neither decompressed nor loaded into the heap. The new
+ * manifest is the first entry of the copy. ZIP64 archives are not supported.
+ */
+public final class JarManifestReplacer {
+
+  /**
+   * A central directory record of the source jar.
+   */
+  private static class CentralDirectoryRecord {
+
+    final int cenLength;
+
+    final int cenPosition;
+
+    final long localHeaderOffset;
+
+    /**
+     * The offset of the local header in the target file or -1 if the entry is not copied.
+     */
+    long newLocalHeaderOffset = -1;
+
+    CentralDirectoryRecord(final int cenPosition, final int cenLength,
+        final long localHeaderOffset) {
+      this.cenPosition = cenPosition;
+      this.cenLength = cenLength;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+  }
+
+  /**
+   * 1980-01-01, the earliest date that can be stored in a zip entry.
+   */
+  private static final int DOS_DATE_1980_01_01 = 0x21;
+
+  private static final int FLAG_UTF8 = 0x800;
+
+  private static final int MAX_ENTRY_COUNT = 0xFFFF;
+
+  private static final int VERSION_NEEDED = 10;
+
+  private static void checkUnsignedInt(final long value) throws IOException {
+    if (value >= JarCentralDirectory.UNSIGNED_INT_MASK) {
+      throw new IOException("ZIP64 archives are not supported");
+    }
+  }
+
+  private static ByteBuffer createCentralDirectoryHeader(final byte[] name, final int crc,
+      final int size) {
+    ByteBuffer buffer = ByteBuffer.allocate(JarCentralDirectory.CEN_HEADER_SIZE + name.length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(JarCentralDirectory.CEN_SIGNATURE);
+    buffer.putShort((short) VERSION_NEEDED);
+    buffer.putShort((short) VERSION_NEEDED);
+    buffer.putShort((short) FLAG_UTF8);
+    buffer.putShort((short) JarCentralDirectory.METHOD_STORED);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) DOS_DATE_1980_01_01);
+    buffer.putInt(crc);
+    buffer.putInt(size);
+    buffer.putInt(size);
+    buffer.putShort((short) name.length);
+    // extra length, comment length, disk number, internal and external attributes
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) 0);
+    buffer.putInt(0);
+    // local header offset: the manifest is always the first entry
+    buffer.putInt(0);
+    buffer.put(name);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static ByteBuffer createLocalHeader(final byte[] name, final int crc, final int size) {
+    ByteBuffer buffer = ByteBuffer.allocate(JarCentralDirectory.LOC_HEADER_SIZE + name.length);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(JarCentralDirectory.LOC_SIGNATURE);
+    buffer.putShort((short) VERSION_NEEDED);
+    buffer.putShort((short) FLAG_UTF8);
+    buffer.putShort((short) JarCentralDirectory.METHOD_STORED);
+    buffer.putShort((short) 0);
+    buffer.putShort((short) DOS_DATE_1980_01_01);
+    buffer.putInt(crc);
+    buffer.putInt(size);
+    buffer.putInt(size);
+    buffer.putShort((short) name.length);
+    buffer.putShort((short) 0);
+    buffer.put(name);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Writes a copy of the source jar with the specified manifest into the target file.
+   *
+   * @param source
+   *          The original jar file.
+   * @param manifest
+   *          The manifest of the copy.
+   * @param target
+   *          The file to write. It is overridden if it exists.
+   * @throws IOException
+   *           if the source cannot be read, it is not a supported zip archive or the target cannot
+   *           be written.
+   */
+  public static void replaceManifest(final File source, final Manifest manifest,
+      final File target) throws IOException {
+
+    ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+    manifest.write(manifestOut);
+    byte[] manifestBytes = manifestOut.toByteArray();
+    CRC32 crc32 = new CRC32();
+    crc32.update(manifestBytes);
+    int crc = (int) crc32.getValue();
+    byte[] manifestName = JarFile.MANIFEST_NAME.getBytes(JarCentralDirectory.UTF8);
+
+    try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+      long fileSize = in.size();
+      long eocdPosition = JarCentralDirectory.findEndOfCentralDirectory(in, fileSize);
+      ByteBuffer eocd =
+          JarCentralDirectory.readRegion(in, eocdPosition, JarCentralDirectory.EOCD_HEADER_SIZE);
+      long cenSize = eocd.getInt(JarCentralDirectory.EOCD_CEN_SIZE_OFFSET)
+          & JarCentralDirectory.UNSIGNED_INT_MASK;
+      long cenOffset = eocd.getInt(JarCentralDirectory.EOCD_CEN_OFFSET_OFFSET)
+          & JarCentralDirectory.UNSIGNED_INT_MASK;
+      if ((cenSize == JarCentralDirectory.UNSIGNED_INT_MASK)
+          || (cenOffset == JarCentralDirectory.UNSIGNED_INT_MASK)
+          || (cenOffset + cenSize > eocdPosition)) {
+        throw new IOException("ZIP64 or corrupt zip archives are not supported");
+      }
+
+      ByteBuffer cen = JarCentralDirectory.readRegion(in, cenOffset, cenSize);
+      List<CentralDirectoryRecord> records = JarManifestReplacer.readRecords(cen, cenSize);
+
+      // Every entry is copied up to the beginning of the next one, so data descriptors are kept
+      List<CentralDirectoryRecord> recordsByOffset =
+          new ArrayList<CentralDirectoryRecord>(records);
+      Collections.sort(recordsByOffset, new Comparator<CentralDirectoryRecord>() {
+        @Override
+        public int compare(final CentralDirectoryRecord o1, final CentralDirectoryRecord o2) {
+          return Long.compare(o1.localHeaderOffset, o2.localHeaderOffset);
+        }
+      });
+
+      JarManifestReplacer.writeFully(out, createLocalHeader(manifestName, crc,
+          manifestBytes.length));
+      JarManifestReplacer.writeFully(out, ByteBuffer.wrap(manifestBytes));
+
+      int copiedRecordCount = 0;
+      for (int i = 0, n = recordsByOffset.size(); i < n; i++) {
+        CentralDirectoryRecord record = recordsByOffset.get(i);
+        long end = (i < n - 1) ? recordsByOffset.get(i + 1).localHeaderOffset : cenOffset;
+        if (JarManifestReplacer.isManifest(cen, record)) {
+          continue;
+        }
+        record.newLocalHeaderOffset = out.position();
+        JarManifestReplacer.checkUnsignedInt(record.newLocalHeaderOffset);
+        JarManifestReplacer.transferFully(in, record.localHeaderOffset,
+            end - record.localHeaderOffset, out);
+        copiedRecordCount++;
+      }
+
+      long newCenOffset = out.position();
+      JarManifestReplacer.checkUnsignedInt(newCenOffset);
+      JarManifestReplacer.writeFully(out, createCentralDirectoryHeader(manifestName, crc,
+          manifestBytes.length));
+      for (CentralDirectoryRecord record : records) {
+        if (record.newLocalHeaderOffset >= 0) {
+          ByteBuffer recordBuffer = ByteBuffer.allocate(record.cenLength);
+          recordBuffer.order(ByteOrder.LITTLE_ENDIAN);
+          for (int i = 0; i < record.cenLength; i++) {
+            recordBuffer.put(cen.get(record.cenPosition + i));
+          }
+          recordBuffer.putInt(JarCentralDirectory.CEN_LOCAL_HEADER_OFFSET_OFFSET,
+              (int) record.newLocalHeaderOffset);
+          recordBuffer.flip();
+          JarManifestReplacer.writeFully(out, recordBuffer);
+        }
+      }
+      long newCenSize = out.position() - newCenOffset;
+      JarManifestReplacer.checkUnsignedInt(newCenSize);
+
+      int entryCount = copiedRecordCount + 1;
+      if (entryCount > MAX_ENTRY_COUNT) {
+        throw new IOException("ZIP64 archives are not supported");
+      }
+      ByteBuffer newEocd = ByteBuffer.allocate(JarCentralDirectory.EOCD_HEADER_SIZE);
+      newEocd.order(ByteOrder.LITTLE_ENDIAN);
+      newEocd.putInt(JarCentralDirectory.EOCD_SIGNATURE);
+      newEocd.putShort((short) 0);
+      newEocd.putShort((short) 0);
+      newEocd.putShort((short) entryCount);
+      newEocd.putShort((short) entryCount);
+      newEocd.putInt((int) newCenSize);
+      newEocd.putInt((int) newCenOffset);
+      newEocd.putShort((short) 0);
+      newEocd.flip();
+      JarManifestReplacer.writeFully(out, newEocd);
+    }
+  }
+
+  private static boolean isManifest(final ByteBuffer cen,
+      final CentralDirectoryRecord record) {
+    int nameLength = cen.getShort(record.cenPosition + JarCentralDirectory.CEN_NAME_LENGTH_OFFSET)
+        & JarCentralDirectory.UNSIGNED_SHORT_MASK;
+    byte[] nameBytes = new byte[nameLength];
+    for (int i = 0; i < nameLength; i++) {
+      nameBytes[i] = cen.get(record.cenPosition + JarCentralDirectory.CEN_HEADER_SIZE + i);
+    }
+    return JarFile.MANIFEST_NAME.equalsIgnoreCase(new String(nameBytes, JarCentralDirectory.UTF8));
+  }
+
+  private static List<CentralDirectoryRecord> readRecords(final ByteBuffer cen,
+      final long cenSize) throws IOException {
+    List<CentralDirectoryRecord> records = new ArrayList<CentralDirectoryRecord>();
+    int position = 0;
+    while (position + JarCentralDirectory.CEN_HEADER_SIZE <= cenSize) {
+      if (cen.getInt(position) != JarCentralDirectory.CEN_SIGNATURE) {
+        throw new IOException("Invalid central directory header at " + position);
+      }
+      int nameLength = cen.getShort(position + JarCentralDirectory.CEN_NAME_LENGTH_OFFSET)
+          & JarCentralDirectory.UNSIGNED_SHORT_MASK;
+      int extraLength = cen.getShort(position + JarCentralDirectory.CEN_EXTRA_LENGTH_OFFSET)
+          & JarCentralDirectory.UNSIGNED_SHORT_MASK;
+      int commentLength = cen.getShort(position + JarCentralDirectory.CEN_COMMENT_LENGTH_OFFSET)
+          & JarCentralDirectory.UNSIGNED_SHORT_MASK;
+      long localHeaderOffset =
+          cen.getInt(position + JarCentralDirectory.CEN_LOCAL_HEADER_OFFSET_OFFSET)
+              & JarCentralDirectory.UNSIGNED_INT_MASK;
+      JarManifestReplacer.checkUnsignedInt(localHeaderOffset);
+      int length = JarCentralDirectory.CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+      records.add(new CentralDirectoryRecord(position, length, localHeaderOffset));
+      position += length;
+    }
+    return records;
+  }
+
+  private static void transferFully(final FileChannel in, final long position, final long count,
+      final FileChannel out) throws IOException {
+    long transferred = 0;
+    while (transferred < count) {
+      long n = in.transferTo(position + transferred, count - transferred, out);
+      if (n <= 0) {
+        throw new IOException("Unexpected end of file while copying zip entry");
+      }
+      transferred += n;
+    }
+  }
+
+  private static void writeFully(final FileChannel out, final ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  private JarManifestReplacer() {
+  }
+
+}
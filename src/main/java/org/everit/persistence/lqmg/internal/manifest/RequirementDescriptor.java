@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.manifest;
+
+import java.util.logging.Logger;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * A requirement that is declared in the manifest of a bundle. Imported packages, required bundles
+ * and fragment hosts are represented in the generic form, as it is done in OSGi R5. Version ranges
+ * are not part of the filter, so a requirement might match more capabilities than the ones the
+ * OSGi resolver would choose from.
+ */
+public class RequirementDescriptor {
+
+  private static final Logger LOGGER = Logger.getLogger(RequirementDescriptor.class.getName());
+
+  public final BundleDescriptor bundle;
+
+  /**
+   * The compiled filter or <code>null</code> if the requirement matches all capabilities of the
+   * namespace.
+   */
+  private final Filter filter;
+
+  public final String filterString;
+
+  /**
+   * <code>true</code> if the filter of the requirement could not be compiled. In that case the
+   * requirement matches all capabilities of the namespace.
+   */
+  public final boolean invalidFilter;
+
+  public final String namespace;
+
+  public final boolean optional;
+
+  /**
+   * Constructor.
+   */
+  public RequirementDescriptor(final BundleDescriptor bundle, final String namespace,
+      final String filterString, final boolean optional) {
+    this.bundle = bundle;
+    this.namespace = namespace;
+    this.filterString = filterString;
+    this.optional = optional;
+
+    Filter compiledFilter = null;
+    boolean invalid = false;
+    if (filterString != null) {
+      try {
+        compiledFilter = FrameworkUtil.createFilter(filterString);
+      } catch (InvalidSyntaxException e) {
+        LOGGER.warning("Invalid filter in requirement of bundle " + bundle.location + ": "
+            + filterString);
+        invalid = true;
+      }
+    }
+    filter = compiledFilter;
+    invalidFilter = invalid;
+  }
+
+  /**
+   * Checks whether the capability satisfies this requirement.
+   */
+  public boolean matches(final CapabilityDescriptor capability) {
+    if (!namespace.equals(capability.namespace)) {
+      return false;
+    }
+    return (filter == null) || filter.matches(capability.attributes);
+  }
+
+  @Override
+  public String toString() {
+    return namespace + ((filterString != null) ? ";filter:=\"" + filterString + "\"" : "");
+  }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.schemamodel;
+
+/**
+ * A column of a {@link TableModel}. The type information is stored in the form as the database
+ * reports it in its meta data.
+ */
+public class ColumnModel {
+
+  /**
+   * The scale of the type.
+   */
+  public int decimalDigits;
+
+  public String name;
+
+  public boolean nullable = true;
+
+  /**
+   * The precision or the maximum length of the type.
+   */
+  public int size;
+
+  /**
+   * The type of the column from {@link java.sql.Types}.
+   */
+  public int sqlType;
+
+  public String typeName;
+
+  public ColumnModel(final String name) {
+    this.name = name;
+  }
+
+}
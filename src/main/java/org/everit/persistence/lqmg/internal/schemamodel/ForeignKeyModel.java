@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.schemamodel;
+
+import java.sql.DatabaseMetaData;
+import java.util.List;
+
+/**
+ * A foreign key of a {@link TableModel}.
+ */
+public class ForeignKeyModel {
+
+  /**
+   * The referencing columns in the order of the key.
+   */
+  public final List<String> columns;
+
+  /**
+   * The delete rule as it is defined in {@link DatabaseMetaData#getImportedKeys}.
+   */
+  public final int deleteRule;
+
+  public final String name;
+
+  /**
+   * The referenced columns in the same order as the referencing ones.
+   */
+  public final List<String> referencedColumns;
+
+  public final String referencedSchema;
+
+  public String referencedTable;
+
+  /**
+   * The update rule as it is defined in {@link DatabaseMetaData#getImportedKeys}.
+   */
+  public final int updateRule;
+
+  /**
+   * Constructor.
+   */
+  public ForeignKeyModel(final String name, final List<String> columns,
+      final String referencedSchema, final String referencedTable,
+      final List<String> referencedColumns, final int updateRule, final int deleteRule) {
+    this.name = name;
+    this.columns = columns;
+    this.referencedSchema = referencedSchema;
+    this.referencedTable = referencedTable;
+    this.referencedColumns = referencedColumns;
+    this.updateRule = updateRule;
+    this.deleteRule = deleteRule;
+  }
+
+}
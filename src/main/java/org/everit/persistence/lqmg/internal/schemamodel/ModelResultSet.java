@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.schemamodel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Read-only, forward-only {@link ResultSet} over rows that are kept in memory. Only the methods
+ * that are necessary to read the result of the meta data queries are supported. The other methods
+ * throw {@link SQLFeatureNotSupportedException}.
+ */
+public final class ModelResultSet implements InvocationHandler {
+
+  /**
+   * Creates a new result set.
+   *
+   * @param labels
+   *          The labels of the columns.
+   * @param rows
+   *          The rows. The values must be in the same order as the labels.
+   * @return The result set.
+   */
+  public static ResultSet create(final String[] labels, final List<Object[]> rows) {
+    return (ResultSet) Proxy.newProxyInstance(ModelResultSet.class.getClassLoader(),
+        new Class<?>[] { ResultSet.class }, new ModelResultSet(labels, rows));
+  }
+
+  private boolean closed = false;
+
+  private final String[] labels;
+
+  /**
+   * The index of the current row. Before the first call of <code>next()</code> it is
+   * <code>-1</code>.
+   */
+  private int rowIndex = -1;
+
+  private final List<Object[]> rows;
+
+  private boolean wasNull = false;
+
+  private ModelResultSet(final String[] labels, final List<Object[]> rows) {
+    this.labels = labels;
+    this.rows = rows;
+  }
+
+  private int findColumn(final Object column) throws SQLException {
+    if (column instanceof Integer) {
+      int columnIndex = (Integer) column;
+      if ((columnIndex < 1) || (columnIndex > labels.length)) {
+        throw new SQLException("Invalid column index: " + columnIndex);
+      }
+      return columnIndex;
+    }
+    String label = ((String) column).toUpperCase(Locale.ENGLISH);
+    for (int i = 0; i < labels.length; i++) {
+      if (labels[i].equals(label)) {
+        return i + 1;
+      }
+    }
+    throw new SQLException("Column not found: " + column);
+  }
+
+  private Object getValue(final Object column) throws SQLException {
+    if (closed) {
+      throw new SQLException("The result set is closed.");
+    }
+    if ((rowIndex < 0) || (rowIndex >= rows.size())) {
+      throw new SQLException("No current row.");
+    }
+    Object value = rows.get(rowIndex)[findColumn(column) - 1];
+    wasNull = (value == null);
+    return value;
+  }
+
+  @Override
+  public Object invoke(final Object proxy, final Method method, final Object[] args)
+      throws Throwable {
+    String name = method.getName();
+    int argCount = (args == null) ? 0 : args.length;
+    if ((argCount == 0) && "next".equals(name)) {
+      if (closed) {
+        throw new SQLException("The result set is closed.");
+      }
+      if (rowIndex < rows.size()) {
+        rowIndex++;
+      }
+      return rowIndex < rows.size();
+    } else if ((argCount == 0) && "close".equals(name)) {
+      closed = true;
+      return null;
+    } else if ((argCount == 0) && "isClosed".equals(name)) {
+      return closed;
+    } else if ((argCount == 0) && "wasNull".equals(name)) {
+      return wasNull;
+    } else if ((argCount == 0) && "getStatement".equals(name)) {
+      return null;
+    } else if ((argCount == 1) && "findColumn".equals(name)) {
+      return findColumn(args[0]);
+    } else if ((argCount == 1) && "getObject".equals(name)) {
+      return getValue(args[0]);
+    } else if ((argCount == 1) && "getString".equals(name)) {
+      Object value = getValue(args[0]);
+      return (value == null) ? null : value.toString();
+    } else if ((argCount == 1) && "getBoolean".equals(name)) {
+      Object value = getValue(args[0]);
+      return (value instanceof Boolean) ? value : (value instanceof Number)
+          && (((Number) value).intValue() != 0);
+    } else if ((argCount == 1) && "getShort".equals(name)) {
+      Object value = getValue(args[0]);
+      return (value == null) ? (short) 0 : ((Number) value).shortValue();
+    } else if ((argCount == 1) && "getInt".equals(name)) {
+      Object value = getValue(args[0]);
+      return (value == null) ? 0 : ((Number) value).intValue();
+    } else if ((argCount == 1) && "getLong".equals(name)) {
+      Object value = getValue(args[0]);
+      return (value == null) ? 0L : ((Number) value).longValue();
+    } else if ((argCount == 0) && "hashCode".equals(name)) {
+      return System.identityHashCode(proxy);
+    } else if ((argCount == 1) && "equals".equals(name)) {
+      return proxy == args[0];
+    } else if ((argCount == 0) && "toString".equals(name)) {
+      return "ModelResultSet" + Arrays.toString(labels);
+    }
+    throw new SQLFeatureNotSupportedException(
+        "Method is not supported by the schema model: " + name);
+  }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.schemamodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory model of the tables, columns and keys of a database. The model is built by
+ * interpreting the changes of the changelogs instead of executing them, and it behaves like the
+ * H2 database that LQMG uses otherwise, so the same meta data is exported from it.
+ */
+public class SchemaModel {
+
+  private static final String GENERATED_CONSTRAINT_NAME_PREFIX = "CONSTRAINT_";
+
+  /**
+   * The names of the constraints by schema. Constraint names are unique within a schema.
+   */
+  private final Map<String, Set<String>> constraintNames = new HashMap<String, Set<String>>();
+
+  /**
+   * The tables by schema and name.
+   */
+  private final Map<String, Map<String, TableModel>> tables =
+      new TreeMap<String, Map<String, TableModel>>();
+
+  /**
+   * Adds a table to the model.
+   *
+   * @return <code>false</code> if the schema already has a table with the same name.
+   */
+  public boolean addTable(final TableModel table) {
+    Map<String, TableModel> schemaTables = tables.get(table.schema);
+    if (schemaTables == null) {
+      schemaTables = new TreeMap<String, TableModel>();
+      tables.put(table.schema, schemaTables);
+    }
+    if (schemaTables.containsKey(table.name)) {
+      return false;
+    }
+    schemaTables.put(table.name, table);
+    return true;
+  }
+
+  /**
+   * Finds a table by its schema and name.
+   *
+   * @return The table or <code>null</code> if it does not exist.
+   */
+  public TableModel findTable(final String schema, final String name) {
+    Map<String, TableModel> schemaTables = tables.get(schema);
+    return (schemaTables == null) ? null : schemaTables.get(name);
+  }
+
+  /**
+   * Returns all tables ordered by schema and name.
+   */
+  public List<TableModel> getTables() {
+    List<TableModel> result = new ArrayList<TableModel>();
+    for (Map<String, TableModel> schemaTables : tables.values()) {
+      result.addAll(schemaTables.values());
+    }
+    return result;
+  }
+
+  /**
+   * Checks whether a foreign key of any table, including the table itself, references the table.
+   */
+  public boolean isReferenced(final TableModel table) {
+    return isReferenced(table, true);
+  }
+
+  private boolean isReferenced(final TableModel table, final boolean includeSelfReferences) {
+    for (TableModel otherTable : getTables()) {
+      if ((otherTable == table) && !includeSelfReferences) {
+        continue;
+      }
+      for (ForeignKeyModel foreignKey : otherTable.foreignKeys) {
+        if (foreignKey.referencedSchema.equals(table.schema)
+            && foreignKey.referencedTable.equals(table.name)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks whether a foreign key of another table references the table.
+   */
+  public boolean isReferencedByOtherTables(final TableModel table) {
+    return isReferenced(table, false);
+  }
+
+  /**
+   * Makes the name of a dropped constraint available again.
+   */
+  public void releaseConstraintName(final String schema, final String constraintName) {
+    Set<String> schemaConstraintNames = constraintNames.get(schema);
+    if (schemaConstraintNames != null) {
+      schemaConstraintNames.remove(constraintName);
+    }
+  }
+
+  /**
+   * Reserves the name of a new constraint.
+   *
+   * @return <code>false</code> if the schema already has a constraint with the same name.
+   */
+  public boolean reserveConstraintName(final String schema, final String constraintName) {
+    Set<String> schemaConstraintNames = constraintNames.get(schema);
+    if (schemaConstraintNames == null) {
+      schemaConstraintNames = new HashSet<String>();
+      constraintNames.put(schema, schemaConstraintNames);
+    }
+    return schemaConstraintNames.add(constraintName);
+  }
+
+  /**
+   * Generates and reserves the name of a constraint that was created without a name. The name is
+   * derived from the hash code of the table name in the same way as H2 does it, so the generated
+   * names are the same as the ones that H2 would report.
+   */
+  public String reserveGeneratedConstraintName(final String schema, final String tableName) {
+    String hash = Integer.toHexString(tableName.hashCode()).toUpperCase(Locale.ENGLISH);
+    for (int i = 1, n = hash.length(); i < n; i++) {
+      String constraintName = GENERATED_CONSTRAINT_NAME_PREFIX + hash.substring(0, i);
+      if (reserveConstraintName(schema, constraintName)) {
+        return constraintName;
+      }
+    }
+    String prefix = GENERATED_CONSTRAINT_NAME_PREFIX + hash + "_";
+    int i = 0;
+    while (!reserveConstraintName(schema, prefix + i)) {
+      i++;
+    }
+    return prefix + i;
+  }
+
+  /**
+   * Removes a table from the model together with the names of its constraints.
+   */
+  public void removeTable(final TableModel table) {
+    Map<String, TableModel> schemaTables = tables.get(table.schema);
+    if (schemaTables != null) {
+      schemaTables.remove(table.name);
+    }
+    if (table.primaryKeyName != null) {
+      releaseConstraintName(table.schema, table.primaryKeyName);
+    }
+    for (ForeignKeyModel foreignKey : table.foreignKeys) {
+      releaseConstraintName(table.schema, foreignKey.name);
+    }
+    for (String uniqueConstraintName : table.uniqueConstraints.keySet()) {
+      releaseConstraintName(table.schema, uniqueConstraintName);
+    }
+  }
+
+  /**
+   * Removes the foreign keys of other tables that reference the table.
+   */
+  public void removeReferencingForeignKeys(final TableModel table) {
+    for (TableModel otherTable : getTables()) {
+      Iterator<ForeignKeyModel> iterator = otherTable.foreignKeys.iterator();
+      while (iterator.hasNext()) {
+        ForeignKeyModel foreignKey = iterator.next();
+        if ((otherTable != table) && foreignKey.referencedSchema.equals(table.schema)
+            && foreignKey.referencedTable.equals(table.name)) {
+          iterator.remove();
+          releaseConstraintName(otherTable.schema, foreignKey.name);
+        }
+      }
+    }
+  }
+
+  /**
+   * Renames a column of a table and updates the constraints that reference it.
+   */
+  public void renameColumn(final TableModel table, final ColumnModel column,
+      final String newName) {
+    String oldName = column.name;
+    table.renameColumn(column, newName);
+    for (TableModel otherTable : getTables()) {
+      for (ForeignKeyModel foreignKey : otherTable.foreignKeys) {
+        if (foreignKey.referencedSchema.equals(table.schema)
+            && foreignKey.referencedTable.equals(table.name)) {
+          Collections.replaceAll(foreignKey.referencedColumns, oldName, newName);
+        }
+      }
+    }
+  }
+
+  /**
+   * Renames a table and updates the foreign keys that reference it.
+   *
+   * @return <code>false</code> if the schema already has a table with the new name.
+   */
+  public boolean renameTable(final TableModel table, final String newName) {
+    Map<String, TableModel> schemaTables = tables.get(table.schema);
+    if (schemaTables.containsKey(newName)) {
+      return false;
+    }
+    for (TableModel otherTable : getTables()) {
+      for (ForeignKeyModel foreignKey : otherTable.foreignKeys) {
+        if (foreignKey.referencedSchema.equals(table.schema)
+            && foreignKey.referencedTable.equals(table.name)) {
+          foreignKey.referencedTable = newName;
+        }
+      }
+    }
+    schemaTables.remove(table.name);
+    table.name = newName;
+    schemaTables.put(newName, table);
+    return true;
+  }
+
+}
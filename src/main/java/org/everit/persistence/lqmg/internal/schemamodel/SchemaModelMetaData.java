@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.schemamodel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@link DatabaseMetaData} that describes the tables, columns and keys of a {@link SchemaModel}.
+ * The other methods are delegated to the meta data of the database that the model was built for,
+ * so the product name, the version and the capabilities of the database are the same as if the
+ * meta data was read from the database itself.
+ */
+public final class SchemaModelMetaData implements InvocationHandler {
+
+  private static final String[] COLUMN_LABELS = { "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME",
+      "COLUMN_NAME", "DATA_TYPE", "TYPE_NAME", "COLUMN_SIZE", "BUFFER_LENGTH", "DECIMAL_DIGITS",
+      "NUM_PREC_RADIX", "NULLABLE", "REMARKS", "COLUMN_DEF", "SQL_DATA_TYPE", "SQL_DATETIME_SUB",
+      "CHAR_OCTET_LENGTH", "ORDINAL_POSITION", "IS_NULLABLE", "SCOPE_CATALOG", "SCOPE_SCHEMA",
+      "SCOPE_TABLE", "SOURCE_DATA_TYPE", "IS_AUTOINCREMENT", "IS_GENERATEDCOLUMN" };
+
+  private static final String[] KEY_LABELS = { "PKTABLE_CAT", "PKTABLE_SCHEM", "PKTABLE_NAME",
+      "PKCOLUMN_NAME", "FKTABLE_CAT", "FKTABLE_SCHEM", "FKTABLE_NAME", "FKCOLUMN_NAME", "KEY_SEQ",
+      "UPDATE_RULE", "DELETE_RULE", "FK_NAME", "PK_NAME", "DEFERRABILITY" };
+
+  private static final String[] PRIMARY_KEY_LABELS =
+      { "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME", "COLUMN_NAME", "KEY_SEQ", "PK_NAME" };
+
+  private static final int RADIX = 10;
+
+  private static final String[] TABLE_LABELS = { "TABLE_CAT", "TABLE_SCHEM", "TABLE_NAME",
+      "TABLE_TYPE", "REMARKS", "TYPE_CAT", "TYPE_SCHEM", "TYPE_NAME", "SELF_REFERENCING_COL_NAME",
+      "REF_GENERATION" };
+
+  private static final String TABLE_TYPE = "TABLE";
+
+  /**
+   * Creates the meta data of a schema model.
+   *
+   * @param schemaModel
+   *          The model that is described by the meta data.
+   * @param delegate
+   *          The meta data of the database that the model was built for. The methods that do not
+   *          describe the tables are delegated to it.
+   * @return The meta data.
+   * @throws SQLException
+   *           if the catalog of the database cannot be read.
+   */
+  public static DatabaseMetaData create(final SchemaModel schemaModel,
+      final DatabaseMetaData delegate) throws SQLException {
+    return (DatabaseMetaData) Proxy.newProxyInstance(SchemaModelMetaData.class.getClassLoader(),
+        new Class<?>[] { DatabaseMetaData.class },
+        new SchemaModelMetaData(schemaModel, delegate, delegate.getConnection().getCatalog()));
+  }
+
+  /**
+   * Checks whether a value matches a search pattern of the {@link DatabaseMetaData} methods. The
+   * <code>%</code> and <code>_</code> wildcards can be escaped with a backslash.
+   */
+  private static boolean matches(final String pattern, final String value) {
+    if ((pattern == null) || "%".equals(pattern)) {
+      return true;
+    }
+    StringBuilder regex = new StringBuilder();
+    StringBuilder literal = new StringBuilder();
+    for (int i = 0, n = pattern.length(); i < n; i++) {
+      char c = pattern.charAt(i);
+      if ((c == '\\') && (i + 1 < n)) {
+        i++;
+        literal.append(pattern.charAt(i));
+      } else if ((c == '%') || (c == '_')) {
+        if (literal.length() > 0) {
+          regex.append(Pattern.quote(literal.toString()));
+          literal.setLength(0);
+        }
+        regex.append((c == '%') ? ".*" : ".");
+      } else {
+        literal.append(c);
+      }
+    }
+    if (literal.length() > 0) {
+      regex.append(Pattern.quote(literal.toString()));
+    }
+    return Pattern.matches(regex.toString(), value);
+  }
+
+  private final String catalog;
+
+  private final DatabaseMetaData delegate;
+
+  private final SchemaModel schemaModel;
+
+  private SchemaModelMetaData(final SchemaModel schemaModel, final DatabaseMetaData delegate,
+      final String catalog) {
+    this.schemaModel = schemaModel;
+    this.delegate = delegate;
+    this.catalog = catalog;
+  }
+
+  private Object[] createKeyRow(final TableModel table, final ForeignKeyModel foreignKey,
+      final int keyIndex) {
+    return new Object[] { catalog, foreignKey.referencedSchema, foreignKey.referencedTable,
+        foreignKey.referencedColumns.get(keyIndex), catalog, table.schema, table.name,
+        foreignKey.columns.get(keyIndex), (short) (keyIndex + 1), (short) foreignKey.updateRule,
+        (short) foreignKey.deleteRule, foreignKey.name, null,
+        (short) DatabaseMetaData.importedKeyNotDeferrable };
+  }
+
+  private Object getColumns(final String schemaPattern, final String tablePattern,
+      final String columnPattern) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (TableModel table : schemaModel.getTables()) {
+      if (!SchemaModelMetaData.matches(schemaPattern, table.schema)
+          || !SchemaModelMetaData.matches(tablePattern, table.name)) {
+        continue;
+      }
+      for (int i = 0, n = table.columns.size(); i < n; i++) {
+        ColumnModel column = table.columns.get(i);
+        if (SchemaModelMetaData.matches(columnPattern, column.name)) {
+          int nullable = column.nullable ? DatabaseMetaData.columnNullable
+              : DatabaseMetaData.columnNoNulls;
+          rows.add(new Object[] { catalog, table.schema, table.name, column.name, column.sqlType,
+              column.typeName, column.size, column.size, column.decimalDigits, RADIX, nullable, "",
+              null, column.sqlType, 0, column.size, i + 1, column.nullable ? "YES" : "NO", null,
+              null, null, null, "NO", "NO" });
+        }
+      }
+    }
+    return ModelResultSet.create(COLUMN_LABELS, rows);
+  }
+
+  private Object getExportedKeys(final String schema, final String tableName) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (TableModel table : schemaModel.getTables()) {
+      for (ForeignKeyModel foreignKey : table.foreignKeys) {
+        if (((schema == null) || schema.equals(foreignKey.referencedSchema))
+            && foreignKey.referencedTable.equals(tableName)) {
+          for (int i = 0, n = foreignKey.columns.size(); i < n; i++) {
+            rows.add(createKeyRow(table, foreignKey, i));
+          }
+        }
+      }
+    }
+    return ModelResultSet.create(KEY_LABELS, rows);
+  }
+
+  private Object getImportedKeys(final String schema, final String tableName) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (TableModel table : schemaModel.getTables()) {
+      if (((schema == null) || schema.equals(table.schema)) && table.name.equals(tableName)) {
+        for (ForeignKeyModel foreignKey : table.foreignKeys) {
+          for (int i = 0, n = foreignKey.columns.size(); i < n; i++) {
+            rows.add(createKeyRow(table, foreignKey, i));
+          }
+        }
+      }
+    }
+    return ModelResultSet.create(KEY_LABELS, rows);
+  }
+
+  private Object getPrimaryKeys(final String schema, final String tableName) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (TableModel table : schemaModel.getTables()) {
+      if (((schema == null) || schema.equals(table.schema)) && table.name.equals(tableName)
+          && (table.primaryKeyColumns != null)) {
+        for (int i = 0, n = table.primaryKeyColumns.size(); i < n; i++) {
+          rows.add(new Object[] { catalog, table.schema, table.name,
+              table.primaryKeyColumns.get(i), (short) (i + 1), table.primaryKeyName });
+        }
+      }
+    }
+    return ModelResultSet.create(PRIMARY_KEY_LABELS, rows);
+  }
+
+  private Object getTables(final String schemaPattern, final String tablePattern,
+      final String[] types) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    if ((types == null) || Arrays.asList(types).contains(TABLE_TYPE)) {
+      for (TableModel table : schemaModel.getTables()) {
+        if (SchemaModelMetaData.matches(schemaPattern, table.schema)
+            && SchemaModelMetaData.matches(tablePattern, table.name)) {
+          rows.add(new Object[] { catalog, table.schema, table.name, TABLE_TYPE, "", null, null,
+              null, null, null });
+        }
+      }
+    }
+    return ModelResultSet.create(TABLE_LABELS, rows);
+  }
+
+  @Override
+  public Object invoke(final Object proxy, final Method method, final Object[] args)
+      throws Throwable {
+    String name = method.getName();
+    int argCount = (args == null) ? 0 : args.length;
+    if ((argCount == 4) && "getTables".equals(name)) {
+      return getTables((String) args[1], (String) args[2], (String[]) args[3]);
+    } else if ((argCount == 4) && "getColumns".equals(name)) {
+      return getColumns((String) args[1], (String) args[2], (String) args[3]);
+    } else if ((argCount == 3) && "getPrimaryKeys".equals(name)) {
+      return getPrimaryKeys((String) args[1], (String) args[2]);
+    } else if ((argCount == 3) && "getImportedKeys".equals(name)) {
+      return getImportedKeys((String) args[1], (String) args[2]);
+    } else if ((argCount == 3) && "getExportedKeys".equals(name)) {
+      return getExportedKeys((String) args[1], (String) args[2]);
+    }
+    try {
+      return method.invoke(delegate, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.persistence.lqmg.internal.schemamodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A table of a {@link SchemaModel}.
+ */
+public class TableModel {
+
+  /**
+   * The columns in the order of their ordinal position.
+   */
+  public final List<ColumnModel> columns = new ArrayList<ColumnModel>();
+
+  public final List<ForeignKeyModel> foreignKeys = new ArrayList<ForeignKeyModel>();
+
+  public String name;
+
+  /**
+   * The columns of the primary key or <code>null</code> if the table does not have a primary key.
+   */
+  public List<String> primaryKeyColumns;
+
+  public String primaryKeyName;
+
+  public final String schema;
+
+  /**
+   * The columns of the unique constraints by the name of the constraints.
+   */
+  public final Map<String, List<String>> uniqueConstraints =
+      new LinkedHashMap<String, List<String>>();
+
+  public TableModel(final String schema, final String name) {
+    this.schema = schema;
+    this.name = name;
+  }
+
+  /**
+   * Finds a column by its name.
+   *
+   * @return The column or <code>null</code> if the table does not have a column with the name.
+   */
+  public ColumnModel findColumn(final String columnName) {
+    int index = indexOfColumn(columnName);
+    return (index < 0) ? null : columns.get(index);
+  }
+
+  /**
+   * Returns the position of a column in the {@link #columns} list or <code>-1</code> if the table
+   * does not have a column with the name.
+   */
+  public int indexOfColumn(final String columnName) {
+    for (int i = 0, n = columns.size(); i < n; i++) {
+      if (columns.get(i).name.equals(columnName)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Checks whether the column is part of the primary key, a foreign key or a unique constraint of
+   * the table.
+   */
+  public boolean isConstrained(final String columnName) {
+    if ((primaryKeyColumns != null) && primaryKeyColumns.contains(columnName)) {
+      return true;
+    }
+    for (ForeignKeyModel foreignKey : foreignKeys) {
+      if (foreignKey.columns.contains(columnName)) {
+        return true;
+      }
+    }
+    for (List<String> uniqueColumns : uniqueConstraints.values()) {
+      if (uniqueColumns.contains(columnName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Renames a column and the references to the column in the constraints of the table. The foreign
+   * keys of other tables are updated by {@link SchemaModel#renameColumn}.
+   */
+  public void renameColumn(final ColumnModel column, final String newName) {
+    String oldName = column.name;
+    column.name = newName;
+    if (primaryKeyColumns != null) {
+      Collections.replaceAll(primaryKeyColumns, oldName, newName);
+    }
+    for (ForeignKeyModel foreignKey : foreignKeys) {
+      Collections.replaceAll(foreignKey.columns, oldName, newName);
+    }
+    for (List<String> uniqueColumns : uniqueConstraints.values()) {
+      Collections.replaceAll(uniqueColumns, oldName, newName);
+    }
+  }
+
+}
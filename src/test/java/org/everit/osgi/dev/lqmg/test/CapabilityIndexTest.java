@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.lqmg.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.everit.persistence.lqmg.internal.CapabilityIndex;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Tests of the {@link CapabilityIndex}. The benchmark runs only if the <code>lqmg.benchmark</code>
+ * system property is set to true.
+ */
+public class CapabilityIndexTest {
+
+  /**
+   * Capability that is not attached to a bundle revision.
+   */
+  private static class TestCapability implements BundleCapability {
+
+    private final Map<String, Object> attributes;
+
+    private final String namespace;
+
+    TestCapability(final String namespace, final Map<String, Object> attributes) {
+      this.namespace = namespace;
+      this.attributes = attributes;
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return attributes;
+    }
+
+    @Override
+    public Map<String, String> getDirectives() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public String getNamespace() {
+      return namespace;
+    }
+
+    @Override
+    public BundleRevision getResource() {
+      return null;
+    }
+
+    @Override
+    public BundleRevision getRevision() {
+      return null;
+    }
+  }
+
+  /**
+   * Requirement that is not attached to a bundle revision.
+   */
+  private static class TestRequirement implements BundleRequirement {
+
+    private final Map<String, String> directives;
+
+    private final Filter filter;
+
+    private final String namespace;
+
+    TestRequirement(final String namespace, final String filter) {
+      this.namespace = namespace;
+      directives = Collections.singletonMap(Constants.FILTER_DIRECTIVE, filter);
+      try {
+        this.filter = FrameworkUtil.createFilter(filter);
+      } catch (InvalidSyntaxException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Map<String, String> getDirectives() {
+      return directives;
+    }
+
+    @Override
+    public String getNamespace() {
+      return namespace;
+    }
+
+    @Override
+    public BundleRevision getResource() {
+      return null;
+    }
+
+    @Override
+    public BundleRevision getRevision() {
+      return null;
+    }
+
+    @Override
+    public boolean matches(final BundleCapability capability) {
+      return namespace.equals(capability.getNamespace())
+          && filter.matches(capability.getAttributes());
+    }
+  }
+
+  private static final int BENCHMARK_BUNDLE_COUNT = 500;
+
+  private static final int BENCHMARK_PACKAGES_PER_BUNDLE = 20;
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private static boolean isSatisfiableByLinearSearch(final BundleRequirement requirement,
+      final List<BundleCapability> capabilities) {
+    for (BundleCapability capability : capabilities) {
+      if (requirement.matches(capability)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static BundleCapability packageCapability(final String packageName,
+      final String version) {
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(BundleRevision.PACKAGE_NAMESPACE, packageName);
+    attributes.put(Constants.VERSION_ATTRIBUTE, new Version(version));
+    return new TestCapability(BundleRevision.PACKAGE_NAMESPACE, attributes);
+  }
+
+  private static BundleRequirement packageRequirement(final String filter) {
+    return new TestRequirement(BundleRevision.PACKAGE_NAMESPACE, filter);
+  }
+
+  @Test
+  public void testBenchmark() {
+    Assume.assumeTrue(Boolean.getBoolean("lqmg.benchmark"));
+
+    Random random = new Random(0);
+    List<BundleCapability> capabilities = new ArrayList<BundleCapability>();
+    List<BundleRequirement> requirements = new ArrayList<BundleRequirement>();
+    for (int i = 0; i < BENCHMARK_BUNDLE_COUNT; i++) {
+      for (int j = 0; j < BENCHMARK_PACKAGES_PER_BUNDLE; j++) {
+        capabilities.add(CapabilityIndexTest.packageCapability("org.test.b" + i + ".p" + j,
+            "1.0.0"));
+        // Some of the requirements point to bundles that are not available
+        int requiredBundle = random.nextInt(BENCHMARK_BUNDLE_COUNT * 2);
+        requirements.add(CapabilityIndexTest.packageRequirement("(&(osgi.wiring.package=org.test.b"
+            + requiredBundle + ".p" + j + ")(version>=1.0.0)(!(version>=2.0.0)))"));
+      }
+    }
+
+    long linearStartTime = System.nanoTime();
+    int linearSatisfied = 0;
+    for (BundleRequirement requirement : requirements) {
+      if (CapabilityIndexTest.isSatisfiableByLinearSearch(requirement, capabilities)) {
+        linearSatisfied++;
+      }
+    }
+    long linearDuration = System.nanoTime() - linearStartTime;
+
+    long indexStartTime = System.nanoTime();
+    CapabilityIndex capabilityIndex = new CapabilityIndex(capabilities);
+    int indexSatisfied = 0;
+    for (BundleRequirement requirement : requirements) {
+      if (capabilityIndex.isSatisfiable(requirement)) {
+        indexSatisfied++;
+      }
+    }
+    long indexDuration = System.nanoTime() - indexStartTime;
+
+    System.out.println("Matching " + requirements.size() + " requirements against "
+        + capabilities.size() + " capabilities. Linear search: "
+        + (linearDuration / NANOS_PER_MILLI) + "ms, index: " + (indexDuration / NANOS_PER_MILLI)
+        + "ms");
+
+    Assert.assertEquals(linearSatisfied, indexSatisfied);
+  }
+
+  @Test
+  public void testFindEqualityValue() {
+    Assert.assertEquals("org.foo",
+        CapabilityIndex.findEqualityValue("(osgi.wiring.package=org.foo)", "osgi.wiring.package"));
+    Assert.assertEquals("org.foo", CapabilityIndex.findEqualityValue(
+        "(&(version>=1.0.0)(osgi.wiring.package=org.foo))", "osgi.wiring.package"));
+    Assert.assertNull(CapabilityIndex.findEqualityValue(
+        "(&(!(osgi.wiring.package=org.bar))(version>=1.0.0))", "osgi.wiring.package"));
+    Assert.assertNull(CapabilityIndex.findEqualityValue(
+        "(|(osgi.wiring.package=org.foo)(osgi.wiring.package=org.bar))", "osgi.wiring.package"));
+    Assert.assertNull(
+        CapabilityIndex.findEqualityValue("(osgi.wiring.package=org.*)", "osgi.wiring.package"));
+    Assert.assertNull(CapabilityIndex.findEqualityValue(null, "osgi.wiring.package"));
+  }
+
+  @Test
+  public void testSatisfiable() {
+    CapabilityIndex capabilityIndex = new CapabilityIndex(Arrays.asList(
+        CapabilityIndexTest.packageCapability("org.foo", "1.0.0"),
+        CapabilityIndexTest.packageCapability("org.foo", "2.0.0"),
+        CapabilityIndexTest.packageCapability("org.bar", "1.0.0")));
+
+    Assert.assertTrue(capabilityIndex.isSatisfiable(CapabilityIndexTest
+        .packageRequirement("(&(osgi.wiring.package=org.foo)(version>=2.0.0))")));
+    Assert.assertFalse(capabilityIndex.isSatisfiable(CapabilityIndexTest
+        .packageRequirement("(&(osgi.wiring.package=org.bar)(version>=2.0.0))")));
+    Assert.assertFalse(capabilityIndex.isSatisfiable(CapabilityIndexTest
+        .packageRequirement("(osgi.wiring.package=org.baz)")));
+    Assert.assertTrue(capabilityIndex.isSatisfiable(CapabilityIndexTest
+        .packageRequirement("(|(osgi.wiring.package=org.baz)(osgi.wiring.package=org.bar))")));
+    Assert.assertEquals(2, capabilityIndex.findCandidates(CapabilityIndexTest
+        .packageRequirement("(osgi.wiring.package=org.foo)")).size());
+  }
+
+}
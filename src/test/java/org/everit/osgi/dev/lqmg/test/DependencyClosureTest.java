@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.lqmg.test;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.everit.persistence.lqmg.internal.manifest.BundleDescriptor;
+import org.everit.persistence.lqmg.internal.manifest.BundleManifestReader;
+import org.everit.persistence.lqmg.internal.manifest.DependencyClosure;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+
+public class DependencyClosureTest {
+
+  private static List<BundleDescriptor> readTestBundles() {
+    ClassLoader classLoader = DependencyClosureTest.class.getClassLoader();
+    URL bundle1URL = classLoader.getResource("META-INF/testBundles/bundle1/");
+    URL bundle2URL = classLoader.getResource("META-INF/testBundles/bundle2/");
+
+    List<BundleDescriptor> descriptors = BundleManifestReader.readAll(new String[] {
+        "reference:" + bundle1URL.toExternalForm(),
+        "reference:" + bundle2URL.toExternalForm() });
+
+    Assert.assertNotNull(descriptors.get(0));
+    Assert.assertNotNull(descriptors.get(1));
+    return descriptors;
+  }
+
+  @Test
+  public void testClosureFollowsRequiredCapabilities() {
+    List<BundleDescriptor> descriptors = DependencyClosureTest.readTestBundles();
+    DependencyClosure dependencyClosure = new DependencyClosure(descriptors);
+
+    Set<BundleDescriptor> myAppClosure =
+        dependencyClosure.resolve(Collections.singleton("myApp"));
+    Assert.assertEquals(2, myAppClosure.size());
+
+    Set<BundleDescriptor> carAndPersonClosure =
+        dependencyClosure.resolve(Collections.singleton("carandperson"));
+    Assert.assertEquals(1, carAndPersonClosure.size());
+    Assert.assertTrue(carAndPersonClosure.contains(descriptors.get(1)));
+  }
+
+  @Test
+  public void testCreateChangelogFilter() {
+    Filter filter = DependencyClosure.createChangelogFilter("my*App;filter:=\"(version=2)\"");
+    Assert.assertNotNull(filter);
+
+    Map<String, Object> attributes = new HashMap<String, Object>();
+    attributes.put(DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG, "my*App");
+    attributes.put("version", "2");
+    Assert.assertTrue(filter.matches(attributes));
+
+    attributes.put(DependencyClosure.NAMESPACE_LIQUIBASE_CHANGELOG, "myApp");
+    Assert.assertFalse(filter.matches(attributes));
+
+    Assert.assertNull(DependencyClosure.createChangelogFilter("myApp;filter:=\"(version=\""));
+  }
+
+  @Test
+  public void testFilterAndMissingCapability() {
+    List<BundleDescriptor> descriptors = DependencyClosureTest.readTestBundles();
+    DependencyClosure dependencyClosure = new DependencyClosure(descriptors);
+
+    Assert.assertEquals(2,
+        dependencyClosure.findChangelogProviders("doubledCap").size());
+    Assert.assertEquals(1,
+        dependencyClosure.findChangelogProviders("doubledCap;filter:=\"(version=2)\"").size());
+    Assert.assertNull(dependencyClosure.resolve(Collections.singleton("notExistingmyApp")));
+  }
+
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.lqmg.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.everit.persistence.lqmg.internal.EmbeddedContainer;
+import org.everit.persistence.lqmg.internal.EquinoxContainer;
+import org.everit.persistence.lqmg.internal.FelixContainer;
+import org.everit.persistence.lqmg.internal.SyntheticProviderBuilder;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Compares the time of booting the embedded OSGi containers and installing and resolving bundles
+ * in them. The benchmark runs only if the <code>lqmg.benchmark</code> system property is set to
+ * true.
+ */
+public class EmbeddedContainerBenchmarkTest {
+
+  private static final int BENCHMARK_BUNDLE_COUNT = 500;
+
+  private static final int BENCHMARK_IMPORTS_PER_BUNDLE = 5;
+
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  /**
+   * Creates manifest-only bundles where every bundle exports a package and imports the packages of
+   * a random group of bundles of the same set, so all of them can be resolved.
+   */
+  private static List<byte[]> createSyntheticBundles() {
+    Random random = new Random(0);
+    List<byte[]> result = new ArrayList<byte[]>();
+    for (int i = 0; i < BENCHMARK_BUNDLE_COUNT; i++) {
+      Manifest manifest = new Manifest();
+      Attributes mainAttributes = manifest.getMainAttributes();
+      mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+      mainAttributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+      mainAttributes.putValue(Constants.BUNDLE_SYMBOLICNAME, "org.lqmg.benchmark.b" + i);
+      mainAttributes.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+      mainAttributes.putValue(Constants.EXPORT_PACKAGE,
+          "org.lqmg.benchmark.b" + i + ";version=\"1.0.0\"");
+      // The imported packages are consecutive, as duplicated imports are not allowed
+      int firstImport = random.nextInt(BENCHMARK_BUNDLE_COUNT / BENCHMARK_IMPORTS_PER_BUNDLE)
+          * BENCHMARK_IMPORTS_PER_BUNDLE;
+      StringBuilder sb = new StringBuilder();
+      for (int j = 0; j < BENCHMARK_IMPORTS_PER_BUNDLE; j++) {
+        if (sb.length() > 0) {
+          sb.append(',');
+        }
+        sb.append("org.lqmg.benchmark.b").append(firstImport + j)
+            .append(";version=\"[1.0,2.0)\"");
+      }
+      mainAttributes.putValue(Constants.IMPORT_PACKAGE, sb.toString());
+      result.add(SyntheticProviderBuilder.toJar(manifest));
+    }
+    return result;
+  }
+
+  private static void deleteFolder(final File folder) {
+    File[] files = folder.listFiles();
+    if (files != null) { // some JVMs return null for empty dirs
+      for (File f : files) {
+        if (f.isDirectory()) {
+          EmbeddedContainerBenchmarkTest.deleteFolder(f);
+        } else {
+          f.delete();
+        }
+      }
+    }
+    folder.delete();
+  }
+
+  private static int runBenchmark(final EmbeddedContainer container, final String label,
+      final String[] bundleLocations, final List<byte[]> syntheticBundles)
+          throws BundleException, InterruptedException {
+    File storageDirectory = new File(System.getProperty("java.io.tmpdir"),
+        "lqmgbenchmark-" + UUID.randomUUID().toString());
+
+    long bootStartTime = System.nanoTime();
+    Framework framework = container.createFramework(storageDirectory);
+    framework.start();
+    long installStartTime = System.nanoTime();
+    try {
+      BundleContext systemBundleContext = framework.getBundleContext();
+      for (String bundleLocation : bundleLocations) {
+        systemBundleContext.installBundle(bundleLocation);
+      }
+      for (int i = 0, n = syntheticBundles.size(); i < n; i++) {
+        systemBundleContext.installBundle("lqmg:benchmark:" + i,
+            new ByteArrayInputStream(syntheticBundles.get(i)));
+      }
+      long resolveStartTime = System.nanoTime();
+      framework.adapt(FrameworkWiring.class).resolveBundles(null);
+      long resolveEndTime = System.nanoTime();
+
+      int resolvedCount = 0;
+      for (Bundle bundle : systemBundleContext.getBundles()) {
+        if (bundle.getState() != Bundle.INSTALLED) {
+          resolvedCount++;
+        }
+      }
+
+      System.out.println(container.getName() + " with " + label + ": boot "
+          + ((installStartTime - bootStartTime) / NANOS_PER_MILLI) + "ms, install "
+          + ((resolveStartTime - installStartTime) / NANOS_PER_MILLI) + "ms, resolve "
+          + ((resolveEndTime - resolveStartTime) / NANOS_PER_MILLI) + "ms, resolved bundles: "
+          + resolvedCount);
+      return resolvedCount;
+    } finally {
+      framework.stop();
+      framework.waitForStop(0);
+      EmbeddedContainerBenchmarkTest.deleteFolder(storageDirectory);
+    }
+  }
+
+  @Test
+  public void testBenchmark() throws BundleException, InterruptedException {
+    Assume.assumeTrue(Boolean.getBoolean("lqmg.benchmark"));
+
+    ClassLoader classLoader = EmbeddedContainerBenchmarkTest.class.getClassLoader();
+    URL bundle1URL = classLoader.getResource("META-INF/testBundles/bundle1/");
+    URL bundle2URL = classLoader.getResource("META-INF/testBundles/bundle2/");
+    String[] testBundleLocations = new String[] {
+        "reference:" + bundle2URL.toExternalForm(),
+        "reference:" + bundle1URL.toExternalForm() };
+    List<byte[]> syntheticBundles = EmbeddedContainerBenchmarkTest.createSyntheticBundles();
+
+    EmbeddedContainer[] containers = new EmbeddedContainer[] { new EquinoxContainer(),
+        new FelixContainer() };
+    int[] resolvedTestBundles = new int[containers.length];
+    int[] resolvedSyntheticBundles = new int[containers.length];
+    for (int i = 0; i < containers.length; i++) {
+      // The first round warms up the classes of the framework
+      EmbeddedContainerBenchmarkTest.runBenchmark(containers[i], "test bundles (warm-up)",
+          testBundleLocations, new ArrayList<byte[]>());
+      resolvedTestBundles[i] = EmbeddedContainerBenchmarkTest.runBenchmark(containers[i],
+          "test bundles", testBundleLocations, new ArrayList<byte[]>());
+      resolvedSyntheticBundles[i] = EmbeddedContainerBenchmarkTest.runBenchmark(containers[i],
+          BENCHMARK_BUNDLE_COUNT + " synthetic bundles", new String[0], syntheticBundles);
+    }
+
+    for (int i = 1; i < containers.length; i++) {
+      Assert.assertEquals(resolvedTestBundles[0], resolvedTestBundles[i]);
+      Assert.assertEquals(resolvedSyntheticBundles[0], resolvedSyntheticBundles[i]);
+    }
+    Assert.assertEquals(BENCHMARK_BUNDLE_COUNT + 1, resolvedSyntheticBundles[0]);
+  }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2011 Everit Kft. (http://www.everit.biz)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.everit.osgi.dev.lqmg.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.everit.persistence.lqmg.GenerationProperties;
+import org.everit.persistence.lqmg.LQMG;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Stress test that runs multiple generations in the same JVM at the same time.
+ */
+public class LQMGConcurrencyTest {
+
+  private static final int GENERATION_COUNT = 8;
+
+  private static void deleteFolder(final File folder) {
+    File[] files = folder.listFiles();
+    if (files != null) { // some JVMs return null for empty dirs
+      for (File f : files) {
+        if (f.isDirectory()) {
+          LQMGConcurrencyTest.deleteFolder(f);
+        } else {
+          f.delete();
+        }
+      }
+    }
+    folder.delete();
+  }
+
+  private static void readFolder(final File folder, final String prefix,
+      final Map<String, String> result) throws IOException {
+    File[] files = folder.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String path = prefix + file.getName();
+      if (file.isDirectory()) {
+        LQMGConcurrencyTest.readFolder(file, path + "/", result);
+      } else {
+        result.put(path, FileUtils.readFileToString(file, "UTF-8"));
+      }
+    }
+  }
+
+  @Test
+  public void testParallelGenerations() throws IOException, InterruptedException {
+    String tmpDirProperty = "java.io.tmpdir";
+    String tmpDir = System.getProperty(tmpDirProperty);
+    if (tmpDir == null) {
+      Assert.fail("User temp directory could not be retrieved");
+    }
+
+    ClassLoader classLoader = LQMGConcurrencyTest.class.getClassLoader();
+    URL bundle1URL = classLoader.getResource("META-INF/testBundles/bundle1/");
+    URL bundle2URL = classLoader.getResource("META-INF/testBundles/bundle2/");
+
+    UUID uuid = UUID.randomUUID();
+    File tmpDirFile = new File(tmpDir);
+    final File testDirFile = new File(tmpDirFile, "lqmgtest-" + uuid.toString());
+
+    final String[] bundleLocations = new String[] {
+        "reference:" + bundle2URL.toExternalForm(),
+        "reference:" + bundle1URL.toExternalForm() };
+
+    ExecutorService executorService = Executors.newFixedThreadPool(GENERATION_COUNT);
+    try {
+      final File configFile = new File(testDirFile, "config.xml");
+      URL globalConfigURL = this.getClass().getResource("/META-INF/global.1.lqmg.xml");
+      FileUtils.copyURLToFile(globalConfigURL, configFile);
+
+      final CountDownLatch startLatch = new CountDownLatch(1);
+      List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+      for (int i = 0; i < GENERATION_COUNT; i++) {
+        final File targetFolder = new File(testDirFile, "generation-" + i);
+        futures.add(executorService.submit(new Callable<Map<String, String>>() {
+
+          @Override
+          public Map<String, String> call() throws Exception {
+            GenerationProperties props = new GenerationProperties("myApp", bundleLocations,
+                targetFolder.getAbsolutePath());
+            props.setConfigurationPath(configFile.getAbsolutePath());
+            // Every generation must start its own embedded OSGi container
+            props.setFrameworkFreeResolution(false);
+            startLatch.await();
+            LQMG.generate(props);
+
+            Map<String, String> result = new TreeMap<String, String>();
+            LQMGConcurrencyTest.readFolder(targetFolder, "", result);
+            return result;
+          }
+        }));
+      }
+      startLatch.countDown();
+
+      Map<String, String> expected = null;
+      for (Future<Map<String, String>> future : futures) {
+        Map<String, String> generatedFiles = future.get();
+        Assert.assertFalse(generatedFiles.isEmpty());
+        if (expected == null) {
+          expected = generatedFiles;
+        } else {
+          Assert.assertEquals(expected, generatedFiles);
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    } finally {
+      executorService.shutdownNow();
+      LQMGConcurrencyTest.deleteFolder(testDirFile);
+    }
+  }
+}
@@ -19,23 +19,58 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import javax.xml.bind.UnmarshalException;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.felix.framework.FrameworkFactory;
 import org.everit.persistence.lqmg.GenerationProperties;
+import org.everit.persistence.lqmg.GenerationReport;
+import org.everit.persistence.lqmg.GenerationReport.Phase;
 import org.everit.persistence.lqmg.LQMG;
 import org.everit.persistence.lqmg.LQMGException;
 import org.everit.persistence.lqmg.LQMGMain;
+import org.everit.persistence.lqmg.LQMGSession;
+import org.everit.persistence.lqmg.internal.liquibase.LQMGH2Database;
 import org.junit.Assert;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
 import org.junit.runners.MethodSorters;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import liquibase.Liquibase;
+import liquibase.database.jvm.JdbcConnection;
+import liquibase.exception.LiquibaseException;
+import liquibase.resource.ClassLoaderResourceAccessor;
 
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class LQMGTest {
 
+  /**
+   * Creates the path of a new folder in the temp directory for the files of a test.
+   */
+  private static File createTestDirFile() {
+    String tmpDir = System.getProperty("java.io.tmpdir");
+    if (tmpDir == null) {
+      Assert.fail("User temp directory could not be retrieved");
+    }
+    return new File(new File(tmpDir), "lqmgtest-" + UUID.randomUUID().toString());
+  }
+
   private static void deleteFolder(final File folder) {
     File[] files = folder.listFiles();
     if (files != null) { // some JVMs return null for empty dirs
@@ -50,6 +85,39 @@ public class LQMGTest {
     folder.delete();
   }
 
+  /**
+   * Returns the locations of the test bundles in the order that the tests use.
+   */
+  private static String[] getTestBundleLocations() {
+    return new String[] {
+        "reference:" + LQMGTest.getTestBundleURL("bundle2").toExternalForm(),
+        "reference:" + LQMGTest.getTestBundleURL("bundle1").toExternalForm() };
+  }
+
+  /**
+   * Returns the URL of the folder of a test bundle.
+   */
+  private static URL getTestBundleURL(final String bundleName) {
+    return LQMGTest.class.getClassLoader()
+        .getResource("META-INF/testBundles/" + bundleName + "/");
+  }
+
+  private static void readFolder(final File folder, final String prefix,
+      final Map<String, String> result) throws IOException {
+    File[] files = folder.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String path = prefix + file.getName();
+      if (file.isDirectory()) {
+        LQMGTest.readFolder(file, path + "/", result);
+      } else {
+        result.put(path, FileUtils.readFileToString(file, "UTF-8"));
+      }
+    }
+  }
+
   // @Test
   // public void _00_generateQDSLForLQMG() {
   // String tmpDirProperty = "java.io.tmpdir";
@@ -273,6 +341,616 @@ public class LQMGTest {
     }
   }
 
+  /**
+   * Testing multiple generations with the same embedded OSGi container.
+   */
+  @Test
+  public void _06_testSession() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try (LQMGSession session = new LQMGSession()) {
+      File configFile = new File(testDirFile, "config.xml");
+      URL globalConfigURL = this.getClass().getResource("/META-INF/global.1.lqmg.xml");
+      FileUtils.copyURLToFile(globalConfigURL, configFile);
+
+      GenerationProperties props =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp");
+      props.setConfigurationPath(configFile.getAbsolutePath());
+      session.generate(props);
+
+      GenerationProperties props2 =
+          new GenerationProperties("carandperson", bundleLocations,
+              tempFolderName + "/carandperson");
+      props2.setConfigurationPath(configFile.getAbsolutePath());
+      session.generate(props2);
+
+      Assert.assertTrue(new File(testDirFile, "myApp").exists());
+      Assert.assertTrue(new File(testDirFile, "carandperson").exists());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing the generation of multiple capabilities in one batch.
+   */
+  @Test
+  public void _07_testBatch() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      File configFile = new File(testDirFile, "config.xml");
+      URL globalConfigURL = this.getClass().getResource("/META-INF/global.1.lqmg.xml");
+      FileUtils.copyURLToFile(globalConfigURL, configFile);
+
+      List<GenerationProperties> jobs = new ArrayList<GenerationProperties>();
+      for (String capability : new String[] { "myApp", "carandperson", "simpleConfig" }) {
+        GenerationProperties props =
+            new GenerationProperties(capability, bundleLocations, tempFolderName + "/"
+                + capability);
+        props.setConfigurationPath(configFile.getAbsolutePath());
+        jobs.add(props);
+      }
+      LQMG.generate(jobs);
+
+      Assert.assertTrue(new File(testDirFile, "myApp").exists());
+      Assert.assertTrue(new File(testDirFile, "carandperson").exists());
+      Assert.assertTrue(new File(testDirFile, "simpleConfig").exists());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing the parallel generation of multiple capabilities where one of the jobs fails.
+   */
+  @Test
+  public void _08_testParallelBatch() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      File configFile = new File(testDirFile, "config.xml");
+      URL globalConfigURL = this.getClass().getResource("/META-INF/global.1.lqmg.xml");
+      FileUtils.copyURLToFile(globalConfigURL, configFile);
+
+      List<GenerationProperties> jobs = new ArrayList<GenerationProperties>();
+      for (String capability : new String[] { "myApp", "wrongSQL", "carandperson" }) {
+        GenerationProperties props =
+            new GenerationProperties(capability, bundleLocations, tempFolderName + "/"
+                + capability);
+        props.setConfigurationPath(configFile.getAbsolutePath());
+        jobs.add(props);
+      }
+      LQMG.generate(jobs, 3);
+      Assert.fail("An LQMG exception should have been thrown.");
+    } catch (LQMGException e) {
+      Assert.assertTrue(new File(testDirFile, "myApp").exists());
+      Assert.assertTrue(new File(testDirFile, "carandperson").exists());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the storage area of the embedded OSGi container is cached and reused.
+   */
+  @Test
+  public void _09_testStorageAreaCache() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+    File cacheFolder = new File(testDirFile, "cache");
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      for (int i = 0; i < 2; i++) {
+        GenerationProperties props =
+            new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp" + i);
+        props.setCacheFolder(cacheFolder.getAbsolutePath());
+        props.setFrameworkFreeResolution(false);
+        LQMG.generate(props);
+        Assert.assertTrue(new File(testDirFile, "myApp" + i).exists());
+      }
+
+      File[] storageAreas = new File(cacheFolder, "osgi").listFiles();
+      Assert.assertNotNull(storageAreas);
+      int storageAreaCount = 0;
+      for (File storageArea : storageAreas) {
+        if (storageArea.isDirectory()) {
+          storageAreaCount++;
+        }
+      }
+      Assert.assertEquals(1, storageAreaCount);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the generation without the embedded OSGi container gives the same result as the
+   * generation within the container.
+   */
+  @Test
+  public void _10_testFrameworkFreeResolution() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      GenerationProperties containerProps =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/container");
+      containerProps.setFrameworkFreeResolution(false);
+      GenerationReport containerReport = LQMG.generate(containerProps);
+      Assert.assertEquals(0, containerReport.getFrameworkFreeJobCount());
+
+      GenerationProperties frameworkFreeProps =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/frameworkFree");
+      frameworkFreeProps.setFrameworkFreeResolution(true);
+      GenerationReport frameworkFreeReport = LQMG.generate(frameworkFreeProps);
+      Assert.assertEquals(1, frameworkFreeReport.getFrameworkFreeJobCount());
+
+      Map<String, String> containerResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "container"), "", containerResult);
+      Map<String, String> frameworkFreeResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "frameworkFree"), "", frameworkFreeResult);
+
+      Assert.assertFalse(containerResult.isEmpty());
+      Assert.assertEquals(containerResult, frameworkFreeResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the generation report contains the counts and that it is written as JSON.
+   */
+  @Test
+  public void _11_testGenerationReport() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    GenerationProperties props = new GenerationProperties("myApp",
+        LQMGTest.getTestBundleLocations(), tempFolderName + "/generated");
+    props.setFrameworkFreeResolution(false);
+    File reportFile = new File(testDirFile, "report.json");
+    props.setReportFile(reportFile.getAbsolutePath());
+
+    try {
+      GenerationReport report = LQMG.generate(props);
+
+      Assert.assertEquals(1, report.getJobCount());
+      Assert.assertEquals(0, report.getFailedJobCount());
+      Assert.assertEquals(2, report.getBundleCount());
+      Assert.assertTrue(report.getChangeSetCount() > 0);
+      Assert.assertTrue(report.getTableCount() > 0);
+      Assert.assertTrue(report.getWrittenFileCount() > 0);
+      Assert.assertTrue(report.getDuration(Phase.FRAMEWORK_START) > 0);
+      Assert.assertTrue(report.getDuration(Phase.LIQUIBASE_UPDATE) > 0);
+      Assert.assertTrue(report.getDuration(Phase.CLEANUP) > 0);
+      Assert.assertTrue(report.getTotalDuration() > 0);
+
+      String json = FileUtils.readFileToString(reportFile, "UTF-8");
+      Assert.assertTrue(json.contains("\"LIQUIBASE_UPDATE\""));
+      Assert.assertTrue(json.contains("\"writtenFiles\": " + report.getWrittenFileCount()));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that resolving the bundles with synthetic providers gives the same result as hacking
+   * the wires of the unresolved bundles.
+   */
+  @Test
+  public void _12_testSyntheticProviders() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      GenerationProperties hackedProps =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/hacked");
+      hackedProps.setFrameworkFreeResolution(false);
+      LQMG.generate(hackedProps);
+
+      GenerationProperties syntheticProps =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/synthetic");
+      syntheticProps.setFrameworkFreeResolution(false);
+      syntheticProps.setSyntheticProviders(true);
+      LQMG.generate(syntheticProps);
+
+      Map<String, String> hackedResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "hacked"), "", hackedResult);
+      Map<String, String> syntheticResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "synthetic"), "", syntheticResult);
+
+      Assert.assertFalse(hackedResult.isEmpty());
+      Assert.assertEquals(hackedResult, syntheticResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the hacked bundles are cached and reused when a new storage area is created.
+   */
+  @Test
+  public void _13_testHackedBundleCache() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+    File cacheFolder = new File(testDirFile, "cache");
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      for (int i = 0; i < 2; i++) {
+        // Dropping the storage areas forces hacking the bundles again
+        LQMGTest.deleteFolder(new File(cacheFolder, "osgi"));
+        GenerationProperties props =
+            new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp" + i);
+        props.setCacheFolder(cacheFolder.getAbsolutePath());
+        props.setFrameworkFreeResolution(false);
+        GenerationReport report = LQMG.generate(props);
+        Assert.assertTrue(report.getHackedBundleCount() > 0);
+        Assert.assertTrue(report.getHackThreadCount() > 0);
+      }
+
+      File[] hackedBundles = new File(cacheFolder, "hacked").listFiles();
+      Assert.assertNotNull(hackedBundles);
+      Assert.assertTrue(hackedBundles.length > 0);
+
+      Map<String, String> firstResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp0"), "", firstResult);
+      Map<String, String> secondResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp1"), "", secondResult);
+
+      Assert.assertFalse(firstResult.isEmpty());
+      Assert.assertEquals(firstResult, secondResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the Apache Felix container generates the same classes as Equinox.
+   */
+  @Test
+  public void _14_testFelixContainer() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      GenerationProperties equinoxProps =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/equinox");
+      equinoxProps.setFrameworkFreeResolution(false);
+      LQMG.generate(equinoxProps);
+
+      GenerationProperties felixProps =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/felix");
+      felixProps.setFrameworkFreeResolution(false);
+      felixProps.setContainer(GenerationProperties.CONTAINER_FELIX);
+      GenerationReport report = LQMG.generate(felixProps);
+      Assert.assertTrue(report.getHackedBundleCount() > 0);
+
+      Map<String, String> equinoxResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "equinox"), "", equinoxResult);
+      Map<String, String> felixResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "felix"), "", felixResult);
+
+      Assert.assertFalse(equinoxResult.isEmpty());
+      Assert.assertEquals(equinoxResult, felixResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing the generation against the bundles of an already running host framework.
+   */
+  @Test
+  public void _15_testHostFramework() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+    URL bundle2URL = LQMGTest.getTestBundleURL("bundle2");
+
+    Map<String, String> config = new HashMap<String, String>();
+    config.put(Constants.FRAMEWORK_STORAGE, new File(testDirFile, "host").getAbsolutePath());
+    config.put("felix.service.urlhandlers", "false");
+    Framework framework = new FrameworkFactory().newFramework(config);
+    try {
+      framework.start();
+      framework.getBundleContext().installBundle("reference:" + bundle2URL.toExternalForm());
+      framework.adapt(FrameworkWiring.class).resolveBundles(null);
+
+      GenerationProperties embeddedProps = new GenerationProperties("carandperson",
+          new String[] { "reference:" + bundle2URL.toExternalForm() },
+          tempFolderName + "/embedded");
+      LQMG.generate(embeddedProps);
+
+      GenerationProperties hostProps = new GenerationProperties("carandperson", new String[0],
+          tempFolderName + "/hosted");
+      GenerationReport report = LQMG.generate(framework.getBundleContext(), hostProps);
+      Assert.assertEquals(0, report.getHackedBundleCount());
+
+      Map<String, String> embeddedResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "embedded"), "", embeddedResult);
+      Map<String, String> hostedResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "hosted"), "", hostedResult);
+
+      Assert.assertFalse(embeddedResult.isEmpty());
+      Assert.assertEquals(embeddedResult, hostedResult);
+
+      try {
+        LQMG.generate(framework.getBundleContext(),
+            new GenerationProperties("nonExisting", new String[0], tempFolderName + "/none"));
+        Assert.fail("Generation should fail for a missing capability");
+      } catch (LQMGException e) {
+        Assert.assertTrue(true);
+      }
+    } catch (BundleException e) {
+      throw new RuntimeException(e);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      try {
+        framework.stop();
+        framework.waitForStop(0);
+      } catch (BundleException e) {
+        throw new RuntimeException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the schema is restored from the snapshot cache if the changelogs did not change.
+   */
+  @Test
+  public void _16_testSchemaSnapshotCache() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+    File cacheFolder = new File(testDirFile, "cache");
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      GenerationProperties props =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp0");
+      props.setCacheFolder(cacheFolder.getAbsolutePath());
+      GenerationReport report = LQMG.generate(props);
+      Assert.assertEquals(0, report.getRestoredSchemaCount());
+      Assert.assertTrue(report.getChangeSetCount() > 0);
+
+      props = new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp1");
+      props.setCacheFolder(cacheFolder.getAbsolutePath());
+      report = LQMG.generate(props);
+      Assert.assertEquals(1, report.getRestoredSchemaCount());
+      Assert.assertEquals(0, report.getChangeSetCount());
+
+      Map<String, String> firstResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp0"), "", firstResult);
+      Map<String, String> secondResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp1"), "", secondResult);
+
+      Assert.assertFalse(firstResult.isEmpty());
+      Assert.assertEquals(firstResult, secondResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that only the new changesets are applied on a database that is kept between the runs.
+   */
+  @Test
+  public void _17_testIncrementalDatabase() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+    URL bundle1URL = LQMGTest.getTestBundleURL("bundle1");
+    URL bundle2URL = LQMGTest.getTestBundleURL("bundle2");
+    File databaseFolder = new File(testDirFile, "database");
+    // The changelogs are modified during the test, so a copy of the bundles is used
+    File bundle1Folder = new File(testDirFile, "bundles/bundle1");
+    File bundle2Folder = new File(testDirFile, "bundles/bundle2");
+
+    try {
+      FileUtils.copyDirectory(FileUtils.toFile(bundle1URL), bundle1Folder);
+      FileUtils.copyDirectory(FileUtils.toFile(bundle2URL), bundle2Folder);
+      String[] bundleLocations = new String[] {
+          "reference:" + bundle2Folder.toURI().toString(),
+          "reference:" + bundle1Folder.toURI().toString() };
+
+      GenerationProperties props =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp0");
+      props.setDatabaseFolder(databaseFolder.getAbsolutePath());
+      GenerationReport report = LQMG.generate(props);
+      Assert.assertTrue(report.getChangeSetCount() > 0);
+
+      props = new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp1");
+      props.setDatabaseFolder(databaseFolder.getAbsolutePath());
+      report = LQMG.generate(props);
+      Assert.assertEquals(0, report.getChangeSetCount());
+
+      Map<String, String> firstResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp0"), "", firstResult);
+      Map<String, String> secondResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp1"), "", secondResult);
+
+      Assert.assertFalse(firstResult.isEmpty());
+      Assert.assertEquals(firstResult, secondResult);
+
+      // Modifying a changeset that was applied before leads to the rebuild of the database
+      File carChangeLog = new File(bundle2Folder, "META-INF/liquibase/car.xml");
+      String carChangeLogContent = FileUtils.readFileToString(carChangeLog, "UTF-8");
+      String modifiedCarChangeLogContent = carChangeLogContent.replace(
+          "name=\"platenumber\" type=\"varchar(50)\"", "name=\"platenumber\" type=\"varchar(60)\"");
+      Assert.assertFalse(carChangeLogContent.equals(modifiedCarChangeLogContent));
+      FileUtils.writeStringToFile(carChangeLog, modifiedCarChangeLogContent, "UTF-8");
+
+      props = new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp2");
+      props.setDatabaseFolder(databaseFolder.getAbsolutePath());
+      report = LQMG.generate(props);
+      Assert.assertTrue(report.getChangeSetCount() > 0);
+
+      props = new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp3");
+      LQMG.generate(props);
+
+      Map<String, String> rebuiltResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp2"), "", rebuiltResult);
+      Map<String, String> newDatabaseResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp3"), "", newDatabaseResult);
+
+      Assert.assertFalse(firstResult.equals(rebuiltResult));
+      Assert.assertEquals(newDatabaseResult, rebuiltResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the schema model interpreted from the changelogs produces the same classes as the
+   * database that the changelogs were applied on.
+   */
+  @Test
+  public void _18_testSchemaModel() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      GenerationProperties props =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp0");
+      GenerationReport report = LQMG.generate(props);
+      Assert.assertEquals(0, report.getInterpretedSchemaCount());
+
+      props = new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp1");
+      props.setSchemaModel(true);
+      report = LQMG.generate(props);
+      Assert.assertEquals(1, report.getInterpretedSchemaCount());
+      Assert.assertEquals(1, report.getSkippedDataChangeCount());
+      Assert.assertEquals(3, report.getTableCount());
+
+      Map<String, String> databaseResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp0"), "", databaseResult);
+      Map<String, String> modelResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp1"), "", modelResult);
+
+      Assert.assertFalse(databaseResult.isEmpty());
+      Assert.assertEquals(databaseResult, modelResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that skipping the data changes produces the same classes as the full update.
+   */
+  @Test
+  public void _19_testSchemaOnly() {
+    File testDirFile = LQMGTest.createTestDirFile();
+    String tempFolderName = testDirFile.getAbsolutePath();
+
+    String[] bundleLocations = LQMGTest.getTestBundleLocations();
+
+    try {
+      GenerationProperties props =
+          new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp0");
+      GenerationReport report = LQMG.generate(props);
+      Assert.assertEquals(0, report.getSkippedDataChangeCount());
+
+      props = new GenerationProperties("myApp", bundleLocations, tempFolderName + "/myApp1");
+      props.setSchemaOnly(true);
+      report = LQMG.generate(props);
+      Assert.assertEquals(1, report.getSkippedDataChangeCount());
+      Assert.assertEquals(3, report.getTableCount());
+
+      Map<String, String> fullResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp0"), "", fullResult);
+      Map<String, String> schemaOnlyResult = new TreeMap<String, String>();
+      LQMGTest.readFolder(new File(testDirFile, "myApp1"), "", schemaOnlyResult);
+
+      Assert.assertFalse(fullResult.isEmpty());
+      Assert.assertEquals(fullResult, schemaOnlyResult);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      LQMGTest.deleteFolder(testDirFile);
+    }
+  }
+
+  /**
+   * Testing that the database of a generation keeps the history of the changesets in memory, so
+   * Liquibase does not create its own tables, even if a changelog tags the database.
+   */
+  @Test
+  public void _20_testInMemoryChangeLogHistory() {
+    try (Connection connection =
+        DriverManager.getConnection("jdbc:h2:mem:lqmgtest-" + UUID.randomUUID().toString())) {
+      LQMGH2Database database = new LQMGH2Database(false, true);
+      database.setConnection(new JdbcConnection(connection));
+      Liquibase liquibase = new Liquibase("META-INF/tagDatabase.xml",
+          new ClassLoaderResourceAccessor(LQMGTest.class.getClassLoader()), database);
+      database.checkInMemoryServices();
+      liquibase.update((String) null);
+
+      Assert.assertEquals(2, database.getRanChangeSetList().size());
+      Assert.assertTrue(database.doesTagExist("lqmgtest"));
+
+      List<String> tableNames = new ArrayList<String>();
+      try (ResultSet resultSet =
+          connection.getMetaData().getTables(null, null, "%", new String[] { "TABLE" })) {
+        while (resultSet.next()) {
+          tableNames.add(resultSet.getString("TABLE_NAME").toUpperCase(Locale.ENGLISH));
+        }
+      }
+      Assert.assertTrue(tableNames.contains("TAGGED"));
+      Assert.assertFalse(tableNames.contains("DATABASECHANGELOG"));
+      Assert.assertFalse(tableNames.contains("DATABASECHANGELOGLOCK"));
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    } catch (LiquibaseException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /**
    * Test three cases: - when there are no matching capability for the given schema /n - when there
    * are multiple capabilities in a bundle matching the given schema /n - when found multiple